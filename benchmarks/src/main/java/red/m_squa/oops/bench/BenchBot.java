@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.bench;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.pircbotx.Configuration;
+import org.pircbotx.PircBotX;
+import org.pircbotx.exception.IrcException;
+import org.pircbotx.hooks.Listener;
+import org.pircbotx.hooks.managers.SequentialListenerManager;
+import org.pircbotx.output.OutputRaw;
+
+import red.m_squa.oops.DBusPath;
+import red.m_squa.oops.irc.DBusPircBotX;
+import red.m_squa.oops.irc.OutboundScheduler;
+import red.m_squa.oops.irc.ServerStats;
+import red.m_squa.oops.irc.SignalEmitter;
+
+/**
+ * A DBusPircBotX which is never connected: IRC lines are fed to it
+ * directly, and whatever it sends is counted and thrown away.
+ */
+public class BenchBot {
+    public static final String NICK = "benchbot";
+    public static final String CHANNEL = "#bench";
+
+    /* output which goes nowhere */
+    private static class DiscardingOutput extends OutputRaw {
+        private final LongAdder lines;
+
+        private DiscardingOutput(PircBotX bot, LongAdder lines) {
+            super(bot);
+            this.lines = lines;
+        }
+
+        @Override
+        public void rawLine(String line) {
+            this.lines.increment();
+        }
+
+        @Override
+        public void rawLineNow(String line) {
+            this.lines.increment();
+        }
+
+        @Override
+        public void rawLineNow(String line, boolean resetDelay) {
+            this.lines.increment();
+        }
+    }
+
+    private final DBusPircBotX bot;
+    private final SignalEmitter emitter;
+    private final OutboundScheduler outbound;
+    private final LongAdder sent;
+
+    /**
+     * Create a bot running the given listeners in order, with an outbound
+     * queue of the given capacity per lane.
+     */
+    public BenchBot(int capacity, Listener... listeners) {
+        Configuration.Builder conf;
+        SequentialListenerManager slm;
+
+        this.sent = new LongAdder();
+
+        /* listeners run on the thread feeding lines in, so that each
+         * line has been fully handled when feed() returns */
+        slm = SequentialListenerManager.newDefault();
+        for (Listener l: listeners) {
+            slm.addListenerInline(l);
+        }
+
+        conf = new Configuration.Builder()
+            .setName(NICK)
+            .setLogin("bench")
+            .addServer("irc.invalid")
+            .setListenerManager(slm)
+            .setBotFactory(new Configuration.BotFactory() {
+                @Override
+                public OutputRaw createOutputRaw(PircBotX bot) {
+                    return new DiscardingOutput(bot, BenchBot.this.sent);
+                }
+            });
+
+        /* the emitter is never started, so signals are dropped unbuilt
+         * without needing a bus */
+        this.emitter = new SignalEmitter(null, "bench", 1,
+                SignalEmitter.OverflowPolicy.DROP_NEWEST, new ServerStats());
+        this.outbound = new OutboundScheduler("bench", 1, 0, capacity);
+        this.bot = new DBusPircBotX(conf.buildConfiguration(),
+                new DBusPath("red", "m_squa", "Oops", "bench"),
+                this.emitter, this.outbound, null, null);
+    }
+
+    /**
+     * Add a listener after those given at construction, for listeners
+     * which need the bot's emitter.
+     */
+    public void addListener(Listener l) {
+        ((SequentialListenerManager) this.bot.getConfiguration()
+            .getListenerManager()).addListenerInline(l);
+    }
+
+    public DBusPircBotX getBot() {
+        return this.bot;
+    }
+
+    public SignalEmitter getEmitter() {
+        return this.emitter;
+    }
+
+    /* lines sent to the discarding output so far */
+    public long getSent() {
+        return this.sent.sum();
+    }
+
+    /**
+     * Feed a line to the bot as if it came from the server.
+     */
+    public void feed(String line) {
+        try {
+            this.bot.getInputParser().handleLine(line);
+        } catch (IOException | IrcException e) {
+            throw new IllegalStateException("Could not handle line: " +
+                    line, e);
+        }
+    }
+
+    /**
+     * Join the bot to the benchmark channel, along with users named user0
+     * to user(n-1), every opevery'th of whom is opped.
+     */
+    public void populate(int n, int opevery) {
+        this.feed(":" + NICK + "!bench@bench.invalid JOIN " + CHANNEL);
+
+        for (int i = 0; i < n; i++) {
+            this.feed(":user" + i + "!u" + i + "@host" + (i % 97) +
+                    ".invalid JOIN " + CHANNEL);
+        }
+
+        for (int i = 0; i < n; i += opevery) {
+            this.feed(":irc.invalid MODE " + CHANNEL + " +o user" + i);
+        }
+    }
+
+    /**
+     * Let queued commands flow to the discarding output, as if the server
+     * had finished registration.
+     */
+    public void goOnline() {
+        this.outbound.start();
+        this.bot.connectionReady();
+    }
+
+    public void close() {
+        this.bot.closeOutput();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import red.m_squa.oops.irc.ChannelStateListener;
+import red.m_squa.oops.irc.DBusPircBotX;
+
+/**
+ * Channel membership queries on a large synthetic channel, with the
+ * channel state caches maintained as they are in a running server.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChannelBenchmark {
+    @Param({"10000"})
+    public int users;
+
+    /* one user in this many is opped */
+    @Param({"100"})
+    public int opevery;
+
+    private BenchBot bench;
+    private DBusPircBotX bot;
+    private String op, regular, absent;
+
+    @Setup
+    public void setup() {
+        this.bench = new BenchBot(1024, new ChannelStateListener());
+        this.bench.populate(this.users, this.opevery);
+        this.bot = this.bench.getBot();
+
+        this.op = "user" + (this.users / this.opevery / 2 * this.opevery);
+        this.regular = "user" + (this.users / 2 + 1);
+        this.absent = "nobody";
+    }
+
+    @TearDown
+    public void teardown() {
+        this.bench.close();
+    }
+
+    @Benchmark
+    public boolean userIsOp() {
+        return this.bot.UserIsOp(BenchBot.CHANNEL, this.op);
+    }
+
+    @Benchmark
+    public boolean userIsPrivdRegular() {
+        return this.bot.UserIsPrivd(BenchBot.CHANNEL, this.regular);
+    }
+
+    @Benchmark
+    public int getUserLevel() {
+        return this.bot.GetUserLevel(BenchBot.CHANNEL, this.regular);
+    }
+
+    @Benchmark
+    public boolean channelContainsAbsent() {
+        return this.bot.ChannelContainsUser(BenchBot.CHANNEL, this.absent);
+    }
+
+    /* served from the member cache */
+    @Benchmark
+    public String[] getChannelUsers() {
+        return this.bot.GetChannelUsers(BenchBot.CHANNEL);
+    }
+
+    /* as after any join, part or nick change on the channel */
+    @Benchmark
+    public String[] getChannelUsersUncached() {
+        this.bot.getMemberCache().invalidate(BenchBot.CHANNEL);
+        return this.bot.GetChannelUsers(BenchBot.CHANNEL);
+    }
+
+    @Benchmark
+    public String[] getChannelUsersPage() {
+        return this.bot.GetChannelUsersPage(BenchBot.CHANNEL, "user5", 100);
+    }
+}
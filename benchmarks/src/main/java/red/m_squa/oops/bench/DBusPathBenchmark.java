@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import red.m_squa.oops.DBusPath;
+
+/**
+ * DBus object path construction and validation, done for every server
+ * object and signal.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DBusPathBenchmark {
+    public String component = "irc_example_net";
+    public String bad = "irc.example.net";
+    public String path = "/red/m_squa/Oops/irc_example_net";
+    public DBusPath base = new DBusPath("red", "m_squa", "Oops");
+
+    @Benchmark
+    public DBusPath fromComponents() {
+        return new DBusPath("red", "m_squa", "Oops", this.component);
+    }
+
+    @Benchmark
+    public DBusPath fromString() {
+        return new DBusPath(this.path);
+    }
+
+    @Benchmark
+    public DBusPath appendPath() {
+        return this.base.appendPath(this.component);
+    }
+
+    @Benchmark
+    public boolean validComponent() {
+        return DBusPath.isValidPathComponent(this.component);
+    }
+
+    @Benchmark
+    public boolean invalidComponent() {
+        return DBusPath.isValidPathComponent(this.bad);
+    }
+}
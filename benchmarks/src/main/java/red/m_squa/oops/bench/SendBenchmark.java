@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import red.m_squa.oops.except.OutboundQueueFull;
+import red.m_squa.oops.irc.ChannelStateListener;
+import red.m_squa.oops.irc.DBusPircBotX;
+
+/**
+ * Queueing messages through the Input interface, which checks channel
+ * membership and hands the message to the outbound scheduler. The
+ * scheduler runs unthrottled into a discarding output, so this measures
+ * the caller's side only.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SendBenchmark {
+    private BenchBot bench;
+    private DBusPircBotX bot;
+    private String msg;
+
+    @Setup
+    public void setup() {
+        this.bench = new BenchBot(1 << 20, new ChannelStateListener());
+        this.bench.populate(100, 10);
+        this.bench.goOnline();
+        this.bot = this.bench.getBot();
+        this.msg = "build 1234 of oops finished: 0 failures, 0 errors, " +
+            "all tests passed";
+    }
+
+    @TearDown
+    public void teardown() {
+        this.bench.close();
+    }
+
+    /* false if the scheduler fell too far behind to take the message */
+    private boolean send(String dest) {
+        try {
+            this.bot.SendMsg(dest, this.msg);
+            return true;
+        } catch (OutboundQueueFull oqf) {
+            return false;
+        }
+    }
+
+    @Benchmark
+    public boolean sendToChannel() {
+        return this.send(BenchBot.CHANNEL);
+    }
+
+    @Benchmark
+    public boolean sendToUser() {
+        return this.send("user42");
+    }
+}
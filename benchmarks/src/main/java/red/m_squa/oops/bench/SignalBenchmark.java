@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.messages.DBusSignal;
+
+import org.pircbotx.hooks.Event;
+import org.pircbotx.hooks.ListenerAdapter;
+
+import red.m_squa.oops.DBusPath;
+import red.m_squa.oops.irc.ServerOutputListener;
+import red.m_squa.oops.irc.ServerStats;
+import red.m_squa.oops.irc.SignalEmitter;
+
+/**
+ * Cost of turning each kind of IRC event into its DBus signal in
+ * ServerOutputListener, leaving out PircBotX's own parsing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SignalBenchmark {
+    /* the line producing each event, after the channel has been set up */
+    private static final Map<String, String> LINES = new HashMap<>();
+    static {
+        LINES.put("MessageEvent", ":alice!a@host.invalid PRIVMSG " +
+                BenchBot.CHANNEL + " :hello there, this is a message of " +
+                "fairly ordinary length");
+        LINES.put("ActionEvent", ":alice!a@host.invalid PRIVMSG " +
+                BenchBot.CHANNEL + " :\u0001ACTION waves\u0001");
+        LINES.put("NoticeEvent", ":alice!a@host.invalid NOTICE " +
+                BenchBot.CHANNEL + " :a notice");
+        LINES.put("PrivateMessageEvent", ":alice!a@host.invalid PRIVMSG " +
+                BenchBot.NICK + " :a private message");
+        LINES.put("JoinEvent", ":bob!b@host.invalid JOIN " +
+                BenchBot.CHANNEL);
+        LINES.put("PartEvent", ":carol!c@host.invalid PART " +
+                BenchBot.CHANNEL + " :bye");
+        LINES.put("QuitEvent", ":dave!d@host.invalid QUIT :gone");
+        LINES.put("KickEvent", ":alice!a@host.invalid KICK " +
+                BenchBot.CHANNEL + " erin :out");
+        LINES.put("NickChangeEvent", ":frank!f@host.invalid NICK frankie");
+        LINES.put("ModeEvent", ":alice!a@host.invalid MODE " +
+                BenchBot.CHANNEL + " +m");
+        LINES.put("TopicEvent", ":alice!a@host.invalid TOPIC " +
+                BenchBot.CHANNEL + " :a new topic");
+    }
+
+    @Param({"MessageEvent", "ActionEvent", "NoticeEvent",
+        "PrivateMessageEvent", "JoinEvent", "PartEvent", "QuitEvent",
+        "KickEvent", "NickChangeEvent", "ModeEvent", "TopicEvent"})
+    public String type;
+
+    private BenchBot bench;
+    private BuildingEmitter emitter;
+    private ServerOutputListener listener;
+    private Event event;
+
+    @Setup
+    public void setup() {
+        Map<String, Event> seen;
+        String line;
+
+        seen = new HashMap<>();
+        this.bench = new BenchBot(1024, new ListenerAdapter() {
+            @Override
+            public void onEvent(Event ev) {
+                seen.put(ev.getClass().getSimpleName(), ev);
+            }
+        });
+
+        this.bench.populate(0, 1);
+        for (String n: new String[] { "alice", "carol", "dave", "erin",
+                "frank" }) {
+            this.bench.feed(":" + n + "!" + n.charAt(0) +
+                    "@host.invalid JOIN " + BenchBot.CHANNEL);
+        }
+
+        line = LINES.get(this.type);
+        if (line == null) {
+            throw new IllegalArgumentException("Unknown event: " + this.type);
+        }
+
+        seen.clear();
+        this.bench.feed(line);
+
+        this.event = seen.get(this.type);
+        if (this.event == null) {
+            throw new IllegalStateException("No " + this.type + " from: " +
+                    line);
+        }
+
+        this.emitter = new BuildingEmitter();
+        this.listener = new ServerOutputListener(this.emitter,
+                new DBusPath("red", "m_squa", "Oops", "bench"));
+    }
+
+    @TearDown
+    public void teardown() {
+        this.bench.close();
+    }
+
+    @Benchmark
+    public DBusSignal signal() throws Exception {
+        this.listener.onEvent(this.event);
+        return this.emitter.last;
+    }
+
+    /* builds each signal as soon as it is emitted, as the sender would */
+    private static class BuildingEmitter extends SignalEmitter {
+        private DBusSignal last;
+
+        private BuildingEmitter() {
+            super(null, "bench", 1, SignalEmitter.OverflowPolicy.DROP_NEWEST,
+                    new ServerStats());
+        }
+
+        @Override
+        public void emit(SignalEmitter.Builder builder, long start) {
+            try {
+                this.last = builder.build();
+            } catch (DBusException dbe) {
+                throw new IllegalStateException(dbe);
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import red.m_squa.oops.DBusPath;
+import red.m_squa.oops.bench.BenchBot;
+import red.m_squa.oops.irc.ChannelOutputListener;
+import red.m_squa.oops.irc.ChannelStateListener;
+import red.m_squa.oops.irc.ServerOutputListener;
+import red.m_squa.oops.irc.SettingsListener;
+import red.m_squa.oops.irc.TrafficCapture;
+
+/**
+ * Feeds a traffic capture through a bot with the same listeners as a
+ * loaded server, and reports throughput and the time taken to handle each
+ * line by IRC command, so that builds can be compared on identical input.
+ *
+ * The listeners all run on the thread feeding lines in, rather than on
+ * their own threads, so that the time for a line covers everything done
+ * with it. Signals are queued but never built or sent, as they would be
+ * built by the sender thread.
+ *
+ * Usage: CaptureReplay [--speed=N] [--iterations=N] capture-file. A speed
+ * of 1 replays at the pace the lines were received, 2 at twice that, and
+ * so on; the default of 0 replays as fast as possible. Each iteration
+ * replays the whole capture into a fresh bot.
+ */
+public class CaptureReplay {
+    private static final DBusPath PATH =
+        new DBusPath("red", "m_squa", "Oops", "replay");
+
+    /* time spent on lines of one command; every sample is kept, as most
+     * lines take well under a microsecond */
+    private static class Timing {
+        private long[] samples = new long[1024];
+        private int count;
+        private long nanos;
+
+        private void record(long took) {
+            if (this.count == this.samples.length) {
+                this.samples = Arrays.copyOf(this.samples, this.count * 2);
+            }
+
+            this.samples[this.count++] = took;
+            this.nanos += took;
+        }
+
+        /* call sort() first */
+        private long percentile(double q) {
+            int i;
+
+            if (this.count == 0) {
+                return 0;
+            }
+
+            i = (int) Math.ceil(q * this.count) - 1;
+            return this.samples[Math.max(0, Math.min(i, this.count - 1))];
+        }
+
+        private void sort() {
+            Arrays.sort(this.samples, 0, this.count);
+        }
+    }
+
+    private double speed = 0;
+    private int iterations = 1;
+    private File file;
+    private final List<String> lines = new ArrayList<>();
+    private final List<Long> offsets = new ArrayList<>();
+
+    private void parse(String[] args) {
+        String[] kv;
+
+        for (String arg: args) {
+            if (!arg.startsWith("--")) {
+                this.file = new File(arg);
+                continue;
+            }
+
+            kv = arg.substring(2).split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("bad option: " + arg);
+            }
+
+            switch (kv[0]) {
+            case "speed":
+                this.speed = Double.parseDouble(kv[1]);
+                break;
+            case "iterations":
+                this.iterations = Integer.parseInt(kv[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+
+        if (this.file == null) {
+            throw new IllegalArgumentException("no capture file given");
+        }
+    }
+
+    /* the whole capture is read up front, so reading it is not timed */
+    private void load() throws IOException {
+        try (TrafficCapture.Reader r = new TrafficCapture.Reader(this.file)) {
+            while (r.next()) {
+                this.lines.add(r.getLine());
+                this.offsets.add(r.getOffset());
+            }
+        }
+    }
+
+    /* the command of a raw line, skipping any tags and source */
+    private static String command(String line) {
+        String[] parts;
+        int i;
+
+        parts = line.split(" ", 4);
+        i = 0;
+        if (i < parts.length && parts[i].startsWith("@")) {
+            i++;
+        }
+
+        if (i < parts.length && parts[i].startsWith(":")) {
+            i++;
+        }
+
+        return (i < parts.length) ? parts[i].toUpperCase() : "?";
+    }
+
+    private void replay(int iteration) {
+        Map<String, Timing> timings;
+        Timing total;
+        BenchBot bench;
+        String line;
+        long start;
+        long end;
+        long due;
+        long took;
+        long events;
+
+        bench = new BenchBot(1 << 16, new ChannelStateListener());
+        bench.addListener(new ServerOutputListener(bench.getEmitter(), PATH));
+        bench.addListener(new ChannelOutputListener(bench.getEmitter(),
+                    PATH));
+        bench.addListener(new SettingsListener());
+
+        timings = new TreeMap<>();
+        total = new Timing();
+        start = System.nanoTime();
+
+        for (int i = 0; i < this.lines.size(); i++) {
+            line = this.lines.get(i);
+
+            if (this.speed > 0) {
+                due = start + (long) (this.offsets.get(i) * 1000 /
+                        this.speed);
+                if (due - System.nanoTime() > 0) {
+                    LockSupport.parkNanos(due - System.nanoTime());
+                }
+            }
+
+            took = System.nanoTime();
+            bench.feed(line);
+            took = System.nanoTime() - took;
+
+            total.record(took);
+            timings.computeIfAbsent(command(line), k -> new Timing())
+                .record(took);
+        }
+
+        end = System.nanoTime();
+        events = bench.getBot().getStatsSnapshot().toMap()
+            .getOrDefault("events-received", 0L);
+        bench.close();
+
+        System.out.printf("iteration %d: %d lines, %d events in %.3fs, "
+                + "%.0f lines/s, %.0f lines/s busy%n", iteration,
+                this.lines.size(), events, (end - start) / 1e9,
+                this.lines.size() * 1e9 / (end - start),
+                total.count * 1e9 / Math.max(1, total.nanos));
+
+        System.out.printf("  %-10s %10s %10s %10s %10s %10s%n", "command",
+                "count", "mean-ns", "p50-ns", "p99-ns", "max-ns");
+        for (Map.Entry<String, Timing> e: timings.entrySet()) {
+            this.row(e.getKey(), e.getValue());
+        }
+
+        this.row("all", total);
+    }
+
+    private void row(String name, Timing t) {
+        t.sort();
+        System.out.printf("  %-10s %10d %10d %10d %10d %10d%n", name,
+                t.count, t.nanos / Math.max(1, t.count),
+                t.percentile(0.5), t.percentile(0.99), t.percentile(1.0));
+    }
+
+    public static void main(String[] args) {
+        CaptureReplay replay;
+
+        replay = new CaptureReplay();
+
+        try {
+            replay.parse(args);
+            replay.load();
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.exit(2);
+        } catch (IOException ioe) {
+            System.err.println("Could not read capture: " +
+                    ioe.getMessage());
+            System.exit(1);
+        }
+
+        System.out.printf("replaying %d lines spanning %.1fs from %s%n",
+                replay.lines.size(), replay.offsets.isEmpty() ? 0.0 :
+                TimeUnit.MICROSECONDS.toMillis(replay.offsets.get(
+                        replay.offsets.size() - 1)) / 1000.0, replay.file);
+
+        for (int i = 1; i <= replay.iterations; i++) {
+            replay.replay(i);
+        }
+
+        System.exit(0);
+    }
+}
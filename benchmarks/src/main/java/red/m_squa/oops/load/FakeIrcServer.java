@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.load;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Just enough of an IRC server to register one client, let it join
+ * channels, and then have arbitrary lines pushed at it.
+ */
+public class FakeIrcServer implements AutoCloseable {
+    public static final String NAME = "irc.load.invalid";
+    public static final String HOST = "load.invalid";
+
+    private static final Logger log =
+        LoggerFactory.getLogger(FakeIrcServer.class);
+    private static final int NAMES_LINE = 400;
+
+    private final ServerSocket listener;
+    private final Map<String, Collection<String>> members;
+    private final Set<String> joined;
+    private final LongAdder received;
+    private Thread thread;
+    private Socket client;
+    private Writer out;
+    private String nick;
+
+    public FakeIrcServer() throws IOException {
+        this.listener = new ServerSocket(0, 1,
+                InetAddress.getLoopbackAddress());
+        this.members = new ConcurrentHashMap<>();
+        this.joined = new HashSet<>();
+        this.received = new LongAdder();
+        this.nick = "*";
+    }
+
+    public int getPort() {
+        return this.listener.getLocalPort();
+    }
+
+    /** Set the users already present when the client joins a channel. */
+    public void setMembers(String chan, Collection<String> nicks) {
+        this.members.put(chan, nicks);
+    }
+
+    /** Lines received from the client. */
+    public long getReceived() {
+        return this.received.sum();
+    }
+
+    public String getNick() {
+        return this.nick;
+    }
+
+    public void start() {
+        this.thread = new Thread(this::run, "oops-fakeirc-" + getPort());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Wait until the client has joined all of the given channels, returning
+     * whether it did so in time.
+     */
+    public synchronized boolean awaitJoined(Collection<String> chans,
+            long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline;
+        long left;
+
+        deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!this.joined.containsAll(chans)) {
+            left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+
+        return true;
+    }
+
+    /** Queue a line for the client; it is not sent until flush(). */
+    public synchronized void send(String line) throws IOException {
+        if (this.out == null) {
+            throw new IOException("no client connected");
+        }
+
+        this.out.write(line);
+        this.out.write("\r\n");
+    }
+
+    public synchronized void flush() throws IOException {
+        if (this.out != null) {
+            this.out.flush();
+        }
+    }
+
+    private void reply(String line) throws IOException {
+        synchronized (this) {
+            send(line);
+            flush();
+        }
+    }
+
+    private void numeric(String num, String rest) throws IOException {
+        send(":" + NAME + " " + num + " " + this.nick + " " + rest);
+    }
+
+    private void run() {
+        BufferedReader in;
+        String line;
+
+        try {
+            this.client = this.listener.accept();
+            this.client.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(
+                        this.client.getInputStream(), StandardCharsets.UTF_8));
+
+            synchronized (this) {
+                this.out = new BufferedWriter(new OutputStreamWriter(
+                            this.client.getOutputStream(),
+                            StandardCharsets.UTF_8), 1 << 16);
+            }
+
+            while ((line = in.readLine()) != null) {
+                this.received.increment();
+                handle(line);
+            }
+        } catch (IOException e) {
+            if (!this.listener.isClosed()) {
+                log.warn("fake IRC server connection failed", e);
+            }
+        }
+    }
+
+    private synchronized void handle(String line) throws IOException {
+        String[] args;
+        String cmd;
+
+        args = line.split(" ", 3);
+        cmd = args[0].toUpperCase();
+
+        if (cmd.equals("CAP") && args.length > 1
+                && args[1].equalsIgnoreCase("LS")) {
+            reply(":" + NAME + " CAP * LS :");
+        } else if (cmd.equals("NICK") && args.length > 1) {
+            this.nick = args[1];
+        } else if (cmd.equals("USER")) {
+            welcome();
+        } else if (cmd.equals("PING")) {
+            reply(":" + NAME + " PONG " + NAME + " "
+                    + (args.length > 1 ? args[1] : ""));
+        } else if (cmd.equals("JOIN") && args.length > 1) {
+            for (String chan : args[1].split(",")) {
+                join(chan);
+            }
+
+            notifyAll();
+        } else if (cmd.equals("MODE") && args.length == 2
+                && args[1].startsWith("#")) {
+            numeric("324", args[1] + " +nt");
+            flush();
+        } else if (cmd.equals("WHO") && args.length > 1) {
+            numeric("315", args[1] + " :End of /WHO list.");
+            flush();
+        }
+    }
+
+    private void welcome() throws IOException {
+        numeric("001", ":Welcome to the load test " + this.nick);
+        numeric("002", ":Your host is " + NAME);
+        numeric("003", ":This server was created just now");
+        numeric("004", NAME + " fake iosw biklmnopstv");
+        numeric("005", "CHANTYPES=# PREFIX=(ov)@+ CHANMODES=b,k,l,imnpst"
+                + " NETWORK=Load :are supported by this server");
+        numeric("375", ":- " + NAME + " Message of the day -");
+        numeric("376", ":End of /MOTD command.");
+        flush();
+    }
+
+    private void join(String chan) throws IOException {
+        Collection<String> nicks;
+        StringBuilder names;
+
+        send(":" + this.nick + "!oops@" + HOST + " JOIN " + chan);
+
+        nicks = this.members.get(chan);
+        names = new StringBuilder("@" + this.nick);
+        if (nicks != null) {
+            for (String n : nicks) {
+                if (names.length() > NAMES_LINE) {
+                    numeric("353", "= " + chan + " :" + names);
+                    names.setLength(0);
+                } else {
+                    names.append(' ');
+                }
+
+                names.append(n);
+            }
+        }
+
+        numeric("353", "= " + chan + " :" + names);
+        numeric("366", chan + " :End of /NAMES list.");
+        flush();
+
+        this.joined.add(chan);
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.listener.close();
+            if (this.client != null) {
+                this.client.close();
+            }
+        } catch (IOException e) {
+            log.warn("could not close fake IRC server", e);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.load;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.freedesktop.dbus.connections.impl.DBusConnection;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+import org.freedesktop.dbus.types.UInt64;
+
+import red.m_squa.oops.DBusPath;
+import red.m_squa.oops.Oops;
+import red.m_squa.oops.iface.Server;
+import red.m_squa.oops.iface.Stats;
+import red.m_squa.oops.irc.LatencyHistogram;
+import red.m_squa.oops.load.TrafficGenerator.Kind;
+
+/**
+ * Runs the whole proxy against a fake IRC server on a private bus, and
+ * reports how many of the generated events came out the other end as
+ * signals, and how long they took.
+ *
+ * Options are given as --name=value: rate (events per second), duration
+ * and warmup (seconds), channels, users, mix (for example
+ * privmsg=80,join=5,part=5,quit=5,mode=5), and any number of
+ * --def=key=value to add keys to the server definition.
+ */
+public class LoadTest {
+    private static final String BUSNAME = "red.m_squa.Oops";
+    private static final String PATH = "/red/m_squa/Oops";
+    private static final String SERVER = "load";
+    private static final long READY_TIMEOUT = 30;
+    private static final long DRAIN_TIMEOUT = 10;
+
+    private double rate = 1000;
+    private long duration = 30;
+    private long warmup = 5;
+    private int channels = 10;
+    private int users = 1000;
+    private final Map<Kind, Integer> mix = new EnumMap<>(Kind.class);
+    private final Properties def = new Properties();
+
+    private LoadTest() {
+        this.mix.put(Kind.PRIVMSG, 80);
+        this.mix.put(Kind.JOIN, 5);
+        this.mix.put(Kind.PART, 5);
+        this.mix.put(Kind.QUIT, 5);
+        this.mix.put(Kind.MODE, 5);
+    }
+
+    private void parse(String[] args) {
+        String[] kv;
+
+        for (String arg : args) {
+            kv = arg.replaceFirst("^--", "").split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("bad option: " + arg);
+            }
+
+            switch (kv[0]) {
+            case "rate":
+                this.rate = Double.parseDouble(kv[1]);
+                break;
+            case "duration":
+                this.duration = Long.parseLong(kv[1]);
+                break;
+            case "warmup":
+                this.warmup = Long.parseLong(kv[1]);
+                break;
+            case "channels":
+                this.channels = Integer.parseInt(kv[1]);
+                break;
+            case "users":
+                this.users = Integer.parseInt(kv[1]);
+                break;
+            case "mix":
+                this.mix.clear();
+                for (String m : kv[1].split(",")) {
+                    kv = m.split("=", 2);
+                    this.mix.put(Kind.valueOf(kv[0].toUpperCase()),
+                            Integer.parseInt(kv[1]));
+                }
+                break;
+            case "def":
+                kv = kv[1].split("=", 2);
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("bad option: " + arg);
+                }
+                this.def.setProperty(kv[0], kv[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+    }
+
+    /* write out the definition of a server pointing at the fake one */
+    private File define(List<String> chans, int port) throws IOException {
+        Properties srv;
+        File dir;
+
+        dir = Files.createTempDirectory("oops-load").toFile();
+        srv = new Properties();
+        srv.setProperty("nick", "oops");
+        srv.setProperty("ircname", "oops");
+        srv.setProperty("realname", "Oops load test");
+        srv.setProperty("server", "127.0.0.1");
+        srv.setProperty("port", Integer.toString(port));
+        srv.setProperty("autojoin", String.join(",", chans));
+        srv.putAll(this.def);
+
+        try (OutputStream os = new FileOutputStream(new File(dir, SERVER))) {
+            srv.store(os, "load test");
+        }
+
+        return dir;
+    }
+
+    /* wait for the proxy to have seen everyone in every channel */
+    private boolean awaitUsers(Server server, List<String> chans,
+            long timeout) throws InterruptedException {
+        long deadline;
+        int want;
+        int have;
+
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        want = this.users + chans.size();
+
+        do {
+            have = 0;
+            try {
+                for (String c : chans) {
+                    have += server.GetChannelUsers(c).length;
+                }
+            } catch (DBusExecutionException dee) {
+                /* not joined yet */
+            }
+
+            if (have >= want) {
+                return true;
+            }
+
+            Thread.sleep(100);
+        } while (System.nanoTime() < deadline);
+
+        return false;
+    }
+
+    private static long stat(Stats stats, String key) {
+        UInt64 v;
+
+        v = stats.GetStats().get(key);
+        return (v == null) ? 0 : v.longValue();
+    }
+
+    private void run() throws Exception {
+        List<String> chans;
+        File dir;
+        Oops oops;
+        Thread main;
+        DBusConnection conn;
+        DBusConnection control;
+        Stats stats;
+        Server server;
+        TrafficGenerator gen;
+
+        chans = new ArrayList<>();
+        for (int i = 0; i < this.channels; i++) {
+            chans.add("#load" + i);
+        }
+
+        try (PrivateBus bus = new PrivateBus();
+                FakeIrcServer irc = new FakeIrcServer();
+                SignalCollector sink = new SignalCollector(bus.getAddress(),
+                    PATH + "/" + SERVER)) {
+            System.out.println("bus: " + bus.getAddress());
+
+            gen = new TrafficGenerator(irc, chans, this.users, this.mix,
+                    this.rate);
+            irc.start();
+            dir = this.define(chans, irc.getPort());
+
+            /* separate connections, so that the proxy's signals and our
+             * method calls do not queue up behind each other */
+            conn = DBusConnection.getConnection(bus.getAddress(), true,
+                    false);
+            control = DBusConnection.getConnection(bus.getAddress(), true,
+                    false);
+            oops = new Oops(dir, conn, new DBusPath(PATH));
+            conn.exportObject(PATH, oops);
+            conn.requestBusName(BUSNAME);
+
+            main = new Thread(oops::go, "oops-load-main");
+            main.start();
+
+            oops.LoadServer(SERVER);
+
+            server = control.getRemoteObject(BUSNAME,
+                    PATH + "/" + SERVER, Server.class);
+            stats = control.getRemoteObject(BUSNAME,
+                    PATH + "/" + SERVER, Stats.class);
+
+            if (!irc.awaitJoined(chans, READY_TIMEOUT, TimeUnit.SECONDS)
+                    || !this.awaitUsers(server, chans, READY_TIMEOUT)) {
+                throw new IOException("proxy did not join the channels");
+            }
+
+            if (this.warmup > 0) {
+                System.out.printf("warming up for %ds%n", this.warmup);
+                this.phase(gen, sink, stats, this.warmup);
+            }
+
+            System.out.printf("generating %.0f events/s for %ds across "
+                    + "%d channels and %d users%n", this.rate,
+                    this.duration, this.channels, this.users);
+            this.phase(gen, sink, stats, this.duration);
+
+            this.report(gen, sink, stats);
+
+            oops.Shutdown();
+            main.join(TimeUnit.SECONDS.toMillis(DRAIN_TIMEOUT));
+            control.disconnect();
+            conn.disconnect();
+
+            Files.walk(dir.toPath()).sorted(Comparator.reverseOrder())
+                .map(p -> p.toFile()).forEach(File::delete);
+        }
+    }
+
+    /*
+     * Generate traffic for the given number of seconds, reporting once a
+     * second until the generator finishes and the signals stop coming.
+     * Counts start again from zero.
+     */
+    private void phase(TrafficGenerator gen, SignalCollector sink,
+            Stats stats, long seconds) throws InterruptedException {
+        Thread thread;
+        long start;
+        long last;
+        long now;
+        long lastsent;
+        long lastrecv;
+
+        gen.reset();
+        sink.reset();
+        stats.ResetStats();
+
+        thread = new Thread(() ->
+                gen.generate(TimeUnit.SECONDS.toNanos(seconds)),
+                "oops-load-generator");
+        thread.setDaemon(true);
+        thread.start();
+
+        start = System.nanoTime();
+        last = start;
+        lastsent = 0;
+        lastrecv = 0;
+
+        while (thread.isAlive()
+                || (sink.getReceived() < gen.getSent()
+                    && System.nanoTime() - last
+                        < TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT))) {
+            Thread.sleep(1000);
+            now = System.nanoTime();
+            System.out.printf("%4ds  sent %8d/s  received %8d/s  "
+                    + "behind %8d  queued %6d  dropped %8d%n",
+                    TimeUnit.NANOSECONDS.toSeconds(now - start),
+                    gen.getSent() - lastsent,
+                    sink.getReceived() - lastrecv,
+                    gen.getSent() - sink.getReceived(),
+                    stat(stats, "signal-queue-depth"),
+                    stat(stats, "signals-dropped"));
+
+            if (sink.getReceived() != lastrecv || thread.isAlive()) {
+                last = now;
+            }
+
+            lastsent = gen.getSent();
+            lastrecv = sink.getReceived();
+        }
+    }
+
+    private void report(TrafficGenerator gen, SignalCollector sink,
+            Stats stats) {
+        LatencyHistogram.Snapshot latency;
+        Map<String, Long> desc;
+
+        System.out.println();
+        System.out.printf("%-8s %10s %10s %10s%n", "event", "sent",
+                "received", "missing");
+        for (Kind k : Kind.values()) {
+            System.out.printf("%-8s %10d %10d %10d%n",
+                    k.name().toLowerCase(), gen.getSent(k),
+                    sink.getReceived(k),
+                    gen.getSent(k) - sink.getReceived(k));
+        }
+
+        System.out.printf("%-8s %10d %10d %10d%n", "total", gen.getSent(),
+                sink.getReceived(), gen.getSent() - sink.getReceived());
+
+        System.out.println();
+        System.out.println("proxy:");
+        for (Map.Entry<String, UInt64> e : stats.GetStats().entrySet()) {
+            System.out.printf("  %-28s %12d%n", e.getKey(),
+                    e.getValue().longValue());
+        }
+
+        latency = sink.getLatency();
+        desc = new LinkedHashMap<>();
+        latency.describe("end-to-end", desc);
+
+        System.out.println();
+        System.out.println("latency, from fake server to bus client:");
+        for (Map.Entry<String, Long> e : desc.entrySet()) {
+            System.out.printf("  %-28s %12d%n", e.getKey(), e.getValue());
+        }
+    }
+
+    public static void main(String[] args) {
+        LoadTest test;
+
+        test = new LoadTest();
+
+        try {
+            test.parse(args);
+            test.run();
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.exit(2);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.load;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A dbus-daemon of our own, so that load tests neither need nor disturb
+ * the session bus.
+ */
+public class PrivateBus implements AutoCloseable {
+    private final Process daemon;
+    private final String address;
+
+    public PrivateBus() throws IOException {
+        BufferedReader out;
+
+        this.daemon = new ProcessBuilder("dbus-daemon", "--session",
+                "--nofork", "--print-address=1")
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+
+        out = new BufferedReader(new InputStreamReader(
+                    this.daemon.getInputStream(), StandardCharsets.UTF_8));
+        this.address = out.readLine();
+
+        if (this.address == null || this.address.isEmpty()) {
+            this.daemon.destroy();
+            throw new IOException("dbus-daemon did not report its address");
+        }
+    }
+
+    public String getAddress() {
+        return this.address;
+    }
+
+    @Override
+    public void close() {
+        this.daemon.destroy();
+    }
+}
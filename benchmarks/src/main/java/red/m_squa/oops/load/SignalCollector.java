@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.load;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.freedesktop.dbus.DBusMatchRule;
+import org.freedesktop.dbus.connections.impl.DBusConnection;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.interfaces.DBusSigHandler;
+import org.freedesktop.dbus.messages.DBusSignal;
+
+import red.m_squa.oops.iface.Output;
+import red.m_squa.oops.irc.LatencyHistogram;
+import red.m_squa.oops.load.TrafficGenerator.Kind;
+
+/**
+ * Subscribes to the signals a TrafficGenerator should cause, on its own
+ * bus connection, counting them and measuring the latency between the
+ * fake server sending an event and its signal arriving here.
+ */
+public class SignalCollector implements AutoCloseable {
+    private static final String OUTPUT_IFACE = "red.m_squa.oops.Server.Output";
+
+    private final DBusConnection conn;
+    private final String path;
+    private final Map<Kind, LongAdder> received;
+    private final LatencyHistogram latency;
+
+    /** Subscribe to signals from the server object at the given path. */
+    public SignalCollector(String address, String path)
+        throws DBusException {
+        this.conn = DBusConnection.getConnection(address, true, false);
+        this.path = path;
+        this.received = new EnumMap<>(Kind.class);
+        this.latency = new LatencyHistogram();
+
+        for (Kind k : Kind.values()) {
+            this.received.put(k, new LongAdder());
+        }
+
+        this.subscribe(Output.PrivMsg.class, Kind.PRIVMSG, s -> s.msg);
+        this.subscribe(Output.Join.class, Kind.JOIN, s -> null);
+        this.subscribe(Output.Part.class, Kind.PART, s -> s.reason);
+        this.subscribeQuit();
+        this.subscribe(Output.Mode.class, Kind.MODE, s -> null);
+    }
+
+    private <T extends DBusSignal> void subscribe(Class<T> type, Kind kind,
+            Function<T, String> text) throws DBusException {
+        this.conn.addSigHandler(type, (DBusSigHandler<T>) sig -> {
+            if (this.path.equals(sig.getPath())) {
+                this.received(kind, text.apply(sig));
+            }
+        });
+    }
+
+    /*
+     * dbus-java will not pass a received signal to a constructor taking a
+     * String[], which Output.Quit has, so quits are taken apart by hand.
+     */
+    private void subscribeQuit() throws DBusException {
+        this.conn.addGenericSigHandler(new DBusMatchRule("signal",
+                    OUTPUT_IFACE, "Quit"), sig -> {
+            if (this.path.equals(sig.getPath())) {
+                try {
+                    this.received(Kind.QUIT, (String) sig.getParameters()[2]);
+                } catch (DBusException dbe) {
+                    this.received(Kind.QUIT, null);
+                }
+            }
+        });
+    }
+
+    private void received(Kind kind, String text) {
+        long sent;
+
+        this.received.get(kind).increment();
+        sent = TrafficGenerator.timestamp(text);
+        if (sent > 0) {
+            this.latency.record(System.nanoTime() - sent);
+        }
+    }
+
+    public long getReceived(Kind kind) {
+        return this.received.get(kind).sum();
+    }
+
+    public long getReceived() {
+        long n;
+
+        n = 0;
+        for (LongAdder a : this.received.values()) {
+            n += a.sum();
+        }
+
+        return n;
+    }
+
+    public LatencyHistogram.Snapshot getLatency() {
+        return this.latency.snapshot();
+    }
+
+    /** Forget everything received so far. */
+    public void reset() {
+        for (LongAdder a : this.received.values()) {
+            a.reset();
+        }
+
+        this.latency.reset();
+    }
+
+    @Override
+    public void close() {
+        this.conn.disconnect();
+    }
+}
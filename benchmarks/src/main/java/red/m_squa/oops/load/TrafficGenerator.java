@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.load;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes a weighted mix of channel traffic at a FakeIrcServer at a
+ * target rate.  Users each have a home channel, which they are either in
+ * or not; the generator only ever sends events which are consistent with
+ * that, so every event it sends should turn into exactly one signal.
+ *
+ * Message texts, part and quit reasons carry the System.nanoTime at
+ * which they were generated, so that the receiving end can measure
+ * latency.
+ */
+public class TrafficGenerator {
+    public enum Kind {
+        PRIVMSG, JOIN, PART, QUIT, MODE;
+
+        /** Whether events of this kind carry a timestamp. */
+        public boolean isTimed() {
+            return this == PRIVMSG || this == PART || this == QUIT;
+        }
+    }
+
+    public static final String MARK = "load";
+
+    private final FakeIrcServer server;
+    private final List<String> channels;
+    private final Map<Kind, Integer> mix;
+    private final int total;
+    private final double rate;
+    private final Map<Kind, LongAdder> sent;
+    private final SplittableRandom random;
+
+    /* indices into the user list, by whether they are in their channel */
+    private final int[] present;
+    private final int[] absent;
+    private final int[] where;
+    private final boolean[] in;
+    private int npresent;
+    private int nabsent;
+    private long seq;
+
+    /**
+     * Create a generator for the given server and channels, which sends
+     * events at the given rate per second.  Everyone starts out in their
+     * home channel.
+     */
+    public TrafficGenerator(FakeIrcServer server, List<String> channels,
+            int users, Map<Kind, Integer> mix, double rate) {
+        List<List<String>> members;
+        int sum;
+
+        this.server = server;
+        this.channels = channels;
+        this.mix = new EnumMap<>(mix);
+        this.rate = rate;
+        this.sent = new EnumMap<>(Kind.class);
+        this.random = new SplittableRandom(42);
+        this.present = new int[users];
+        this.absent = new int[users];
+        this.where = new int[users];
+        this.in = new boolean[users];
+
+        sum = 0;
+        for (Kind k : Kind.values()) {
+            this.sent.put(k, new LongAdder());
+            sum += this.mix.getOrDefault(k, 0);
+        }
+
+        if (sum <= 0) {
+            throw new IllegalArgumentException("empty traffic mix");
+        }
+
+        this.total = sum;
+
+        members = new ArrayList<>();
+        for (int i = 0; i < channels.size(); i++) {
+            members.add(new ArrayList<>());
+        }
+
+        for (int u = 0; u < users; u++) {
+            members.get(u % channels.size()).add(nick(u));
+            this.present[u] = u;
+            this.where[u] = u;
+            this.in[u] = true;
+        }
+
+        this.npresent = users;
+        this.nabsent = 0;
+
+        for (int i = 0; i < channels.size(); i++) {
+            server.setMembers(channels.get(i), members.get(i));
+        }
+    }
+
+    public static String nick(int user) {
+        return "u" + user;
+    }
+
+    /**
+     * Extract the send timestamp from a message text or reason, or -1 if
+     * it has none.
+     */
+    public static long timestamp(String text) {
+        int sp;
+
+        if (text == null || !text.startsWith(MARK + " ")) {
+            return -1;
+        }
+
+        sp = text.lastIndexOf(' ');
+        try {
+            return Long.parseLong(text.substring(sp + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public long getSent(Kind kind) {
+        return this.sent.get(kind).sum();
+    }
+
+    public long getSent() {
+        long n;
+
+        n = 0;
+        for (LongAdder a : this.sent.values()) {
+            n += a.sum();
+        }
+
+        return n;
+    }
+
+    /** Forget how many events have been sent. */
+    public void reset() {
+        for (LongAdder a : this.sent.values()) {
+            a.reset();
+        }
+    }
+
+    /** Send events for the given number of nanoseconds. */
+    public void generate(long duration) {
+        long start;
+        long interval;
+        long next;
+        long now;
+
+        interval = (long) (1e9 / this.rate);
+        start = System.nanoTime();
+        next = start;
+
+        try {
+            while (next - start < duration) {
+                now = System.nanoTime();
+                if (next - now > 0) {
+                    /* ahead of schedule, so push out what we have */
+                    this.server.flush();
+                    LockSupport.parkNanos(next - now);
+                }
+
+                step();
+                next += interval;
+            }
+
+            this.server.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("could not send traffic", e);
+        }
+    }
+
+    private synchronized void step() throws IOException {
+        Kind kind;
+        int user;
+        String nick;
+        String chan;
+        String stamp;
+
+        kind = pick();
+        if (kind == Kind.JOIN) {
+            if (this.nabsent == 0) {
+                kind = Kind.PRIVMSG;
+            }
+        } else if (this.npresent == 0) {
+            kind = Kind.JOIN;
+        }
+
+        if (kind == Kind.JOIN) {
+            user = this.absent[this.random.nextInt(this.nabsent)];
+        } else {
+            user = this.present[this.random.nextInt(this.npresent)];
+        }
+
+        nick = nick(user);
+        chan = this.channels.get(user % this.channels.size());
+        stamp = MARK + " " + this.seq++ + " " + System.nanoTime();
+
+        switch (kind) {
+        case PRIVMSG:
+            this.server.send(":" + mask(nick) + " PRIVMSG " + chan + " :"
+                    + stamp);
+            break;
+        case JOIN:
+            this.server.send(":" + mask(nick) + " JOIN " + chan);
+            move(user, true);
+            break;
+        case PART:
+            this.server.send(":" + mask(nick) + " PART " + chan + " :"
+                    + stamp);
+            move(user, false);
+            break;
+        case QUIT:
+            this.server.send(":" + mask(nick) + " QUIT :" + stamp);
+            move(user, false);
+            break;
+        case MODE:
+            this.server.send(":" + mask(nick) + " MODE " + chan
+                    + (this.random.nextBoolean() ? " +v " : " -v ") + nick);
+            break;
+        }
+
+        this.sent.get(kind).increment();
+    }
+
+    private Kind pick() {
+        int n;
+
+        n = this.random.nextInt(this.total);
+        for (Map.Entry<Kind, Integer> e : this.mix.entrySet()) {
+            n -= e.getValue();
+            if (n < 0) {
+                return e.getKey();
+            }
+        }
+
+        return Kind.PRIVMSG;
+    }
+
+    private static String mask(String nick) {
+        return nick + "!load@" + FakeIrcServer.HOST;
+    }
+
+    /* move a user between the present and absent sets */
+    private void move(int user, boolean join) {
+        int[] from;
+        int[] to;
+        int last;
+        int idx;
+
+        if (this.in[user] == join) {
+            return;
+        }
+
+        from = join ? this.absent : this.present;
+        to = join ? this.present : this.absent;
+        idx = this.where[user];
+
+        if (join) {
+            last = from[--this.nabsent];
+        } else {
+            last = from[--this.npresent];
+        }
+
+        from[idx] = last;
+        this.where[last] = idx;
+
+        if (join) {
+            idx = this.npresent++;
+        } else {
+            idx = this.nabsent++;
+        }
+
+        to[idx] = user;
+        this.where[user] = idx;
+        this.in[user] = join;
+    }
+}
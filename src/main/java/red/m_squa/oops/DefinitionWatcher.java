@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the configuration directory for changed server definitions.
+ * Changes are collected until the directory has been quiet for a short
+ * while, so that many files touched at once are handled in one go, and
+ * each changed definition is then passed to a callback once. If events
+ * were lost, every definition in the directory is passed to the callback,
+ * which is left to work out which of them have really changed.
+ */
+public class DefinitionWatcher {
+    private static final Logger log =
+        LoggerFactory.getLogger(DefinitionWatcher.class);
+    private static final long SETTLE_TIME = 500;
+
+    private final File confdir;
+    private final Consumer<String> callback;
+    private final Thread thread;
+    private WatchService watcher;
+
+    public DefinitionWatcher(File confdir, Consumer<String> callback) {
+        this.confdir = confdir;
+        this.callback = callback;
+
+        this.thread = new Thread(this::run, "oops-definition-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() throws IOException {
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.confdir.toPath().register(this.watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread.start();
+    }
+
+    public void stop() {
+        try {
+            this.watcher.close();
+        } catch (IOException ioe) {
+            log.warn("Could not close definition watcher: " + ioe);
+        }
+    }
+
+    /* every definition in the directory, for when events have been lost */
+    private void rescan(Set<String> changed) {
+        File[] files;
+
+        files = this.confdir.listFiles();
+        if (files == null) {
+            log.warn("Could not list configuration directory " +
+                    this.confdir);
+            return;
+        }
+
+        for (File f: files) {
+            if (f.isFile() && DBusPath.isValidPathComponent(f.getName())) {
+                changed.add(f.getName());
+            }
+        }
+    }
+
+    private void collect(WatchKey key, Set<String> changed) {
+        Path p;
+
+        for (WatchEvent<?> ev: key.pollEvents()) {
+            if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                log.warn("Missed definition change events, rescanning " +
+                        "all definitions");
+                this.rescan(changed);
+                continue;
+            }
+
+            p = (Path) ev.context();
+            if (DBusPath.isValidPathComponent(p.toString())) {
+                changed.add(p.toString());
+            }
+        }
+
+        key.reset();
+    }
+
+    private void run() {
+        Set<String> changed;
+        WatchKey key;
+
+        changed = new LinkedHashSet<>();
+
+        try {
+            while (true) {
+                this.collect(this.watcher.take(), changed);
+
+                /* wait for the directory to settle */
+                while ((key = this.watcher.poll(SETTLE_TIME,
+                                TimeUnit.MILLISECONDS)) != null) {
+                    this.collect(key, changed);
+                }
+
+                for (String name: changed) {
+                    try {
+                        this.callback.accept(name);
+                    } catch (RuntimeException re) {
+                        log.error("Error applying changed definition for " +
+                                "server " + name + ": " + re);
+                    }
+                }
+
+                changed.clear();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Definition watcher stopped");
+        }
+    }
+}
@@ -26,16 +26,32 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLSocketFactory;
 
 import org.freedesktop.dbus.connections.impl.DBusConnection;
 import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+import org.freedesktop.dbus.interfaces.DBus;
 import org.freedesktop.dbus.messages.DBusSignal;
+import org.freedesktop.dbus.types.UInt64;
 
 import org.pircbotx.Configuration;
 import org.pircbotx.MultiBotManager;
@@ -48,9 +64,6 @@ import org.pircbotx.hooks.managers.SequentialListenerManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-
 import red.m_squa.pircbotx.CallbackBotManager;
 
 import red.m_squa.oops.DBusPath;
@@ -64,16 +77,67 @@ import red.m_squa.oops.except.ServerNotFound;
 import red.m_squa.oops.except.ServerNotLoaded;
 import red.m_squa.oops.except.ServerStopping;
 import red.m_squa.oops.iface.Manager;
+import red.m_squa.oops.iface.Stats;
 import red.m_squa.oops.irc.ChannelOutputListener;
+import red.m_squa.oops.irc.ChannelStateListener;
 import red.m_squa.oops.irc.DBusPircBotX;
+import red.m_squa.oops.irc.EventBatcher;
+import red.m_squa.oops.irc.EventJournal;
+import red.m_squa.oops.irc.NioTransport;
+import red.m_squa.oops.irc.OutboundScheduler;
+import red.m_squa.oops.irc.OutboundSpool;
+import red.m_squa.oops.irc.Scrollback;
+import red.m_squa.oops.irc.SearchIndex;
 import red.m_squa.oops.irc.ServerOutputListener;
+import red.m_squa.oops.irc.ServerStats;
+import red.m_squa.oops.irc.SettingsListener;
+import red.m_squa.oops.irc.SignalEmitter;
+import red.m_squa.oops.irc.SignalFilter;
+import red.m_squa.oops.irc.TrafficCapture;
+import red.m_squa.oops.jfr.ServerLifecycleEvent;
 
 
-public class Oops implements Manager {
+public class Oops implements Manager, Stats {
     private static final String OOPS_BUSNAME = "red.m_squa.Oops";
     private static final String OOPS_PATH = "/red/m_squa/Oops";
     private static final Logger log = LoggerFactory.getLogger(Oops.class);
-    private static final long UNEXPORT_DELAY = 5000;
+    private static final long UNEXPORT_DELAY =
+        Long.getLong("red.m_squa.oops.unexportDelay", 5000);
+    private static final long SHUTDOWN_TIMEOUT =
+        Long.getLong("red.m_squa.oops.shutdownTimeout", 30000);
+    private static final int LOAD_THREADS =
+        Integer.getInteger("red.m_squa.oops.loadThreads", 16);
+    private static final boolean AUTOLOAD =
+        Boolean.getBoolean("red.m_squa.oops.autoload");
+    private static final boolean WATCH =
+        Boolean.getBoolean("red.m_squa.oops.watch");
+    /* bytes of scrollback kept across all servers */
+    private static final long SCROLLBACK_BUDGET =
+        Long.getLong("red.m_squa.oops.scrollbackBudget", 64 * 1024 * 1024);
+    /* threads shared by all servers using the selector transport */
+    private static final int NIO_SELECTORS =
+        Integer.getInteger("red.m_squa.oops.nioSelectors", 1);
+    private static final int NIO_WORKERS =
+        Integer.getInteger("red.m_squa.oops.nioWorkers",
+                Runtime.getRuntime().availableProcessors());
+    private static final int RECONNECT_DELAY = 10000;
+
+    /* definition keys whose changes can be applied without reconnecting */
+    private static final Set<String> LIVE_KEYS = new HashSet<>(
+            Arrays.asList("nick", "usermodes", "autojoin"));
+    private static final int DEFAULT_SIGNAL_QUEUE_SIZE = 1024;
+    private static final int DEFAULT_BATCH_LINGER = 50;
+    private static final int DEFAULT_FLOOD_BURST = 4;
+    private static final int DEFAULT_FLOOD_INTERVAL = 1000;
+    private static final int DEFAULT_OUTBOUND_QUEUE_SIZE = 256;
+    private static final int DEFAULT_SPOOL_MAX_AGE = 3600;
+    private static final int DEFAULT_SPOOL_SYNC_INTERVAL = 200;
+    private static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_JOURNAL_MAX_SIZE = 1024;
+    private static final int DEFAULT_JOURNAL_QUEUE_SIZE = 8192;
+    private static final int DEFAULT_SEARCH_BUCKET_HOURS = 24;
+    private static final int DEFAULT_SEARCH_QUEUE_SIZE = 4096;
+    private static final int DEFAULT_CAPTURE_QUEUE_SIZE = 16384;
 
     private enum OopsState {
         RUNNING,
@@ -83,21 +147,62 @@ public class Oops implements Manager {
     private DBusPath path;
     private DBusConnection conn;
     private CallbackBotManager manager;
-    private BiMap<String, Integer> botnames;
-    private Object statelock;
-    private OopsState state;
+    private ServerRegistry servers;
+    private volatile OopsState state;
     private File confdir;
     private CountDownLatch latch;
+    private SubscriptionRegistry subs;
+    private ScheduledExecutorService unexporter;
+    private Map<String, PendingUnexport> unexports;
+    private ExecutorService loader;
+    private Set<String> reloads;
+    private Scrollback.Budget scrollbudget;
+    private NioTransport transport;
+
+    /* delayed removal of a stopped server's object from the bus, giving
+     * clients time to react to the ServerStopped signal */
+    private class PendingUnexport implements Runnable {
+        private final String name;
+        private ScheduledFuture<?> future;
+
+        public PendingUnexport(String name) {
+            this.name = name;
+        }
+
+        public void run() {
+            Oops.this.unexports.computeIfPresent(this.name, (k, v) -> {
+                if (v == this) {
+                    Oops.this.unexportServer(this.name);
+                    return null;
+                }
+
+                return v;
+            });
+        }
+    }
 
     public Oops(File confdir, DBusConnection conn, DBusPath path) {
         this.confdir = confdir;
         this.conn = conn;
         this.path = path;
 
-        this.botnames = HashBiMap.create();
-        this.statelock = new Object();
+        this.servers = new ServerRegistry();
         this.state = OopsState.RUNNING;
         this.latch = new CountDownLatch(1);
+        this.subs = new SubscriptionRegistry();
+        this.unexports = new ConcurrentHashMap<>();
+        this.reloads = ConcurrentHashMap.newKeySet();
+        this.scrollbudget = new Scrollback.Budget(Oops.SCROLLBACK_BUDGET);
+        this.loader = Executors.newFixedThreadPool(Oops.LOAD_THREADS, r -> {
+            Thread t = new Thread(r, "oops-loader");
+            t.setDaemon(true);
+            return t;
+        });
+        this.unexporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "oops-unexport");
+            t.setDaemon(true);
+            return t;
+        });
 
         this.manager = new CallbackBotManager(
             (b,v) -> this.removeBot(b, false),
@@ -105,11 +210,41 @@ public class Oops implements Manager {
     }
 
     public void go() {
+        DefinitionWatcher watcher;
         boolean again;
 
+        watcher = null;
+
+        /* drop the subscriptions of clients which leave the bus */
+        try {
+            this.conn.addSigHandler(DBus.NameOwnerChanged.class, sig -> {
+                if (sig.newOwner.isEmpty()) {
+                    this.subs.removeClient(sig.name);
+                }
+            });
+        } catch (DBusException dbe) {
+            log.error("Could not watch for bus clients leaving: " +
+                    dbe.getMessage());
+        }
+
         log.info("Starting bot manager...");
         this.manager.start();
 
+        if (Oops.AUTOLOAD) {
+            this.autoload();
+        }
+
+        if (Oops.WATCH) {
+            watcher = new DefinitionWatcher(this.confdir,
+                    this::reloadDefinition);
+
+            try {
+                watcher.start();
+            } catch (IOException ioe) {
+                log.error("Could not watch configuration directory: " + ioe);
+            }
+        }
+
         do {
             again = false;
 
@@ -122,6 +257,59 @@ public class Oops implements Manager {
         } while (again);
 
         log.info("Bot manager terminated");
+
+        if (watcher != null) {
+            watcher.stop();
+        }
+
+        this.awaitUnexports();
+    }
+
+    /**
+     * Wait for all delayed unexports to complete, up to the shutdown
+     * timeout, and unexport whatever remains after that.
+     */
+    private void awaitUnexports() {
+        boolean done;
+
+        /* delayed tasks still run after shutdown() */
+        this.unexporter.shutdown();
+
+        try {
+            done = this.unexporter.awaitTermination(Oops.SHUTDOWN_TIMEOUT,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            done = false;
+        }
+
+        if (!done) {
+            log.warn("Timed out waiting for server objects to be unexported");
+            this.unexporter.shutdownNow();
+
+            for (String name: this.unexports.keySet()) {
+                this.unexports.computeIfPresent(name, (k, v) -> {
+                    this.unexportServer(name);
+                    return null;
+                });
+            }
+        }
+    }
+
+    private void unexportServer(String name) {
+        log.debug("Unexporting object for server: " + name);
+        this.conn.unExportObject(this.path.appendPath(name).getPath());
+    }
+
+    /**
+     * Unexport the object of a previous instance of a server immediately, if
+     * it is still waiting to be unexported.
+     */
+    private void cancelUnexport(String name) {
+        this.unexports.computeIfPresent(name, (k, v) -> {
+            v.future.cancel(false);
+            this.unexportServer(name);
+            return null;
+        });
     }
 
     public boolean isRemote() {
@@ -171,52 +359,27 @@ public class Oops implements Manager {
         return ret;
     }
 
-    public void LoadServer(String name) throws ServerLoadError {
-        ChannelOutputListener col;
-        Configuration.Builder conf;
-        DBusPath newpath;
-        DBusPircBotX bot;
-        File cfgfile;
-        FileInputStream fis;
-        InetAddress source;
-        Properties srv;
-        SequentialListenerManager slm;
-        ServerOutputListener sol;
-        String prop, initmodes;
-        String[] split;
-        boolean defined;
-        boolean stopping;
-
-        stopping = false;
-        synchronized (this.statelock) {
-            if (this.state == OopsState.STOPPING) {
-                stopping = true;
-            }
+    private int getIntKey(Properties prop, String name, int def)
+        throws MalformedServerDefinition {
+        if (prop.getProperty(name) == null) {
+            return def;
         }
 
-        if (stopping) {
-            log.warn("Attempting to load server definition into stopping manager");
-            throw new ServerStopping();
-        }
-
-        log.info("Loading server definition for server: " + name);
-
-        if (!DBusPath.isValidPathComponent(name)) {
-            log.warn("Attempting to load server with invalid name: " + name);
-            throw new BadServerName(name);
-        }
-
-        defined = false;
-        synchronized (this.statelock) {
-            if (this.botnames.containsKey(name)) {
-                defined = true;
-            }
+        try {
+            return this.getIntKey(prop, name);
+        } catch (IncompleteServerDefinition isd) {
+            /* not reached, as the key is known to be present */
+            return def;
         }
+    }
 
-        if (defined) {
-            log.warn("Attempting to load already-defined server: " + name);
-            throw new ServerExists(name);
-        }
+    /**
+     * Read the properties file defining a server.
+     */
+    private Properties readDefinition(String name) throws ServerLoadError {
+        File cfgfile;
+        FileInputStream fis;
+        Properties srv;
 
         cfgfile = new File(this.confdir, name);
         srv = new Properties();
@@ -236,34 +399,155 @@ public class Oops implements Manager {
         } catch (IllegalArgumentException iae) {
             log.warn("Server definition file malformed: " + name);
             throw new MalformedServerDefinition(name);
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException ioe) {
+                log.warn("I/O error when closing server definition file " +
+                        "for: " + name);
+            }
+        }
+
+        return srv;
+    }
+
+    /**
+     * Parse the autojoin list of a server definition into a map of channel
+     * names to keys, where channels without a key map to null.
+     */
+    private Map<String, String> parseAutojoin(Properties srv, String name)
+        throws MalformedServerDefinition {
+        Map<String, String> ret;
+        String prop;
+        String[] split;
+
+        ret = new LinkedHashMap<>();
+        prop = srv.getProperty("autojoin");
+
+        if (prop == null) {
+            return ret;
+        }
+
+        log.debug("Processing autojoin list for server: " + name);
+
+        for (String s: prop.split("[,\\s]+")) {
+            if (s.isEmpty()) {
+                continue;
+            } else if (s.contains(":")) {
+                split = s.split(":");
+                if (split.length != 2) {
+                    log.warn("Malformed autojoin channel specification " +
+                            "for serer: " + name);
+                    throw new MalformedServerDefinition(
+                        String.format("bad channel definition: '%s'",
+                                prop));
+                } else {
+                    ret.put(split[0], split[1]);
+                }
+            } else {
+                ret.put(s, null);
+            }
         }
 
+        return ret;
+    }
+
+    public void LoadServer(String name) throws ServerLoadError {
+        ServerLifecycleEvent ev;
+
+        ev = new ServerLifecycleEvent();
+        ev.begin();
+
         try {
-            fis.close();
-        } catch (IOException ioe) {
-            log.warn("I/O error when closing server definition file for: " +
-                    name);
+            this.doLoadServer(name);
+        } catch (DBusExecutionException dee) {
+            ev.error = dee.getClass().getSimpleName();
+            throw dee;
+        } finally {
+            ev.end();
+            if (ev.shouldCommit()) {
+                ev.server = name;
+                ev.action = "load";
+                ev.commit();
+            }
+        }
+    }
+
+    private void doLoadServer(String name) throws ServerLoadError {
+        ChannelOutputListener col;
+        Configuration.Builder conf;
+        DBusPath newpath;
+        DBusPircBotX bot;
+        InetAddress source;
+        OutboundScheduler outbound;
+        OutboundSpool spool;
+        Scrollback scrollback;
+        EventJournal journal;
+        SearchIndex search;
+        TrafficCapture capture;
+        NioTransport nio;
+        NioTransport.Security security;
+        Map<String, String> autojoin;
+        Properties srv;
+        SequentialListenerManager slm;
+        ServerOutputListener sol;
+        SignalEmitter emitter;
+        SignalEmitter.OverflowPolicy overflow;
+        SignalFilter filter;
+        String initmodes;
+        ServerRegistry.Entry entry;
+        int queuesize, batchsize, batchlinger;
+        int floodburst, floodinterval, outqueuesize, spoolage, spoolsync;
+        int scrollsize, jsegsize, jmaxage, jmaxsize, jqueuesize;
+        int searchhours, searchqueue, capturequeue;
+
+        if (this.state == OopsState.STOPPING) {
+            log.warn("Attempting to load server definition into stopping manager");
+            throw new ServerStopping();
         }
 
+        log.info("Loading server definition for server: " + name);
+
+        if (!DBusPath.isValidPathComponent(name)) {
+            log.warn("Attempting to load server with invalid name: " + name);
+            throw new BadServerName(name);
+        }
+
+        if (this.servers.contains(name)) {
+            log.warn("Attempting to load already-defined server: " + name);
+            throw new ServerExists(name);
+        }
+
+        srv = this.readDefinition(name);
         conf = new Configuration.Builder();
 
         /* default values */
-        conf.setAutoReconnectDelay(new StaticDelay(10000));
+        conf.setAutoReconnectDelay(new StaticDelay(Oops.RECONNECT_DELAY));
         conf.setAutoNickChange(true);
 
+        /* every outgoing line is paced by our own scheduler instead */
+        conf.setMessageDelay(new StaticDelay(0));
+
+        /* lets received lines be captured */
+        conf.setBotFactory(new DBusPircBotX.Factory());
+
         conf.setName(this.getStringKey(srv, "nick"));
         conf.setLogin(this.getStringKey(srv, "ircname"));
         conf.setRealName(this.getStringKey(srv, "realname"));
         conf.addServer(this.getStringKey(srv, "server"),
                 this.getIntKey(srv, "port"));
 
+        /* the selector transport does its own TLS, given only the kind */
+        security = NioTransport.Security.PLAIN;
         if (srv.getProperty("insecuressl") != null) {
             log.debug("Enabling insecure TLS connection for server: " + name);
             conf.setSocketFactory(new UtilSSLSocketFactory().
                     trustAllCertificates());
+            security = NioTransport.Security.TLS_INSECURE;
         } else if (srv.getProperty("ssl") != null) {
             log.debug("Enabling TLS connection for server: " + name);
             conf.setSocketFactory(SSLSocketFactory.getDefault());
+            security = NioTransport.Security.TLS;
         }
 
         if (srv.getProperty("source-address") != null) {
@@ -298,53 +582,330 @@ public class Oops implements Manager {
             initmodes = srv.getProperty("usermodes");
         }
 
-        if (srv.getProperty("autojoin") != null) {
-            prop = srv.getProperty("autojoin");
+        autojoin = this.parseAutojoin(srv, name);
+        for (Map.Entry<String, String> e: autojoin.entrySet()) {
+            if (e.getValue() != null) {
+                conf.addAutoJoinChannel(e.getKey(), e.getValue());
+            } else {
+                conf.addAutoJoinChannel(e.getKey());
+            }
+        }
 
-            log.debug("Processing autojoin list for server: " + name);
+        queuesize = this.getIntKey(srv, "signal-queue-size",
+                Oops.DEFAULT_SIGNAL_QUEUE_SIZE);
+        if (queuesize == 0) {
+            log.warn("Signal queue size must be non-zero for server: " + name);
+            throw new MalformedServerDefinition("signal queue size is zero");
+        }
 
-            for (String s: prop.split("[,\\s]+")) {
-                if (s.contains(":")) {
-                    split = s.split(":");
-                    if (split.length != 2) {
-                        log.warn("Malformed autojoin channel specification " +
-                                "for serer: " + name);
-                        throw new MalformedServerDefinition(
-                            String.format("bad channel definition: '%s'",
-                                    prop));
-                    } else {
-                        conf.addAutoJoinChannel(split[0], split[1]);
-                    }
-                } else {
-                    conf.addAutoJoinChannel(s);
-                }
-            }
+        try {
+            overflow = SignalEmitter.OverflowPolicy.fromString(
+                srv.getProperty("signal-queue-overflow", "block"));
+        } catch (IllegalArgumentException iae) {
+            log.warn("Unknown signal queue overflow policy for server: " +
+                    name);
+            throw new MalformedServerDefinition(
+                String.format("bad overflow policy: '%s'",
+                        srv.getProperty("signal-queue-overflow")));
+        }
+
+        switch (srv.getProperty("signal-filter", "all")) {
+        case "all":
+            filter = SignalFilter.ALL;
+            break;
+        case "subscribed":
+            log.debug("Only sending subscribed signals for server: " + name);
+            filter = this.subs.filterFor(name);
+            break;
+        default:
+            log.warn("Unknown signal filter for server: " + name);
+            throw new MalformedServerDefinition(
+                String.format("bad signal filter: '%s'",
+                        srv.getProperty("signal-filter")));
+        }
+
+        batchsize = this.getIntKey(srv, "batch-size", 0);
+        batchlinger = this.getIntKey(srv, "batch-linger",
+                Oops.DEFAULT_BATCH_LINGER);
+
+        floodburst = this.getIntKey(srv, "flood-burst",
+                Oops.DEFAULT_FLOOD_BURST);
+        floodinterval = this.getIntKey(srv, "flood-interval",
+                Oops.DEFAULT_FLOOD_INTERVAL);
+        outqueuesize = this.getIntKey(srv, "outbound-queue-size",
+                Oops.DEFAULT_OUTBOUND_QUEUE_SIZE);
+        if (floodburst == 0 || outqueuesize == 0) {
+            log.warn("Flood burst and outbound queue size must be non-zero " +
+                    "for server: " + name);
+            throw new MalformedServerDefinition(
+                "flood burst or outbound queue size is zero");
+        }
+
+        spoolage = this.getIntKey(srv, "spool-max-age",
+                Oops.DEFAULT_SPOOL_MAX_AGE);
+        spoolsync = this.getIntKey(srv, "spool-sync-interval",
+                Oops.DEFAULT_SPOOL_SYNC_INTERVAL);
+
+        scrollsize = this.getIntKey(srv, "scrollback-size", 0);
+        jsegsize = this.getIntKey(srv, "journal-segment-size",
+                Oops.DEFAULT_JOURNAL_SEGMENT_SIZE);
+        jmaxage = this.getIntKey(srv, "journal-max-age", 0);
+        jmaxsize = this.getIntKey(srv, "journal-max-size",
+                Oops.DEFAULT_JOURNAL_MAX_SIZE);
+        jqueuesize = this.getIntKey(srv, "journal-queue-size",
+                Oops.DEFAULT_JOURNAL_QUEUE_SIZE);
+        if (jqueuesize == 0) {
+            log.warn("Journal queue size must be non-zero for server: " +
+                    name);
+            throw new MalformedServerDefinition("journal queue size is zero");
+        }
+
+        searchhours = this.getIntKey(srv, "search-bucket-hours",
+                Oops.DEFAULT_SEARCH_BUCKET_HOURS);
+        searchqueue = this.getIntKey(srv, "search-queue-size",
+                Oops.DEFAULT_SEARCH_QUEUE_SIZE);
+        if (searchhours == 0 || searchqueue == 0) {
+            log.warn("Search bucket and queue sizes must be non-zero for " +
+                    "server: " + name);
+            throw new MalformedServerDefinition(
+                    "search bucket or queue size is zero");
+        }
+
+        capturequeue = this.getIntKey(srv, "capture-queue-size",
+                Oops.DEFAULT_CAPTURE_QUEUE_SIZE);
+        if (capturequeue == 0) {
+            log.warn("Capture queue size must be non-zero for server: " +
+                    name);
+            throw new MalformedServerDefinition("capture queue size is zero");
+        }
+
+        switch (srv.getProperty("transport", "blocking")) {
+        case "blocking":
+            nio = null;
+            break;
+        case "nio":
+            log.debug("Using selector transport for server: " + name);
+            nio = this.getTransport();
+            break;
+        default:
+            log.warn("Unknown transport for server: " + name);
+            throw new MalformedServerDefinition(
+                String.format("bad transport: '%s'",
+                        srv.getProperty("transport")));
         }
 
         newpath = this.path.appendPath(name);
-        sol = new ServerOutputListener(this.conn, newpath, initmodes);
-        col = new ChannelOutputListener(this.conn, newpath);
+        emitter = new SignalEmitter(this.conn, name, queuesize, overflow,
+                new ServerStats());
+        sol = new ServerOutputListener(emitter, newpath);
+        col = new ChannelOutputListener(emitter, newpath);
+        sol.setFilter(filter);
+        col.setFilter(filter);
+
+        /* batched event signals are sent in addition to the per-event
+         * signals */
+        if (batchsize > 0) {
+            log.debug("Enabling batched event signals for server: " + name);
+            sol.addSink(new EventBatcher(emitter, filter, newpath, batchsize,
+                        batchlinger));
+        }
 
+        /* channel state caches are updated before anything else sees an
+         * event; sequential listeners each run on their own thread, so this
+         * one runs inline on the input thread instead. The selector
+         * transport already hands each bot's events to the workers in
+         * order, so its listeners all run inline rather than costing three
+         * threads per server */
         slm = SequentialListenerManager.newDefault();
-        slm.addListenerSequential(sol);
-        slm.addListenerSequential(col);
+        slm.addListenerInline(new ChannelStateListener());
+        if (nio != null) {
+            slm.addListenerInline(sol);
+            slm.addListenerInline(col);
+            slm.addListenerInline(new SettingsListener());
+        } else {
+            slm.addListenerSequential(sol);
+            slm.addListenerSequential(col);
+            slm.addListenerSequential(new SettingsListener());
+        }
 
         conf.setListenerManager(slm);
 
+        /* claim the name; a concurrent load of the same server may have got
+         * there first, and must not have its spool file touched */
+        entry = this.servers.reserve(name);
+        if (entry == null) {
+            log.warn("Attempting to load already-defined server: " + name);
+            throw new ServerExists(name);
+        }
+
+        spool = null;
+        if (srv.getProperty("spool-file") != null) {
+            log.debug("Enabling outbound message spool for server: " + name);
+
+            try {
+                spool = new OutboundSpool(name,
+                        new File(srv.getProperty("spool-file")),
+                        spoolage * 1000L, spoolsync);
+            } catch (IOException ioe) {
+                this.abandon(entry);
+                log.warn("Could not open spool file for server: " + name +
+                        ": " + ioe.getMessage());
+                throw new ServerLoadError("could not open spool file");
+            }
+        }
+
+        journal = null;
+        if (srv.getProperty("journal-dir") != null) {
+            log.debug("Enabling event journal for server: " + name);
+
+            try {
+                journal = new EventJournal(name,
+                        new File(srv.getProperty("journal-dir")), jsegsize,
+                        jmaxage * 1000L, jmaxsize * 1024L * 1024L,
+                        jqueuesize, emitter, newpath);
+            } catch (IOException ioe) {
+                this.abandon(entry);
+                if (spool != null) {
+                    spool.close();
+                }
+
+                log.warn("Could not open journal for server: " + name +
+                        ": " + ioe.getMessage());
+                throw new ServerLoadError("could not open event journal");
+            }
+
+            sol.addSink(journal);
+        }
+
         log.debug("Creating bot object for server: " + name);
-        bot = new DBusPircBotX(conf.buildConfiguration(), newpath);
+        outbound = new OutboundScheduler(name, floodburst, floodinterval,
+                outqueuesize);
+        bot = new DBusPircBotX(conf.buildConfiguration(), newpath, emitter,
+                outbound, spool, initmodes);
+
+        /* the scrollback folds channel names the same way as the bot */
+        if (scrollsize > 0) {
+            log.debug("Enabling scrollback for server: " + name);
+            scrollback = new Scrollback(bot::normalize, scrollsize,
+                    this.scrollbudget);
+            sol.addSink(scrollback);
+            bot.setScrollback(scrollback);
+        }
+
+        bot.setJournal(journal);
+
+        /* the search index also keys its channels by folded name */
+        search = null;
+        if (srv.getProperty("search-dir") != null) {
+            log.debug("Enabling search index for server: " + name);
+
+            try {
+                search = new SearchIndex(name, bot::normalize,
+                        new File(srv.getProperty("search-dir")),
+                        searchhours * 3600L * 1000L, searchqueue);
+            } catch (IOException ioe) {
+                this.abandon(entry);
+                bot.closeOutput();
+                log.warn("Could not open search index for server: " + name +
+                        ": " + ioe.getMessage());
+                throw new ServerLoadError("could not open search index");
+            }
+
+            sol.addSink(search);
+            bot.setSearchIndex(search);
+        }
+
+        capture = null;
+        if (srv.getProperty("capture-dir") != null) {
+            log.debug("Enabling traffic capture for server: " + name);
+
+            try {
+                capture = new TrafficCapture(name,
+                        new File(srv.getProperty("capture-dir")),
+                        capturequeue);
+            } catch (IOException ioe) {
+                this.abandon(entry);
+                bot.closeOutput();
+                log.warn("Could not open traffic capture for server: " +
+                        name + ": " + ioe.getMessage());
+                throw new ServerLoadError("could not open traffic capture");
+            }
+
+            bot.setCapture(capture);
+        }
+
+        /* a previous instance of this server may still be exported */
+        this.cancelUnexport(name);
 
         try {
             this.conn.exportObject(newpath.getPath(), bot);
         } catch (DBusException dbe) {
+            this.abandon(entry);
+            bot.closeOutput();
             log.warn("Could not export object to bus for server: " + name);
             throw new ServerLoadError("could not export object to DBus");
         }
 
-        synchronized (this.statelock) {
+        /* writes to a selector transport connection are only queued, so
+         * such servers can share background threads without one slow
+         * connection holding up the others; everything else keeps threads
+         * of its own */
+        if (nio != null) {
+            emitter.useSharedWorkers();
+            outbound.useSharedWorkers();
+            if (spool != null) {
+                spool.useSharedWorkers();
+            }
+
+            if (journal != null) {
+                journal.useSharedWorkers();
+            }
+
+            if (search != null) {
+                search.useSharedWorkers();
+            }
+
+            if (capture != null) {
+                capture.useSharedWorkers();
+            }
+        }
+
+        emitter.start();
+        outbound.start();
+        if (spool != null) {
+            spool.start();
+        }
+
+        if (journal != null) {
+            journal.start();
+        }
+
+        if (search != null) {
+            search.start();
+        }
+
+        if (capture != null) {
+            capture.start();
+        }
+
+        /* register the bot before starting it, so that the exit callback
+         * can always find it */
+        this.servers.activate(entry, bot, srv);
+
+        try {
             log.info("Starting bot for server: " + name);
-            this.manager.addBot(bot);
-            this.botnames.put(name, bot.getBotId());
+            if (nio != null) {
+                nio.addBot(bot, security);
+            } else {
+                this.manager.addBot(bot);
+            }
+        } catch (RuntimeException re) {
+            /* the bot manager has been stopped in the meantime */
+            log.warn("Could not start bot for server: " + name);
+            bot.closeOutput();
+            this.unexportServer(name);
+            this.abandon(entry);
+            throw new ServerStopping();
         }
 
         try {
@@ -356,98 +917,387 @@ public class Oops implements Manager {
         }
     }
 
+    public Map<String, String> LoadServers(String[] names) {
+        Map<String, Future<String>> pending;
+        Map<String, String> ret;
+
+        log.info("Loading " + names.length + " server definitions");
+
+        pending = new LinkedHashMap<>();
+        for (String n: names) {
+            if (pending.containsKey(n)) {
+                continue;
+            }
+
+            pending.put(n, this.loader.submit(() -> {
+                try {
+                    this.LoadServer(n);
+                } catch (DBusExecutionException dee) {
+                    return dee.getMessage();
+                }
+
+                return "";
+            }));
+        }
+
+        ret = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<String>> e: pending.entrySet()) {
+            try {
+                ret.put(e.getKey(), e.getValue().get());
+            } catch (ExecutionException ee) {
+                log.error("Unexpected error loading server " + e.getKey() +
+                        ": " + ee.getCause());
+                ret.put(e.getKey(), String.valueOf(ee.getCause()));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                ret.put(e.getKey(), "interrupted");
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Load every server definition in the configuration directory.
+     */
+    private void autoload() {
+        String[] names;
+
+        names = this.confdir.list((dir, n) ->
+                DBusPath.isValidPathComponent(n) && new File(dir, n).isFile());
+
+        if (names == null) {
+            log.error("Could not list configuration directory");
+            return;
+        }
+
+        Arrays.sort(names);
+        for (Map.Entry<String, String> e:
+                this.LoadServers(names).entrySet()) {
+            if (!e.getValue().isEmpty()) {
+                log.warn("Could not autoload server " + e.getKey() + ": " +
+                        e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Apply a changed server definition to a running server. Changes to the
+     * nick, user modes and autojoin list are applied in place; any other
+     * change causes the server to be disconnected and loaded again.
+     */
+    private void reloadDefinition(String name) {
+        ServerRegistry.Entry entry;
+        Properties srv, old;
+        Set<String> changed;
+
+        entry = this.servers.get(name);
+        if (entry == null ||
+                entry.getState() != ServerRegistry.State.RUNNING) {
+            return;
+        }
+
+        try {
+            srv = this.readDefinition(name);
+        } catch (ServerLoadError sle) {
+            log.warn("Ignoring unreadable definition for server: " + name);
+            return;
+        }
+
+        old = entry.getDefinition();
+        changed = new HashSet<>();
+        for (String k: srv.stringPropertyNames()) {
+            if (!srv.getProperty(k).equals(old.getProperty(k))) {
+                changed.add(k);
+            }
+        }
+
+        for (String k: old.stringPropertyNames()) {
+            if (srv.getProperty(k) == null) {
+                changed.add(k);
+            }
+        }
+
+        if (changed.isEmpty()) {
+            log.debug("No effective changes for server: " + name);
+            return;
+        }
+
+        log.info("Server definition changed for server: " + name);
+
+        if (Oops.LIVE_KEYS.containsAll(changed)) {
+            try {
+                entry.getBot().applySettings(this.getStringKey(srv, "nick"),
+                        srv.getProperty("usermodes"),
+                        this.parseAutojoin(srv, name));
+            } catch (ServerLoadError sle) {
+                log.warn("Ignoring malformed definition for server: " + name);
+                return;
+            }
+
+            log.info("Applied changed definition in place for server: " +
+                    name);
+            entry.setDefinition(srv);
+        } else {
+            log.info("Reconnecting to apply changed definition for " +
+                    "server: " + name);
+            this.reloads.add(name);
+
+            try {
+                this.DisconnectServer(name);
+            } catch (ServerNotLoaded snl) {
+                this.reloads.remove(name);
+            }
+        }
+    }
+
     public void DisconnectServer(String name) {
+        ServerRegistry.Entry entry;
         PircBotX bot;
-        boolean serverfound;
-        int id;
 
         log.info("Stopping bot for server: " + name);
 
-        serverfound = false;
-        synchronized (this.statelock) {
-            if (this.botnames.containsKey(name)) {
-                serverfound = true;
-                id = this.botnames.get(name);
-                bot = this.manager.getBotById(id);
-                bot.stopBotReconnect();
-                bot.sendIRC().quitServer("disconnecting");
+        entry = this.servers.get(name);
+        if (entry == null || entry.getState() == ServerRegistry.State.LOADING) {
+            log.warn("Server not loaded: " + name);
+            throw new ServerNotLoaded(name);
+        }
+
+        /* only the first caller sends the quit */
+        if (entry.transition(ServerRegistry.State.RUNNING,
+                    ServerRegistry.State.DISCONNECTING)) {
+            bot = entry.getBot();
+            bot.stopBotReconnect();
+            bot.sendIRC().quitServer("disconnecting");
+        }
+    }
+
+    public Map<String, String> Broadcast(String[] targets, String msg) {
+        ServerRegistry.Entry entry;
+        Map<String, String> ret;
+        String[] split;
+
+        log.debug("Broadcasting message to " + targets.length + " targets");
+
+        /* sending only queues the message on each server's outbound
+         * scheduler, so the servers send in parallel and at their own
+         * rates without holding up this call */
+        ret = new LinkedHashMap<>();
+        for (String t: targets) {
+            if (ret.containsKey(t)) {
+                continue;
+            }
+
+            split = t.split("/", 2);
+            if (split.length != 2 || split[1].isEmpty()) {
+                ret.put(t, String.format("Malformed target: '%s'", t));
+                continue;
+            }
+
+            entry = this.servers.get(split[0]);
+            if (entry == null ||
+                    entry.getState() != ServerRegistry.State.RUNNING) {
+                ret.put(t, new ServerNotLoaded(split[0]).getMessage());
+                continue;
+            }
+
+            try {
+                entry.getBot().SendMsg(split[1], msg);
+                ret.put(t, "");
+            } catch (DBusExecutionException dee) {
+                ret.put(t, dee.getMessage());
             }
         }
 
-        if (!serverfound) {
-            log.warn("Server not loaded: " + name);
-            throw new ServerNotLoaded(name);
+        return ret;
+    }
+
+    /* Stats interface implementation - totals across loaded servers */
+
+    public Map<String, UInt64> GetStats() {
+        ServerStats.Snapshot total;
+        ServerRegistry.Entry entry;
+        Map<String, UInt64> ret;
+
+        total = new ServerStats.Snapshot();
+        for (String n: this.servers.getNames()) {
+            entry = this.servers.get(n);
+            if (entry != null && entry.getBot() != null) {
+                total.merge(entry.getBot().getStatsSnapshot());
+            }
         }
+
+        ret = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> e: total.toMap().entrySet()) {
+            ret.put(e.getKey(), new UInt64(e.getValue()));
+        }
+
+        return ret;
     }
 
-    public String[] GetServerNames() {
-        String[] ret;
+    public void ResetStats() {
+        ServerRegistry.Entry entry;
+
+        for (String n: this.servers.getNames()) {
+            entry = this.servers.get(n);
+            if (entry != null && entry.getBot() != null) {
+                entry.getBot().ResetStats();
+            }
+        }
+    }
 
+    public String[] GetServerNames() {
         log.debug("Returning list of loaded servers");
-        synchronized (this.statelock) {
-            ret = this.botnames.keySet().toArray(new String[0]);
+        return this.servers.getNames();
+    }
+
+    public void Subscribe(String server, String[] signals) {
+        String client;
+
+        client = DBusConnection.getCallInfo().getSource();
+        log.debug("Subscribing " + client + " to signals on server: " +
+                server);
+
+        for (String s: signals) {
+            this.subs.subscribe(server, s, client);
         }
+    }
 
-        return ret;
+    public void Unsubscribe(String server, String[] signals) {
+        String client;
+
+        client = DBusConnection.getCallInfo().getSource();
+        log.debug("Unsubscribing " + client + " from signals on server: " +
+                server);
+
+        for (String s: signals) {
+            this.subs.unsubscribe(server, s, client);
+        }
     }
 
     public void Shutdown() {
         log.info("Shutting down all servers");
 
-        synchronized (statelock) {
-            this.manager.stop("shutting down");
+        /* the state flag is set before checking for remaining servers, and
+         * the bot exit handler removes its server before checking the flag,
+         * so that one of the two will always pull the trigger for closing
+         * the connection */
+        this.state = OopsState.STOPPING;
+        this.manager.stop("shutting down");
+        synchronized (this) {
+            if (this.transport != null) {
+                this.transport.stop("shutting down");
+            }
+        }
 
-            /* either we have no in-flight connections (in which case we can
-             * safely fire the trigger for closing the connection in another
-             * thread), or set our state flag to tell the bot exit handler to
-             * pull the trigger instead */
-            if (this.botnames.size() == 0) {
-                this.latch.countDown();
-            } else {
-                this.state = OopsState.STOPPING;
+        this.maybeFinish();
+    }
+
+    /* the selector transport is only started once a server uses it, and
+     * never once shutting down, so that Shutdown always stops it */
+    private synchronized NioTransport getTransport()
+        throws ServerLoadError {
+        if (this.transport == null) {
+            if (this.state == OopsState.STOPPING) {
+                throw new ServerStopping();
+            }
+
+            log.info("Starting selector transport");
+            try {
+                this.transport = new NioTransport(Oops.NIO_SELECTORS,
+                        Oops.NIO_WORKERS, Oops.RECONNECT_DELAY,
+                        (b,e) -> this.removeBot(b, e != null));
+            } catch (IOException ioe) {
+                log.error("Could not start selector transport: " +
+                        ioe.getMessage());
+                throw new ServerLoadError("could not start transport");
             }
         }
+
+        return this.transport;
+    }
+
+    private void maybeFinish() {
+        if (this.state == OopsState.STOPPING && this.servers.isEmpty()) {
+            this.latch.countDown();
+        }
+    }
+
+    /* give up on a server whose load failed, which may have been the last
+     * thing a shutdown was waiting for */
+    private void abandon(ServerRegistry.Entry entry) {
+        this.servers.release(entry);
+        this.maybeFinish();
     }
 
     private void removeBot(PircBotX bot, boolean wascrash) {
-        boolean done;
+        ServerLifecycleEvent ev;
+        PendingUnexport unexport;
+        ServerRegistry.Entry entry;
         String name;
-        DBusPath subpath;
 
-        done = false;
-        synchronized (this.statelock) {
-            name = this.botnames.inverse().remove(bot.getBotId());
+        ev = new ServerLifecycleEvent();
+        ev.begin();
 
-            if (this.state == OopsState.STOPPING &&
-                    this.botnames.size() == 0) {
-                done = true;
-            }
+        entry = this.servers.remove(bot.getBotId());
+        if (entry == null) {
+            log.warn("Exit callback for unknown bot: " + bot.getBotId());
+            return;
         }
 
-        /* unexport object, send signal, tear down dbus connection if
-         * necessary */
-        subpath = this.path.appendPath(name);
+        name = entry.getName();
+
         log.info("Stopped server: " + name);
 
+        /* flush any events still queued for the bus before announcing that
+         * the server has stopped */
+        ((DBusPircBotX) bot).closeOutput();
+
         try {
             this.conn.sendMessage(new Manager.ServerStopped(
                 this.path.getPath(), name, wascrash));
+        } catch (DBusException dbe) {
+            log.error("Caught exception when sending server stop signal " +
+                      "to bus: " + dbe);
+        }
 
+        /* unexport the object later, without holding up this thread */
+        unexport = new PendingUnexport(name);
+        this.unexports.compute(name, (k, v) -> {
             try {
-                Thread.sleep(Oops.UNEXPORT_DELAY);
-            } catch (InterruptedException ie) {
-                /* no recovery possible here */
+                unexport.future = this.unexporter.schedule(unexport,
+                        Oops.UNEXPORT_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                /* already shutting down */
+                this.unexportServer(name);
+                return null;
             }
 
-            this.conn.unExportObject(subpath.getPath());
-        } catch (DBusException dbe) {
-            log.error("Caught exception when sending server stop signal " +
-                      "to bus: " + dbe);
+            return unexport;
+        });
+
+        ev.end();
+        if (ev.shouldCommit()) {
+            ev.server = name;
+            ev.action = "remove";
+            ev.crashed = wascrash;
+            ev.commit();
         }
 
-        if (done) {
-            this.latch.countDown();
+        /* servers disconnected to apply a changed definition are loaded
+         * again straight away */
+        if (this.reloads.remove(name) && this.state == OopsState.RUNNING) {
+            this.loader.submit(() -> {
+                try {
+                    this.LoadServer(name);
+                } catch (DBusExecutionException dee) {
+                    log.error("Could not reload server " + name + ": " +
+                            dee.getMessage());
+                }
+            });
         }
+
+        this.maybeFinish();
     }
 
     public static void main(String[] args) {
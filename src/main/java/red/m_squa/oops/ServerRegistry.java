@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import red.m_squa.oops.irc.DBusPircBotX;
+
+/**
+ * Concurrent registry of loaded servers, indexed by both server name and
+ * bot id. Reads never block, and server state changes are made with atomic
+ * transitions rather than under a shared lock.
+ */
+public class ServerRegistry {
+    public enum State {
+        LOADING,
+        RUNNING,
+        DISCONNECTING
+    };
+
+    public static class Entry {
+        private final String name;
+        private final AtomicReference<State> state;
+        private volatile DBusPircBotX bot;
+        private volatile Properties definition;
+
+        private Entry(String name) {
+            this.name = name;
+            this.state = new AtomicReference<>(State.LOADING);
+            this.bot = null;
+            this.definition = null;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public DBusPircBotX getBot() {
+            return this.bot;
+        }
+
+        /* the server definition currently in effect */
+        public Properties getDefinition() {
+            return this.definition;
+        }
+
+        public void setDefinition(Properties definition) {
+            this.definition = definition;
+        }
+
+        public State getState() {
+            return this.state.get();
+        }
+
+        public boolean transition(State from, State to) {
+            return this.state.compareAndSet(from, to);
+        }
+    }
+
+    private final Map<String, Entry> byname;
+    private final Map<Integer, Entry> byid;
+
+    public ServerRegistry() {
+        this.byname = new ConcurrentHashMap<>();
+        this.byid = new ConcurrentHashMap<>();
+    }
+
+    public boolean contains(String name) {
+        return this.byname.containsKey(name);
+    }
+
+    public Entry get(String name) {
+        return this.byname.get(name);
+    }
+
+    /**
+     * Claim a server name for loading, returning null if it is already
+     * in use.
+     */
+    public Entry reserve(String name) {
+        Entry e;
+
+        e = new Entry(name);
+        if (this.byname.putIfAbsent(name, e) != null) {
+            return null;
+        }
+
+        return e;
+    }
+
+    /**
+     * Give up on a reservation after a failed load.
+     */
+    public void release(Entry e) {
+        if (e.bot != null) {
+            this.byid.remove(e.bot.getBotId(), e);
+        }
+
+        this.byname.remove(e.name, e);
+    }
+
+    /**
+     * Attach the bot to a reserved entry, and mark it running.
+     */
+    public void activate(Entry e, DBusPircBotX bot, Properties definition) {
+        e.bot = bot;
+        e.definition = definition;
+        this.byid.put(bot.getBotId(), e);
+        e.state.set(State.RUNNING);
+    }
+
+    /**
+     * Remove the entry belonging to the given bot, returning it, or null if
+     * there was none.
+     */
+    public Entry remove(int botid) {
+        Entry e;
+
+        e = this.byid.remove(botid);
+        if (e != null) {
+            this.byname.remove(e.name, e);
+        }
+
+        return e;
+    }
+
+    /**
+     * Names of all servers which have finished loading.
+     */
+    public String[] getNames() {
+        return this.byname.values().stream()
+            .filter(e -> e.getState() != State.LOADING)
+            .map(e -> e.name)
+            .toArray(String[]::new);
+    }
+
+    public boolean isEmpty() {
+        return this.byname.isEmpty();
+    }
+}
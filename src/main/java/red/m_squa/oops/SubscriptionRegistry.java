@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import red.m_squa.oops.irc.SignalFilter;
+
+/**
+ * Tracks which bus clients have subscribed to which signals on which
+ * servers, so that signals with no subscribers need not be built.
+ */
+public class SubscriptionRegistry {
+    /* server name -> signal member -> subscribed bus names */
+    private final Map<String, Map<String, Set<String>>> subs;
+
+    public SubscriptionRegistry() {
+        this.subs = new ConcurrentHashMap<>();
+    }
+
+    public void subscribe(String server, String member, String client) {
+        this.subs.computeIfAbsent(server, s -> new ConcurrentHashMap<>())
+            .computeIfAbsent(member, m -> ConcurrentHashMap.newKeySet())
+            .add(client);
+    }
+
+    public void unsubscribe(String server, String member, String client) {
+        Map<String, Set<String>> members;
+        Set<String> clients;
+
+        members = this.subs.get(server);
+        if (members == null) {
+            return;
+        }
+
+        clients = members.get(member);
+        if (clients != null) {
+            clients.remove(client);
+        }
+    }
+
+    /**
+     * Drop all subscriptions held by a client, e.g. once it has left the
+     * bus.
+     */
+    public void removeClient(String client) {
+        for (Map<String, Set<String>> members: this.subs.values()) {
+            for (Set<String> clients: members.values()) {
+                clients.remove(client);
+            }
+        }
+    }
+
+    public boolean hasSubscribers(String server, String member) {
+        Map<String, Set<String>> members;
+        Set<String> clients;
+
+        members = this.subs.get(server);
+        if (members == null) {
+            return false;
+        }
+
+        clients = members.get(member);
+        return clients != null && !clients.isEmpty();
+    }
+
+    public SignalFilter filterFor(String server) {
+        return member -> this.hasSubscribers(server, member);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.iface;
+
+import org.freedesktop.dbus.Struct;
+import org.freedesktop.dbus.annotations.Position;
+import org.freedesktop.dbus.types.UInt64;
+
+/**
+ * Single IRC event, as carried in batched output signals. The meaning of
+ * the arguments depends on the event type, and follows the order of the
+ * fields of the corresponding Output signal.
+ */
+public class EventRecord extends Struct {
+    @Position(0)
+    public final String type;
+    @Position(1)
+    public final UInt64 ts;
+    @Position(2)
+    public final String src;
+    @Position(3)
+    public final String[] chans;
+    @Position(4)
+    public final String[] args;
+
+    public EventRecord(String type, UInt64 ts, String src, String[] chans,
+            String[] args) {
+        this.type = type;
+        this.ts = ts;
+        this.src = src;
+        this.chans = chans;
+        this.args = args;
+    }
+}
@@ -20,10 +20,15 @@
 package red.m_squa.oops.iface;
 
 import org.freedesktop.dbus.annotations.DBusInterfaceName;
+import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.interfaces.DBusInterface;
+import org.freedesktop.dbus.messages.DBusSignal;
+import org.freedesktop.dbus.types.UInt64;
 
 import red.m_squa.oops.except.AlreadyOnChannel;
+import red.m_squa.oops.except.BadPriority;
 import red.m_squa.oops.except.NotOnChannel;
+import red.m_squa.oops.except.OutboundQueueFull;
 import red.m_squa.oops.except.UserNotOnChannel;
 
 @DBusInterfaceName("red.m_squa.oops.Server.Input")
@@ -42,6 +47,27 @@ public interface Input extends DBusInterface {
 	throws NotOnChannel;
     public void SendNotice(String dest, String msg)
         throws NotOnChannel;
+    /* priority is one of "high", "normal" or "low" */
+    public void SendMsgWithPriority(String dest, String msg, String priority)
+	throws NotOnChannel, BadPriority, OutboundQueueFull;
+    public void SendActionWithPriority(String dest, String msg,
+            String priority)
+	throws NotOnChannel, BadPriority, OutboundQueueFull;
+    public void SendNoticeWithPriority(String dest, String msg,
+            String priority)
+	throws NotOnChannel, BadPriority, OutboundQueueFull;
+    /* sends each line to every destination, combining destinations and
+     * splitting long lines as the server allows */
+    public void SendMsgBatch(String[] dests, String[] lines)
+	throws NotOnChannel, OutboundQueueFull;
+    /* queue a message and return its id at once; the outcome is reported
+     * later by a MessageSent or MessageDropped signal with the same id */
+    public UInt64 SendMsgAsync(String dest, String msg, String priority)
+	throws BadPriority, OutboundQueueFull;
+    public UInt64 SendActionAsync(String dest, String msg, String priority)
+	throws BadPriority, OutboundQueueFull;
+    public UInt64 SendNoticeAsync(String dest, String msg, String priority)
+	throws BadPriority, OutboundQueueFull;
     public void SendKick(String chan, String user)
 	throws NotOnChannel, UserNotOnChannel;
     public void SendKick(String chan, String user, String reason)
@@ -52,4 +78,29 @@ public interface Input extends DBusInterface {
 	throws NotOnChannel;
     public void SendQuit();
     public void SendQuit(String msg);
+
+    /* wait is the time in milliseconds the message spent queued */
+    public class MessageSent extends DBusSignal {
+        public final UInt64 ts, id, wait;
+        public MessageSent(String path, UInt64 ts, UInt64 id, UInt64 wait)
+            throws DBusException {
+            super(path, ts, id, wait);
+            this.ts = ts;
+            this.id = id;
+            this.wait = wait;
+        }
+    }
+
+    public class MessageDropped extends DBusSignal {
+        public final UInt64 ts, id, wait;
+        public final String reason;
+        public MessageDropped(String path, UInt64 ts, UInt64 id, UInt64 wait,
+                String reason) throws DBusException {
+            super(path, ts, id, wait, reason);
+            this.ts = ts;
+            this.id = id;
+            this.wait = wait;
+            this.reason = reason;
+        }
+    }
 }
@@ -19,6 +19,8 @@
 
 package red.m_squa.oops.iface;
 
+import java.util.Map;
+
 import org.freedesktop.dbus.annotations.DBusInterfaceName;
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.interfaces.DBusInterface;
@@ -33,10 +35,23 @@ public interface Manager extends DBusInterface {
     public String[] GetServerNames();
     public void LoadServer(String name)
         throws ServerLoadError;
+    /* load several servers in parallel; maps each name to an empty string
+     * on success, or the error message on failure */
+    public Map<String, String> LoadServers(String[] names);
     public void DisconnectServer(String name)
         throws ServerNotLoaded;
     public void Shutdown();
 
+    /* send a message to several "server/destination" targets at once;
+     * maps each target to an empty string on success, or the error message
+     * on failure */
+    public Map<String, String> Broadcast(String[] targets, String msg);
+
+    /* signal subscriptions, for servers which only generate signals that
+     * someone has subscribed to */
+    public void Subscribe(String server, String[] signals);
+    public void Unsubscribe(String server, String[] signals);
+
     public class ServerLoaded extends DBusSignal {
 	public final String server;
 	public ServerLoaded(String path, String server)
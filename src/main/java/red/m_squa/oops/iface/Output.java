@@ -19,6 +19,8 @@
 
 package red.m_squa.oops.iface;
 
+import java.util.List;
+
 import org.freedesktop.dbus.annotations.DBusInterfaceName;
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.interfaces.DBusInterface;
@@ -195,4 +197,36 @@ public interface Output extends DBusInterface {
             this.chan = chan;
         }
     }
+
+    /**
+     * Several events in a single signal; only sent for servers with
+     * batching enabled.
+     */
+    public class EventBatch extends DBusSignal {
+        public final UInt64 ts;
+        public final List<EventRecord> events;
+        public EventBatch(String path, UInt64 ts, List<EventRecord> events)
+            throws DBusException {
+            super(path, ts, events);
+            this.ts = ts;
+            this.events = events;
+        }
+    }
+
+    /* records replayed from the journal; done is set on the last batch of
+     * a replay */
+    public class ReplayBatch extends DBusSignal {
+        public final UInt64 ts, id;
+        public final List<EventRecord> events;
+        public final boolean done;
+        public ReplayBatch(String path, UInt64 ts, UInt64 id,
+                List<EventRecord> events, boolean done)
+            throws DBusException {
+            super(path, ts, id, events, done);
+            this.ts = ts;
+            this.id = id;
+            this.events = events;
+            this.done = done;
+        }
+    }
 }
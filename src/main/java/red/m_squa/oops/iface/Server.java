@@ -19,11 +19,19 @@
 
 package red.m_squa.oops.iface;
 
+import java.util.List;
+import java.util.Map;
+
 import org.freedesktop.dbus.annotations.DBusInterfaceName;
 import org.freedesktop.dbus.interfaces.DBusInterface;
 import org.freedesktop.dbus.messages.DBusSignal;
+import org.freedesktop.dbus.types.UInt64;
 
+import red.m_squa.oops.except.ChannelModeUnavailable;
+import red.m_squa.oops.except.JournalClosed;
+import red.m_squa.oops.except.JournalNotEnabled;
 import red.m_squa.oops.except.NotOnChannel;
+import red.m_squa.oops.except.SearchNotEnabled;
 import red.m_squa.oops.except.UserNotOnChannel;
 
 /**
@@ -35,12 +43,30 @@ public interface Server extends DBusInterface {
     public String[] GetChannelNames();
     public String[] GetChannelUsers(String channel)
         throws NotOnChannel;
+
+    /* paged user listing, sorted by nick; the cursor is the nick of the last
+     * user returned by the previous call, or empty for the first page */
+    public String[] GetChannelUsersPage(String channel, String cursor,
+            int limit) throws NotOnChannel;
+    /* as above, only returning hostmasks matching a glob */
+    public String[] GetChannelUsersMatching(String channel, String glob,
+            String cursor, int limit) throws NotOnChannel;
+    /* waits briefly for the server if the mode is not known yet */
     public String GetChannelMode(String channel)
-        throws NotOnChannel;
+        throws NotOnChannel, ChannelModeUnavailable;
 
     public boolean ChannelContainsUser(String channel, String user)
         throws NotOnChannel;
 
+    /* privilege level bitmask: 1 = voice, 2 = halfop, 4 = op, 8 = superop,
+     * 16 = owner, with 0 for regular users */
+    public int GetUserLevel(String channel, String user)
+        throws NotOnChannel, UserNotOnChannel;
+    /* levels of several users at once, with -1 for users not on the
+     * channel */
+    public int[] GetUserLevels(String channel, String[] users)
+        throws NotOnChannel;
+
     /* check permission bits */
     public boolean UserIsRegular(String channel, String user)
         throws NotOnChannel, UserNotOnChannel;
@@ -58,5 +84,27 @@ public interface Server extends DBusInterface {
     /* combined permission check - halfops or higher */
     public boolean UserIsPrivd(String channel, String user)
         throws NotOnChannel, UserNotOnChannel;
+
+    /* signal emission queue counters */
+    public UInt64 GetSignalQueueDepth();
+    public UInt64 GetSignalsDropped();
+    /* recent events on a channel, or "*" for events not on any channel,
+     * with timestamps after since; empty unless scrollback is enabled */
+    public List<EventRecord> GetRecentEvents(String channel, UInt64 since,
+            int max);
+
+    /* replay journalled events with timestamps from..to inclusive; they
+     * are sent as ReplayBatch signals carrying the returned id */
+    public UInt64 ReplayEvents(UInt64 from, UInt64 to)
+        throws JournalNotEnabled, JournalClosed;
+
+    /* messages on a channel containing every word of the query, with
+     * timestamps from..to inclusive, newest first */
+    public List<EventRecord> SearchMessages(String channel, String query,
+            UInt64 from, UInt64 to, int limit) throws SearchNotEnabled;
+
+    /* per priority lane: queue depth, commands sent, and total and maximum
+     * queueing time in milliseconds */
+    public Map<String, UInt64> GetOutboundStats();
 }
 
@@ -43,6 +43,18 @@ public interface SyntheticOutput extends DBusInterface {
             this.msg = msg;
         }
     }
+
+    public class ChannelModeChanged extends DBusSignal {
+        public final UInt64 ts;
+        public final String chan, mode;
+        public ChannelModeChanged(String path, UInt64 ts, String chan,
+                String mode) throws DBusException {
+            super(path, ts, chan, mode);
+            this.ts = ts;
+            this.chan = chan;
+            this.mode = mode;
+        }
+    }
 }
 
 
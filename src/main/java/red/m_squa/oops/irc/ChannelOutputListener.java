@@ -19,28 +19,104 @@
 
 package red.m_squa.oops.irc;
 
-import org.freedesktop.dbus.connections.impl.DBusConnection;
+import java.util.List;
+
+import org.pircbotx.hooks.events.ModeEvent;
+import org.pircbotx.hooks.events.ServerResponseEvent;
 
 import red.m_squa.pircbotx.AddressedMessageEvent;
 
 import red.m_squa.oops.DBusPath;
 import red.m_squa.oops.iface.SyntheticOutput;
 import red.m_squa.oops.irc.IrcDBusListener;
+import red.m_squa.oops.irc.SignalEmitter;
 
 public class ChannelOutputListener extends IrcDBusListener
     implements SyntheticOutput {
 
-    public ChannelOutputListener(DBusConnection conn, DBusPath path) {
-        super(conn, path);
+    private static final int RPL_CHANNELMODEIS = 324;
+
+    public ChannelOutputListener(SignalEmitter emitter, DBusPath path) {
+        super(emitter, path);
     }
 
     /* IRC event handlers */
 
     @Override
     public void onAddressed(AddressedMessageEvent ev) {
-        this.signal((path, timestamp) ->
+        String src, chan, msg;
+
+        if (!this.wants("AddressedMessage")) {
+            return;
+        }
+
+        src = ev.getUser().getHostmask();
+        chan = ev.getChannel().getName();
+        msg = ev.getAddressedMessage();
+
+        this.signal("AddressedMessage", (path, timestamp) ->
                 new SyntheticOutput.AddressedMessage(path, timestamp,
-                        ev.getUser().getHostmask(), ev.getChannel().getName(),
-                        ev.getAddressedMessage()));
+                        src, chan, msg));
+    }
+
+    /* follows mode changes in the bot's mode cache, asking the server for
+     * the whole mode only if the cache cannot follow them */
+    @Override
+    public void onMode(ModeEvent ev) {
+        DBusPircBotX bot;
+        ModeCache cache;
+        String chan, before, after;
+
+        /* PircBotX also reports RPL_CHANNELMODEIS as a mode change with no
+         * source, which is handled below */
+        if (ev.getChannel() == null || ev.getUserHostmask() == null) {
+            return;
+        }
+
+        bot = ev.getBot();
+        cache = bot.getModeCache();
+        chan = ev.getChannel().getName();
+
+        before = cache.peek(chan);
+        if (!cache.apply(chan, ev.getMode(), bot.getISupport())) {
+            bot.requestMode(chan);
+            return;
+        }
+
+        after = cache.peek(chan);
+        if (after == null || after.equals(before) ||
+                !this.wants("ChannelModeChanged")) {
+            return;
+        }
+
+        this.signal("ChannelModeChanged", (path, timestamp) ->
+                new SyntheticOutput.ChannelModeChanged(path, timestamp,
+                        chan, after));
+    }
+
+    /* keeps the bot's mode cache up to date, and reports changes to it */
+    @Override
+    public void onServerResponse(ServerResponseEvent ev) {
+        DBusPircBotX bot;
+        List<String> parsed;
+        String chan, mode;
+
+        parsed = ev.getParsedResponse();
+        if (ev.getCode() != RPL_CHANNELMODEIS || parsed.size() < 3) {
+            return;
+        }
+
+        bot = ev.getBot();
+        chan = parsed.get(1);
+        mode = String.join(" ", parsed.subList(2, parsed.size()));
+
+        if (!bot.getModeCache().set(chan, mode) ||
+                !this.wants("ChannelModeChanged")) {
+            return;
+        }
+
+        this.signal("ChannelModeChanged", (path, timestamp) ->
+                new SyntheticOutput.ChannelModeChanged(path, timestamp,
+                        chan, mode));
     }
 }
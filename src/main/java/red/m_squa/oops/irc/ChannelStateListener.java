@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import org.pircbotx.Channel;
+import org.pircbotx.User;
+import org.pircbotx.hooks.Event;
+import org.pircbotx.hooks.ListenerAdapter;
+import org.pircbotx.hooks.events.DisconnectEvent;
+import org.pircbotx.hooks.events.HalfOpEvent;
+import org.pircbotx.hooks.events.JoinEvent;
+import org.pircbotx.hooks.events.KickEvent;
+import org.pircbotx.hooks.events.NickChangeEvent;
+import org.pircbotx.hooks.events.OpEvent;
+import org.pircbotx.hooks.events.OwnerEvent;
+import org.pircbotx.hooks.events.PartEvent;
+import org.pircbotx.hooks.events.QuitEvent;
+import org.pircbotx.hooks.events.ServerResponseEvent;
+import org.pircbotx.hooks.events.SuperOpEvent;
+import org.pircbotx.hooks.events.UserListEvent;
+import org.pircbotx.hooks.events.VoiceEvent;
+import org.pircbotx.snapshot.ChannelSnapshot;
+
+/**
+ * Keeps the per-channel caches of a DBusPircBotX up to date as channel
+ * state changes.
+ */
+public class ChannelStateListener extends ListenerAdapter {
+    private static final int RPL_ISUPPORT = 5;
+    private static final int RPL_ENDOFWHO = 315;
+
+    /* every event comes here first, so this is where they are counted */
+    @Override
+    public void onEvent(Event ev) throws Exception {
+        DBusPircBotX bot;
+
+        bot = ev.getBot();
+        bot.getStats().count(ServerStats.Counter.EVENTS_RECEIVED);
+        super.onEvent(ev);
+    }
+
+    @Override
+    public void onJoin(JoinEvent ev) {
+        DBusPircBotX bot;
+        String chan;
+
+        bot = ev.getBot();
+        chan = ev.getChannel().getName();
+
+        bot.getMemberCache().invalidate(chan);
+        bot.getPrivilegeIndex().add(chan, ev.getUser().getNick());
+
+        /* PircBotX asks for the mode itself after joining */
+        if (bot.isSelf(ev.getUser().getNick())) {
+            bot.getModeCache().expect(chan);
+        }
+    }
+
+    @Override
+    public void onPart(PartEvent ev) {
+        DBusPircBotX bot;
+        String chan;
+
+        bot = ev.getBot();
+        chan = ev.getChannel().getName();
+
+        bot.getMemberCache().invalidate(chan);
+
+        if (bot.isSelf(ev.getUser().getNick())) {
+            bot.getPrivilegeIndex().removeChannel(chan);
+            bot.getModeCache().remove(chan);
+        } else {
+            bot.getPrivilegeIndex().remove(chan, ev.getUser().getNick());
+        }
+    }
+
+    @Override
+    public void onKick(KickEvent ev) {
+        DBusPircBotX bot;
+        String chan;
+
+        bot = ev.getBot();
+        chan = ev.getChannel().getName();
+
+        bot.getMemberCache().invalidate(chan);
+
+        if (bot.isSelf(ev.getRecipient().getNick())) {
+            bot.getPrivilegeIndex().removeChannel(chan);
+            bot.getModeCache().remove(chan);
+        } else {
+            bot.getPrivilegeIndex().remove(chan, ev.getRecipient().getNick());
+        }
+    }
+
+    @Override
+    public void onQuit(QuitEvent ev) {
+        DBusPircBotX bot;
+
+        bot = ev.getBot();
+        for (ChannelSnapshot c: ev.getUserChannelDaoSnapshot()
+                .getChannels(ev.getUser())) {
+            bot.getMemberCache().invalidate(c.getName());
+        }
+
+        bot.getPrivilegeIndex().removeUser(ev.getUser().getNick());
+    }
+
+    @Override
+    public void onNickChange(NickChangeEvent ev) {
+        DBusPircBotX bot;
+
+        bot = ev.getBot();
+        for (Channel c: bot.getUserChannelDao().getChannels(ev.getUser())) {
+            bot.getMemberCache().invalidate(c.getName());
+        }
+
+        bot.getPrivilegeIndex().rename(ev.getOldNick(), ev.getNewNick());
+    }
+
+    @Override
+    public void onUserList(UserListEvent ev) {
+        DBusPircBotX bot;
+
+        bot = ev.getBot();
+        bot.getMemberCache().invalidate(ev.getChannel().getName());
+
+        if (ev.isComplete()) {
+            bot.getPrivilegeIndex().rebuild(ev.getChannel());
+        }
+    }
+
+    /* privilege changes */
+
+    private void privilege(DBusPircBotX bot, Channel chan, User user,
+            int bit, boolean set) {
+        bot.getPrivilegeIndex().update(chan.getName(), user.getNick(), bit,
+                set);
+    }
+
+    @Override
+    public void onVoice(VoiceEvent ev) {
+        this.privilege(ev.getBot(), ev.getChannel(), ev.getRecipient(),
+                PrivilegeIndex.LEVEL_VOICE, ev.hasVoice());
+    }
+
+    @Override
+    public void onHalfOp(HalfOpEvent ev) {
+        this.privilege(ev.getBot(), ev.getChannel(), ev.getRecipient(),
+                PrivilegeIndex.LEVEL_HALFOP, ev.isHalfOp());
+    }
+
+    @Override
+    public void onOp(OpEvent ev) {
+        this.privilege(ev.getBot(), ev.getChannel(), ev.getRecipient(),
+                PrivilegeIndex.LEVEL_OP, ev.isOp());
+    }
+
+    @Override
+    public void onSuperOp(SuperOpEvent ev) {
+        this.privilege(ev.getBot(), ev.getChannel(), ev.getRecipient(),
+                PrivilegeIndex.LEVEL_SUPEROP, ev.isSuperOp());
+    }
+
+    @Override
+    public void onOwner(OwnerEvent ev) {
+        this.privilege(ev.getBot(), ev.getChannel(), ev.getRecipient(),
+                PrivilegeIndex.LEVEL_OWNER, ev.isOwner());
+    }
+
+    @Override
+    public void onServerResponse(ServerResponseEvent ev) {
+        DBusPircBotX bot;
+
+        bot = ev.getBot();
+
+        /* PircBotX has already added these parameters to its ServerInfo */
+        if (ev.getCode() == RPL_ISUPPORT) {
+            bot.updateISupport();
+        }
+
+        /* hostmasks are filled in by the WHO sent after joining */
+        if (ev.getCode() == RPL_ENDOFWHO &&
+                ev.getParsedResponse().size() > 1) {
+            bot.getMemberCache().invalidate(ev.getParsedResponse().get(1));
+        }
+    }
+
+    @Override
+    public void onDisconnect(DisconnectEvent ev) {
+        DBusPircBotX bot;
+
+        bot = ev.getBot();
+        bot.getMemberCache().clear();
+        bot.getPrivilegeIndex().clear();
+        bot.getModeCache().clear();
+        bot.resetISupport();
+    }
+}
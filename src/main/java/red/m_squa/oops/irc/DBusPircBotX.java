@@ -19,63 +19,638 @@
 
 package red.m_squa.oops.irc;
 
-import java.util.Collection;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.messages.DBusSignal;
+import org.freedesktop.dbus.types.UInt64;
 
 import org.pircbotx.Channel;
 import org.pircbotx.Configuration;
+import org.pircbotx.InputParser;
 import org.pircbotx.PircBotX;
 import org.pircbotx.User;
+import org.pircbotx.Utils;
+import org.pircbotx.hooks.Listener;
+import org.pircbotx.hooks.events.DisconnectEvent;
+import org.pircbotx.hooks.events.OutputEvent;
+import org.pircbotx.hooks.events.SocketConnectEvent;
 import org.pircbotx.exception.DaoException;
-import org.pircbotx.exception.NotReadyException;
+import org.pircbotx.exception.IrcException;
+import org.pircbotx.snapshot.UserChannelDaoSnapshot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import red.m_squa.oops.DBusPath;
 import red.m_squa.oops.except.AlreadyOnChannel;
+import red.m_squa.oops.except.BadPriority;
+import red.m_squa.oops.except.ChannelModeUnavailable;
+import red.m_squa.oops.except.JournalClosed;
+import red.m_squa.oops.except.JournalNotEnabled;
 import red.m_squa.oops.except.NotOnChannel;
+import red.m_squa.oops.except.OutboundQueueFull;
+import red.m_squa.oops.except.SearchNotEnabled;
 import red.m_squa.oops.except.UserNotOnChannel;
+import red.m_squa.oops.iface.EventRecord;
 import red.m_squa.oops.iface.Input;
 import red.m_squa.oops.iface.Output;
 import red.m_squa.oops.iface.Server;
+import red.m_squa.oops.iface.Stats;
 import red.m_squa.oops.iface.SyntheticOutput;
+import red.m_squa.oops.jfr.MethodCallEvent;
+import red.m_squa.oops.irc.OutboundScheduler.Outcome;
+import red.m_squa.oops.irc.OutboundScheduler.Priority;
 
 public class DBusPircBotX extends PircBotX
-    implements Input, Server, Output, SyntheticOutput {
+    implements Input, Server, Output, SyntheticOutput, Stats {
     /* Output and SyntheticOutput are required to make remote introspection
      * work. */
 
+    private static final Logger log =
+        LoggerFactory.getLogger(DBusPircBotX.class);
+
     private final DBusPath path;
+    private final SignalEmitter emitter;
+    private final OutboundScheduler outbound;
+    private final OutboundSpool spool;
+    private volatile boolean online;
+    private volatile Scrollback scrollback;
+    private volatile EventJournal journal;
+    private volatile SearchIndex search;
+    private volatile TrafficCapture capture;
+
+    /* the connection made by the selector transport, which stands in for
+     * PircBotX's own socket while there is one */
+    private volatile NioTransport.Link link;
+
+    /* settings which may be changed while running, and the channels from
+     * the original autojoin list which should no longer be joined */
+    private volatile String confnick;
+    private volatile String usermodes;
+    private volatile Map<String, String> autojoin;
+    private final Set<String> suppressed;
+
+    private final MemberCache members;
+    private final PrivilegeIndex privs;
+    private final ModeCache modes;
+    private volatile ISupport isupport;
+    private final AtomicLong msgids;
+
+    /* upper bound on the size of a page of channel users */
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /* how long to wait for the server to tell us a channel's mode */
+    private static final long MODE_TIMEOUT = 5000;
+
+    /* interface names for method call events */
+    private static final String INPUT = "Input";
+    private static final String SERVER = "Server";
+
+    /* how each kind of message is framed, following PircBotX */
+    private enum MessageKind {
+        MSG("PRIVMSG", ":", ""),
+        ACTION("PRIVMSG", ":\u0001ACTION ", "\u0001"),
+        NOTICE("NOTICE", ":", "");
+
+        private final String command;
+        private final String start;
+        private final String suffix;
+
+        private MessageKind(String command, String start, String suffix) {
+            this.command = command;
+            this.start = start;
+            this.suffix = suffix;
+        }
 
-    @FunctionalInterface
-    private interface MemberListGetter {
-        Collection<User> getUsers();
+        private String prefix(String dest) {
+            return this.command + " " + dest + " " + this.start;
+        }
+    };
+
+    /**
+     * Bot factory whose input parser hands every line received to the
+     * bot's traffic capture, if it has one, before handling it.
+     */
+    public static class Factory extends Configuration.BotFactory {
+        @Override
+        public InputParser createInputParser(PircBotX bot) {
+            return new InputParser(bot) {
+                @Override
+                public void handleLine(String line)
+                    throws IOException, IrcException {
+                    TrafficCapture capture;
+
+                    capture = ((DBusPircBotX) this.bot).capture;
+                    if (capture != null) {
+                        capture.record(line);
+                    }
+
+                    super.handleLine(line);
+                }
+            };
+        }
     }
 
-    @FunctionalInterface
-    private interface GetterLambda {
-        MemberListGetter get(Channel c);
+    public DBusPircBotX(Configuration conf, DBusPath path,
+            SignalEmitter emitter, OutboundScheduler outbound,
+            OutboundSpool spool, String usermodes) {
+        super(conf);
+        this.path = path;
+        this.emitter = emitter;
+        this.outbound = outbound;
+        this.outbound.setWriter(this::writeLine);
+        this.spool = spool;
+        this.online = false;
+
+        this.confnick = conf.getName();
+        this.usermodes = usermodes;
+        this.autojoin = conf.getAutoJoinChannels();
+        this.suppressed = ConcurrentHashMap.newKeySet();
+        this.members = new MemberCache(this::normalize);
+        this.privs = new PrivilegeIndex(this::normalize);
+        this.modes = new ModeCache(this::normalize);
+        this.isupport = ISupport.DEFAULT;
+        this.msgids = new AtomicLong();
     }
 
-    @FunctionalInterface
-    private interface ChanSend {
-        void send(String c, String m) throws NotOnChannel;
+    public MemberCache getMemberCache() {
+        return this.members;
     }
 
-    @FunctionalInterface
-    private interface PrivSend {
-        void send(String c, String m);
+    public PrivilegeIndex getPrivilegeIndex() {
+        return this.privs;
     }
 
-    public DBusPircBotX(Configuration conf, DBusPath path) {
-        super(conf);
-        this.path = path;
+    public Scrollback getScrollback() {
+        return this.scrollback;
+    }
+
+    public void setScrollback(Scrollback scrollback) {
+        this.scrollback = scrollback;
+    }
+
+    public void setJournal(EventJournal journal) {
+        this.journal = journal;
+    }
+
+    public void setSearchIndex(SearchIndex search) {
+        this.search = search;
+    }
+
+    public void setCapture(TrafficCapture capture) {
+        this.capture = capture;
+    }
+
+    public ModeCache getModeCache() {
+        return this.modes;
+    }
+
+    public ServerStats getStats() {
+        return this.emitter.getStats();
+    }
+
+    /**
+     * Ask the server for a channel's mode, unless a query is already
+     * outstanding. This is called from the input thread, so a full queue
+     * is only logged.
+     */
+    public void requestMode(String channel) {
+        if (!this.modes.invalidate(channel)) {
+            return;
+        }
+
+        try {
+            this.outbound.submit(Priority.NORMAL,
+                    () -> this.sendRaw().rawLine("MODE " + channel));
+        } catch (OutboundQueueFull oqf) {
+            log.warn("Outbound queue full, not querying mode of channel: " +
+                    channel);
+            this.modes.cancel(channel);
+        }
+    }
+
+    public ISupport getISupport() {
+        return this.isupport;
+    }
+
+    /**
+     * Reparse the server's ISUPPORT parameters, after another 005 reply has
+     * been received.
+     */
+    public void updateISupport() {
+        this.isupport = new ISupport(this.getServerInfo().getIsupportRaw());
+    }
+
+    /**
+     * Forget the ISUPPORT parameters of a previous connection.
+     */
+    public void resetISupport() {
+        this.isupport = ISupport.DEFAULT;
+    }
+
+    /**
+     * Fold a nick or channel name into the form used as a lookup key.
+     */
+    public String normalize(String name) {
+        return this.isupport.normalize(name);
+    }
+
+    public boolean isSelf(String nick) {
+        return this.normalize(nick).equals(this.normalize(this.getNick()));
+    }
+
+    public SignalEmitter getEmitter() {
+        return this.emitter;
+    }
+
+    /**
+     * Flush and close all event output for this server, once the bot has
+     * stopped.
+     */
+    public void closeOutput() {
+        for (Listener l: this.getConfiguration().getListenerManager()
+                .getListeners()) {
+            if (l instanceof IrcDBusListener) {
+                ((IrcDBusListener) l).close();
+            }
+        }
+
+        /* stop the outbound scheduler first, so that the signals for any
+         * messages it drops still go out */
+        this.outbound.shutdown();
+        this.emitter.shutdown();
+
+        if (this.spool != null) {
+            this.spool.close();
+        }
+
+        if (this.capture != null) {
+            this.capture.close();
+        }
+    }
+
+    /**
+     * Called once the connection is ready for use, to start sending queued
+     * commands along with any messages spooled by a previous run.
+     */
+    public void connectionReady() {
+        this.online = true;
+        this.getStats().count(ServerStats.Counter.CONNECTS);
+
+        if (this.spool != null) {
+            for (OutboundSpool.Record r: this.spool.takeReplay()) {
+                try {
+                    this.outbound.submit(Priority.NORMAL, () -> {
+                            this.checkExpiry(r.getTimestamp());
+                            this.sendRaw().rawLineSplit(r.getPrefix(),
+                                r.getMessage(), r.getSuffix());
+                        }, (wait, error) -> this.spooled(r.getSeq(), error));
+                } catch (OutboundQueueFull oqf) {
+                    log.warn("Outbound queue full, leaving spooled " +
+                            "messages for next time");
+                    break;
+                }
+            }
+        }
+
+        this.outbound.setPaused(false);
+    }
+
+    /**
+     * Called when the connection is lost, to hold outgoing commands until
+     * there is a new one.
+     */
+    public void connectionLost() {
+        this.online = false;
+        this.getStats().count(ServerStats.Counter.DISCONNECTS);
+        this.outbound.setPaused(true);
+        this.outbound.reset();
+    }
+
+    public boolean isReconnectStopped() {
+        return this.reconnectStopped;
+    }
+
+    /**
+     * Take up a connection made by the selector transport, resetting state
+     * and registering with the server as PircBotX's connect() does.
+     */
+    void linkOpened(NioTransport.Link link) {
+        Configuration conf;
+
+        conf = this.getConfiguration();
+        this.enabledCapabilities = new ArrayList<>();
+        this.getUserChannelDao().close();
+        this.getUserChannelDao().createUser(conf.getBotFactory()
+                .createUserHostmask(this, null, conf.getName(),
+                    conf.getLogin(), null));
+        this.serverHostname = link.getHostname();
+        this.serverPort = link.getPort();
+        this.link = link;
+        conf.getListenerManager().onEvent(new SocketConnectEvent(this));
+
+        if (conf.isCapEnabled()) {
+            this.sendCAP().getSupported();
+        }
+
+        if (conf.isWebIrcEnabled()) {
+            this.sendRaw().rawLineNow("WEBIRC " + conf.getWebIrcPassword() +
+                    " " + conf.getWebIrcUsername() + " " +
+                    conf.getWebIrcHostname() + " " +
+                    conf.getWebIrcAddress().getHostAddress());
+        }
+
+        if (conf.getServerPassword() != null &&
+                !conf.getServerPassword().trim().isEmpty()) {
+            this.sendRaw().rawLineNow("PASS " + conf.getServerPassword());
+        }
+
+        this.sendRaw().rawLineNow("NICK " + conf.getName());
+        this.sendRaw().rawLineNow("USER " + conf.getLogin() + " 8 * :" +
+                conf.getRealName());
+    }
+
+    /**
+     * Let go of a closed connection made by the selector transport, as
+     * PircBotX's shutdown() does for its own socket.
+     */
+    void linkClosed(Exception cause) {
+        ImmutableMap.Builder<String, String> channels;
+        UserChannelDaoSnapshot snapshot;
+        Configuration conf;
+
+        conf = this.getConfiguration();
+        this.link = null;
+
+        /* rejoined after reconnecting */
+        channels = ImmutableMap.builder();
+        for (Channel c: this.getUserChannelDao().getAllChannels()) {
+            channels.put(c.getName(),
+                    (c.getChannelKey() != null) ? c.getChannelKey() : "");
+        }
+
+        this.reconnectChannels = channels.build();
+        this.loggedIn = false;
+
+        snapshot = null;
+        if (conf.isSnapshotsEnabled()) {
+            snapshot = this.getUserChannelDao().createSnapshot();
+        }
+
+        this.getUserChannelDao().close();
+        this.getInputParser().close();
+        this.getDccHandler().close();
+
+        conf.getListenerManager().onEvent(new DisconnectEvent(this, snapshot,
+                    cause));
+        conf.getListenerManager().shutdown(this);
+    }
+
+    /* PircBotX's shutdown hook only knows how to close its own socket, and
+     * would try to quit a transport connection which is already gone */
+    @Override
+    protected void onLoggedIn(String nick) {
+        if (this.link == null) {
+            super.onLoggedIn(nick);
+            return;
+        }
+
+        this.loggedIn = true;
+        this.setNick(nick);
+    }
+
+    @Override
+    public boolean isConnected() {
+        NioTransport.Link l;
+
+        l = this.link;
+        return (l != null) ? l.isOpen() : super.isConnected();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        NioTransport.Link l;
+
+        l = this.link;
+        return (l != null) ? l.getLocalAddress() : super.getLocalAddress();
+    }
+
+    /* every line goes through the outbound scheduler's token bucket, which
+     * then writes it with writeLine() */
+    @Override
+    protected void sendRawLineToServer(String line) throws IOException {
+        this.outbound.write(line);
+    }
+
+    private void writeLine(String line) throws IOException {
+        NioTransport.Link l;
+        int max;
+
+        l = this.link;
+        if (l == null) {
+            super.sendRawLineToServer(line);
+            return;
+        }
+
+        max = this.getConfiguration().getMaxLineLength() - 2;
+        if (line.length() > max) {
+            line = line.substring(0, max);
+        }
+
+        l.write(line);
+        this.getConfiguration().getListenerManager().onEvent(
+                new OutputEvent(this, line, Utils.tokenizeLine(line)));
+    }
+
+    /**
+     * Acknowledge a spooled message once it is dealt with, unless it was
+     * only dropped because the server is stopping.
+     */
+    private void spooled(long seq, String error) {
+        if (error != OutboundScheduler.STOPPED) {
+            this.spool.ack(seq);
+        }
+    }
+
+    /* messages held by the spool while disconnected are only sent if they
+     * are still young enough */
+    private void checkExpiry(long timestamp) {
+        if (this.spool != null && this.spool.isExpired(timestamp)) {
+            throw new IllegalStateException(OutboundSpool.EXPIRED);
+        }
+    }
+
+    /**
+     * Queue a message, writing it to the spool first if there is one. The
+     * check is run just before sending, and may throw to drop the message.
+     */
+    private void queueMessage(Priority prio, String prefix, String msg,
+            String suffix, Runnable check, Outcome outcome)
+        throws OutboundQueueFull {
+        long seq, queued;
+
+        queued = System.currentTimeMillis();
+        seq = (this.spool != null) ? this.spool.append(prefix, msg, suffix) :
+            -1;
+
+        try {
+            this.outbound.submit(prio, () -> {
+                this.checkExpiry(queued);
+                if (check != null) {
+                    check.run();
+                }
+
+                this.sendRaw().rawLineSplit(prefix, msg, suffix);
+            }, (wait, error) -> {
+                if (seq >= 0) {
+                    this.spooled(seq, error);
+                }
+
+                if (outcome != null) {
+                    outcome.done(wait, error);
+                }
+            });
+        } catch (OutboundQueueFull oqf) {
+            if (seq >= 0) {
+                this.spool.ack(seq);
+            }
+
+            throw oqf;
+        }
+    }
+
+    private void joinWithKey(String chan, String key) {
+        this.outbound.submit(Priority.NORMAL, () -> {
+            if (key == null || key.isEmpty()) {
+                this.outputIRC.joinChannel(chan);
+            } else {
+                this.outputIRC.joinChannel(chan, key);
+            }
+        });
+    }
+
+    /**
+     * Apply a changed nick, user mode string or autojoin list to the
+     * running connection. Changes are also remembered, so that they are
+     * reapplied after reconnecting.
+     */
+    public void applySettings(String nick, String usermodes,
+            Map<String, String> autojoin) {
+        Map<String, String> oldjoin;
+        String oldmodes;
+
+        oldjoin = this.autojoin;
+        oldmodes = this.usermodes;
+        this.confnick = nick;
+        this.usermodes = usermodes;
+        this.autojoin = autojoin;
+
+        if (!this.isConnected()) {
+            return;
+        }
+
+        if (!nick.equals(this.getNick())) {
+            this.outputIRC.changeNick(nick);
+        }
+
+        if (usermodes != null && !usermodes.equals(oldmodes)) {
+            this.outputIRC.mode(this.getNick(), usermodes);
+        }
+
+        for (Map.Entry<String, String> e: autojoin.entrySet()) {
+            if (!oldjoin.containsKey(e.getKey()) &&
+                    !this.userChannelDao.containsChannel(e.getKey())) {
+                this.joinWithKey(e.getKey(), e.getValue());
+            }
+        }
+
+        for (String c: oldjoin.keySet()) {
+            if (!autojoin.containsKey(c) &&
+                    this.userChannelDao.containsChannel(c)) {
+                this.userChannelDao.getChannel(c).send().part();
+            }
+        }
+    }
+
+    /**
+     * Called upon connection to bring the connection in line with the
+     * current settings, which may differ from the configuration the bot was
+     * created with.
+     */
+    public void reconcileSettings() {
+        Map<String, String> confjoin;
+
+        if (!this.confnick.equals(this.getNick())) {
+            this.outputIRC.changeNick(this.confnick);
+        }
+
+        /* set initial user modes upon connection */
+        if (this.usermodes != null) {
+            this.outputIRC.mode(this.getNick(), this.usermodes);
+        }
+
+        /* the original autojoin list is joined by PircBotX itself; names
+         * are kept as given, as ISUPPORT may not have been seen yet */
+        confjoin = this.getConfiguration().getAutoJoinChannels();
+        this.suppressed.clear();
+        for (String c: confjoin.keySet()) {
+            if (!this.autojoin.containsKey(c)) {
+                this.suppressed.add(c);
+            }
+        }
+
+        for (Map.Entry<String, String> e: this.autojoin.entrySet()) {
+            if (!confjoin.containsKey(e.getKey())) {
+                this.joinWithKey(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Called when the bot joins a channel, to leave channels which have
+     * since been removed from the autojoin list.
+     */
+    public void checkAutojoin(Channel c) {
+        String key;
+
+        key = this.normalize(c.getName());
+        if (this.suppressed.removeIf(s -> this.normalize(s).equals(key))) {
+            c.send().part();
+        }
     }
 
     private Channel getChannel(String name) throws NotOnChannel {
         Channel c;
+        String key;
 
         try {
             c = this.userChannelDao.getChannel(name);
         } catch (DaoException de) {
+            /* PircBotX only folds ASCII letters, so look again using the
+             * server's case mapping */
+            key = this.normalize(name);
+            for (Channel o: this.userChannelDao.getAllChannels()) {
+                if (this.normalize(o.getName()).equals(key)) {
+                    return o;
+                }
+            }
+
             throw new NotOnChannel(name);
         }
 
@@ -84,10 +659,18 @@ public class DBusPircBotX extends PircBotX
 
     private User getUser(String nick) {
         User u;
+        String key;
 
         try {
             u = this.userChannelDao.getUser(nick);
         } catch (DaoException de) {
+            key = this.normalize(nick);
+            for (User o: this.userChannelDao.getAllUsers()) {
+                if (this.normalize(o.getNick()).equals(key)) {
+                    return o;
+                }
+            }
+
             return null;
         }
 
@@ -109,39 +692,50 @@ public class DBusPircBotX extends PircBotX
         return u;
     }
 
-    private boolean channelPrivsCheck(MemberListGetter get, User u) {
-        return get.getUsers().contains(u);
-    }
-
-    private boolean checkUserPrivs(GetterLambda lam, String channel,
-            String user) throws NotOnChannel, UserNotOnChannel {
-        Channel c;
+    /**
+     * Look up a user's privilege level on a channel, returning -1 if the
+     * user is not on the channel.
+     */
+    private int userLevel(Channel c, String user) {
+        Integer l;
         User u;
-        MemberListGetter g;
 
-        c = this.getChannel(channel);
-        u = this.getChannelUser(channel, user);
-        g = lam.get(c);
+        l = this.privs.get(c.getName(), user);
+        if (l != null) {
+            return l;
+        } else if (this.privs.isComplete(c.getName())) {
+            return -1;
+        }
+
+        /* the user list is still arriving, so fall back to the channel
+         * state */
+        u = this.getUser(user);
+        if (u == null || !u.getChannels().contains(c)) {
+            return -1;
+        }
 
-        return this.channelPrivsCheck(g, u);
+        return PrivilegeIndex.levelOf(c.getUserLevels(u));
     }
 
-    private void maybeSendOnChannel(String dest, String msg, ChanSend ischan,
-            PrivSend notchan) throws NotOnChannel {
-        String info;
+    private boolean checkUserPrivs(int mask, String channel, String user)
+        throws NotOnChannel, UserNotOnChannel {
+        return (this.GetUserLevel(channel, user) & mask) != 0;
+    }
 
-        info = this.getServerInfo().getISupportValue("CHANTYPES");
+    private boolean isChannel(String dest) {
+        return this.isupport.isChannel(dest);
+    }
 
-        if (info == null) {
-            /* assume this is a channel if we can't distinguish otherwise */
-            ischan.send(dest, msg);
-        } else if (info.contains(dest.substring(0,1))) {
-            /* on channel, so send to there */
-            ischan.send(dest, msg);
-        } else {
-            /* not on channel, so attempt to send directly */
-            notchan.send(dest, msg);
+    private void maybeSendOnChannel(String dest, String msg, Priority prio,
+            MessageKind kind) throws NotOnChannel {
+        /* while disconnected there are no channels to check against, so
+         * the message is held until we are back */
+        if (this.online && this.isChannel(dest)) {
+            this.getChannel(dest);
         }
+
+        this.queueMessage(prio, kind.prefix(dest), msg, kind.suffix, null,
+                null);
     }
 
 
@@ -154,126 +748,575 @@ public class DBusPircBotX extends PircBotX
         return false;
     }
 
+    /**
+     * Run the body of a DBus method, recording it as a flight recorder
+     * event, and in the stats if it is an Input method.
+     */
+    private <T> T call(String iface, String method, String target,
+            int payload, Supplier<T> body) {
+        MethodCallEvent ev;
+        RuntimeException error;
+        T ret;
+        long start;
+
+        ev = new MethodCallEvent();
+        ev.begin();
+        start = System.nanoTime();
+        error = null;
+        ret = null;
+
+        try {
+            ret = body.get();
+        } catch (RuntimeException re) {
+            error = re;
+        }
+
+        ev.end();
+        if (INPUT.equals(iface)) {
+            this.getStats().inputDone(start, error != null);
+        }
+
+        if (ev.shouldCommit()) {
+            ev.server = this.emitter.getName();
+            ev.iface = iface;
+            ev.method = method;
+            ev.target = target;
+            ev.payloadLength = payload;
+            ev.error = (error == null) ? null :
+                error.getClass().getSimpleName();
+            ev.commit();
+        }
+
+        if (error != null) {
+            throw error;
+        }
+
+        return ret;
+    }
+
+    private <T> T traced(String method, String target, Supplier<T> body) {
+        return this.call(SERVER, method, target, 0, body);
+    }
+
     /* Server interface implementation */
     public String GetNick() {
-        return this.getNick();
+        return this.traced("GetNick", null, () -> this.getNick());
     }
 
     public String[] GetChannelNames() {
-        return this.userChannelDao.getAllChannels()
-            .stream().map(c -> c.getName())
-            .toArray(String[]::new);
+        return this.traced("GetChannelNames", null, () ->
+                this.userChannelDao.getAllChannels()
+                    .stream().map(c -> c.getName())
+                    .toArray(String[]::new));
+    }
+
+    private MemberCache.Snapshot getMembers(String channel)
+        throws NotOnChannel {
+        return this.members.get(channel, this.getChannel(channel).getUsers());
     }
 
     public String[] GetChannelUsers(String channel) throws NotOnChannel {
-        return this.getChannel(channel).getUsers().stream()
-            .map(u -> u.getHostmask()).toArray(String[]::new);
+        return this.traced("GetChannelUsers", channel, () ->
+                this.getMembers(channel).getHostmasks());
     }
 
-    public String GetChannelMode(String channel) throws NotOnChannel {
+    private String[] getMembersPage(String channel, String glob,
+            String cursor, int limit) throws NotOnChannel {
+        if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+            limit = MAX_PAGE_SIZE;
+        }
+
+        return this.getMembers(channel).page(this.normalize(cursor), limit,
+                (glob == null) ? null : MemberCache.globToPattern(glob));
+    }
+
+    public String[] GetChannelUsersPage(String channel, String cursor,
+            int limit) throws NotOnChannel {
+        return this.traced("GetChannelUsersPage", channel, () ->
+                this.getMembersPage(channel, null, cursor, limit));
+    }
+
+    public String[] GetChannelUsersMatching(String channel, String glob,
+            String cursor, int limit) throws NotOnChannel {
+        return this.traced("GetChannelUsersMatching", channel, () ->
+                this.getMembersPage(channel, glob, cursor, limit));
+    }
+
+    public String GetChannelMode(String channel)
+        throws NotOnChannel, ChannelModeUnavailable {
+        return this.traced("GetChannelMode", channel, () ->
+                this.doGetChannelMode(channel));
+    }
+
+    private String doGetChannelMode(String channel)
+        throws NotOnChannel, ChannelModeUnavailable {
         String ret;
-        boolean done;
 
-        ret = null;
-        done = true;
+        this.getChannel(channel);
 
-        do {
-            try {
-                ret = this.getChannel(channel).getMode();
-            } catch (NotReadyException nre) {
-                done = false;
-            }
-        } while (!done);
+        if (!this.modes.isFresh(channel)) {
+            this.requestMode(channel);
+        }
+
+        try {
+            ret = this.modes.await(channel, MODE_TIMEOUT);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            ret = null;
+        }
+
+        if (ret == null) {
+            throw new ChannelModeUnavailable(channel);
+        }
 
         return ret;
     }
 
     public boolean ChannelContainsUser(String channel, String user)
         throws NotOnChannel {
-        return this.getChannel(channel).getUsersNicks().contains(user);
+        return this.traced("ChannelContainsUser", channel, () ->
+                this.userLevel(this.getChannel(channel), user) >= 0);
+    }
+
+    public int GetUserLevel(String channel, String user)
+        throws NotOnChannel, UserNotOnChannel {
+        return this.traced("GetUserLevel", channel, () ->
+                this.doGetUserLevel(channel, user));
+    }
+
+    private int doGetUserLevel(String channel, String user)
+        throws NotOnChannel, UserNotOnChannel {
+        int l;
+
+        l = this.userLevel(this.getChannel(channel), user);
+        if (l < 0) {
+            throw new UserNotOnChannel(user, channel);
+        }
+
+        return l;
+    }
+
+    public int[] GetUserLevels(String channel, String[] users)
+        throws NotOnChannel {
+        return this.traced("GetUserLevels", channel, () ->
+                this.doGetUserLevels(channel, users));
+    }
+
+    private int[] doGetUserLevels(String channel, String[] users)
+        throws NotOnChannel {
+        Channel c;
+        int[] ret;
+
+        c = this.getChannel(channel);
+        ret = new int[users.length];
+
+        for (int i = 0; i < users.length; i++) {
+            ret[i] = this.userLevel(c, users[i]);
+        }
+
+        return ret;
     }
 
     public boolean UserIsRegular(String channel, String user) throws
         NotOnChannel, UserNotOnChannel {
-        return this.checkUserPrivs((c -> c::getNormalUsers), channel, user);
+        return this.traced("UserIsRegular", channel, () ->
+                this.doGetUserLevel(channel, user) == 0);
     }
 
     public boolean UserIsVoiced(String channel, String user) throws
         NotOnChannel, UserNotOnChannel {
-        return this.checkUserPrivs((c -> c::getVoices), channel, user);
+        return this.traced("UserIsVoiced", channel, () ->
+                this.checkUserPrivs(PrivilegeIndex.LEVEL_VOICE, channel,
+                    user));
     }
 
     public boolean UserIsHalfOp(String channel, String user) throws
         NotOnChannel, UserNotOnChannel {
-        return this.checkUserPrivs((c -> c::getHalfOps), channel, user);
+        return this.traced("UserIsHalfOp", channel, () ->
+                this.checkUserPrivs(PrivilegeIndex.LEVEL_HALFOP, channel,
+                    user));
     }
 
     public boolean UserIsOp(String channel, String user) throws
         NotOnChannel, UserNotOnChannel {
-        return this.checkUserPrivs((c -> c::getOps), channel, user);
+        return this.traced("UserIsOp", channel, () ->
+                this.checkUserPrivs(PrivilegeIndex.LEVEL_OP, channel,
+                    user));
     }
 
     public boolean UserIsSuperOp(String channel, String user) throws
         NotOnChannel, UserNotOnChannel {
-        return this.checkUserPrivs((c -> c::getSuperOps), channel, user);
+        return this.traced("UserIsSuperOp", channel, () ->
+                this.checkUserPrivs(PrivilegeIndex.LEVEL_SUPEROP, channel,
+                    user));
     }
 
     public boolean UserIsOwner(String channel, String user) throws
         NotOnChannel, UserNotOnChannel {
-        return this.checkUserPrivs((c -> c::getOwners), channel, user);
+        return this.traced("UserIsOwner", channel, () ->
+                this.checkUserPrivs(PrivilegeIndex.LEVEL_OWNER, channel,
+                    user));
     }
 
     public boolean UserIsPrivd(String channel, String user) {
-        return !this.UserIsRegular(channel, user) &&
-            !this.UserIsVoiced(channel, user);
+        return this.traced("UserIsPrivd", channel, () ->
+                this.isPrivd(this.doGetUserLevel(channel, user)));
+    }
+
+    /* as before the index, a voiced user is never privileged, even when
+     * they also hold a higher mode */
+    private boolean isPrivd(int level) {
+        return level != 0 && (level & PrivilegeIndex.LEVEL_VOICE) == 0;
+    }
+
+    public UInt64 GetSignalQueueDepth() {
+        return this.traced("GetSignalQueueDepth", null, () ->
+                new UInt64(this.emitter.getQueueDepth()));
+    }
+
+    public UInt64 GetSignalsDropped() {
+        return this.traced("GetSignalsDropped", null, () ->
+                new UInt64(this.emitter.getDropped()));
+    }
+
+    public List<EventRecord> GetRecentEvents(String channel, UInt64 since,
+            int max) {
+        return this.traced("GetRecentEvents", channel, () ->
+                this.doGetRecentEvents(channel, since, max));
+    }
+
+    private List<EventRecord> doGetRecentEvents(String channel, UInt64 since,
+            int max) {
+        Scrollback sb;
+
+        sb = this.scrollback;
+        if (sb == null) {
+            return new ArrayList<>();
+        }
+
+        return sb.get(channel, since.longValue(), max);
+    }
+
+    public UInt64 ReplayEvents(UInt64 from, UInt64 to)
+        throws JournalNotEnabled, JournalClosed {
+        return this.traced("ReplayEvents", null, () ->
+                this.doReplayEvents(from, to));
+    }
+
+    private UInt64 doReplayEvents(UInt64 from, UInt64 to)
+        throws JournalNotEnabled, JournalClosed {
+        EventJournal j;
+
+        j = this.journal;
+        if (j == null) {
+            throw new JournalNotEnabled();
+        }
+
+        return new UInt64(j.startReplay(from.longValue(), to.longValue()));
+    }
+
+    public List<EventRecord> SearchMessages(String channel, String query,
+            UInt64 from, UInt64 to, int limit) throws SearchNotEnabled {
+        return this.traced("SearchMessages", channel, () ->
+                this.doSearchMessages(channel, query, from, to, limit));
+    }
+
+    private List<EventRecord> doSearchMessages(String channel, String query,
+            UInt64 from, UInt64 to, int limit) throws SearchNotEnabled {
+        SearchIndex si;
+
+        si = this.search;
+        if (si == null) {
+            throw new SearchNotEnabled();
+        }
+
+        try {
+            return si.search(channel, query, from.longValue(),
+                    to.longValue(), limit);
+        } catch (IOException ioe) {
+            log.error("Could not search messages on " + channel + ": " +
+                    ioe.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    public Map<String, UInt64> GetOutboundStats() {
+        return this.traced("GetOutboundStats", null, () ->
+                this.doGetOutboundStats());
+    }
+
+    private Map<String, UInt64> doGetOutboundStats() {
+        Map<String, UInt64> ret;
+
+        ret = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> e: this.outbound.getStats().entrySet()) {
+            ret.put(e.getKey(), new UInt64(e.getValue()));
+        }
+
+        return ret;
+    }
+
+    /* Stats interface implementation */
+
+    /**
+     * Current counters of this server, along with its queue depths.
+     */
+    public ServerStats.Snapshot getStatsSnapshot() {
+        ServerStats.Snapshot ret;
+        long depth;
+
+        ret = this.getStats().snapshot();
+        ret.put("signal-queue-depth", this.emitter.getQueueDepth());
+        ret.put("signals-dropped", this.emitter.getDropped());
+
+        depth = 0;
+        for (Map.Entry<String, Long> e: this.outbound.getStats().entrySet()) {
+            if (e.getKey().endsWith("-depth")) {
+                depth += e.getValue();
+            }
+        }
+
+        ret.put("outbound-queue-depth", depth);
+
+        if (this.capture != null) {
+            ret.put("capture-dropped", this.capture.getDropped());
+        }
+
+        return ret;
+    }
+
+    public Map<String, UInt64> GetStats() {
+        Map<String, UInt64> ret;
+
+        ret = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> e:
+                this.getStatsSnapshot().toMap().entrySet()) {
+            ret.put(e.getKey(), new UInt64(e.getValue()));
+        }
+
+        return ret;
+    }
+
+    public void ResetStats() {
+        this.getStats().reset();
     }
 
     /* Input interface implementation */
 
+    private <T> T timedValue(String method, String target, int payload,
+            Supplier<T> body) {
+        return this.call(INPUT, method, target, payload, body);
+    }
+
+    private void timed(String method, String target, int payload,
+            Runnable body) {
+        this.call(INPUT, method, target, payload,
+                () -> { body.run(); return null; });
+    }
+
     private void doJoin(String chan, Optional<String> key)
         throws AlreadyOnChannel {
         if (this.userChannelDao.containsChannel(chan)) {
             throw new AlreadyOnChannel(chan);
         }
 
-        key.map(k ->
-                { this.outputIRC.joinChannel(chan, k); return null; })
-            .orElseGet(() ->
-                    { this.outputIRC.joinChannel(chan); return null; });
+        this.joinWithKey(chan, key.orElse(null));
+    }
+
+    private void doPart(String chan, Optional<String> msg)
+        throws NotOnChannel {
+        Channel c;
+
+        c = this.getChannel(chan);
+        this.outbound.submit(Priority.NORMAL, () ->
+                msg.map(m -> { c.send().part(m); return null; })
+                    .orElseGet(() -> { c.send().part(); return null; }));
     }
 
     public void JoinChannel(String chan) throws AlreadyOnChannel {
-        this.doJoin(chan, Optional.empty());
+        this.timed("JoinChannel", chan, 0,
+                () -> this.doJoin(chan, Optional.empty()));
     }
 
     public void JoinChannel(String chan, String key) throws AlreadyOnChannel {
-        this.doJoin(chan, Optional.of(key));
+        this.timed("JoinChannel", chan, 0,
+                () -> this.doJoin(chan, Optional.of(key)));
     }
 
     public void PartChannel(String chan) throws NotOnChannel {
-        this.getChannel(chan).send().part();
+        this.timed("PartChannel", chan, 0,
+                () -> this.doPart(chan, Optional.empty()));
     }
 
     public void PartChannel(String chan, String msg) throws NotOnChannel {
-        this.getChannel(chan).send().part(msg);
+        this.timed("PartChannel", chan, msg.length(),
+                () -> this.doPart(chan, Optional.of(msg)));
+    }
+
+    private void doSend(String method, String dest, String msg,
+            String priority, MessageKind kind)
+        throws NotOnChannel, BadPriority, OutboundQueueFull {
+        this.timed(method, dest, msg.length(), () ->
+                this.maybeSendOnChannel(dest, msg,
+                    Priority.fromString(priority), kind));
     }
 
     public void SendMsg(String dest, String msg) throws NotOnChannel {
-        this.maybeSendOnChannel(dest, msg,
-                ((d,m) -> this.getChannel(d).send().message(m)),
-                ((d,m) -> this.sendIRC().message(d, m)));
+        this.doSend("SendMsg", dest, msg, "normal", MessageKind.MSG);
+    }
+
+    public void SendMsgWithPriority(String dest, String msg, String priority)
+        throws NotOnChannel, BadPriority, OutboundQueueFull {
+        this.doSend("SendMsgWithPriority", dest, msg, priority,
+                MessageKind.MSG);
     }
 
     public void SendAction(String dest, String msg) throws NotOnChannel {
-        this.maybeSendOnChannel(dest, msg,
-                ((d,m) -> this.getChannel(d).send().action(m)),
-                ((d,m) -> this.sendIRC().action(d, m)));
+        this.doSend("SendAction", dest, msg, "normal", MessageKind.ACTION);
+    }
+
+    public void SendActionWithPriority(String dest, String msg,
+            String priority)
+        throws NotOnChannel, BadPriority, OutboundQueueFull {
+        this.doSend("SendActionWithPriority", dest, msg, priority,
+                MessageKind.ACTION);
     }
 
     public void SendNotice(String dest, String msg) throws NotOnChannel {
-        this.maybeSendOnChannel(dest, msg,
-                ((d,m) -> this.getChannel(d).send().notice(m)),
-                ((d,m) -> this.sendIRC().notice(d, m)));
+        this.doSend("SendNotice", dest, msg, "normal", MessageKind.NOTICE);
+    }
+
+    public void SendNoticeWithPriority(String dest, String msg,
+            String priority)
+        throws NotOnChannel, BadPriority, OutboundQueueFull {
+        this.doSend("SendNoticeWithPriority", dest, msg, priority,
+                MessageKind.NOTICE);
+    }
+
+    /**
+     * Emit the MessageSent or MessageDropped signal for an asynchronously
+     * sent message.
+     */
+    private void acknowledge(long id, long wait, String error) {
+        DBusSignal sig;
+        UInt64 timestamp;
+
+        timestamp = new UInt64(System.currentTimeMillis());
+
+        try {
+            if (error == null) {
+                sig = new Input.MessageSent(this.path.getPath(), timestamp,
+                        new UInt64(id), new UInt64(wait));
+            } else {
+                sig = new Input.MessageDropped(this.path.getPath(),
+                        timestamp, new UInt64(id), new UInt64(wait), error);
+            }
+        } catch (DBusException dbe) {
+            log.error("Could not create message acknowledgement signal: " +
+                    dbe.getMessage());
+            return;
+        }
+
+        this.emitter.emit(sig);
+    }
+
+    /**
+     * Queue a message without resolving its destination first, which is
+     * left to the outbound scheduler's thread.
+     */
+    private UInt64 sendAsync(String dest, String msg, String priority,
+            MessageKind kind) throws BadPriority, OutboundQueueFull {
+        Priority prio;
+        Runnable check;
+        long id;
+
+        prio = Priority.fromString(priority);
+        id = this.msgids.incrementAndGet();
+
+        /* messages queued while disconnected are not checked, as the
+         * channel may not have been joined again by the time they are
+         * sent */
+        check = null;
+        if (this.online && this.isChannel(dest)) {
+            check = () -> this.getChannel(dest);
+        }
+
+        this.queueMessage(prio, kind.prefix(dest), msg, kind.suffix, check,
+                (wait, error) -> this.acknowledge(id, wait, error));
+
+        return new UInt64(id);
+    }
+
+    public UInt64 SendMsgAsync(String dest, String msg, String priority)
+        throws BadPriority, OutboundQueueFull {
+        return this.timedValue("SendMsgAsync", dest, msg.length(), () ->
+                this.sendAsync(dest, msg, priority, MessageKind.MSG));
+    }
+
+    public UInt64 SendActionAsync(String dest, String msg, String priority)
+        throws BadPriority, OutboundQueueFull {
+        return this.timedValue("SendActionAsync", dest, msg.length(), () ->
+                this.sendAsync(dest, msg, priority, MessageKind.ACTION));
+    }
+
+    public UInt64 SendNoticeAsync(String dest, String msg, String priority)
+        throws BadPriority, OutboundQueueFull {
+        return this.timedValue("SendNoticeAsync", dest, msg.length(), () ->
+                this.sendAsync(dest, msg, priority, MessageKind.NOTICE));
+    }
+
+    public void SendMsgBatch(String[] dests, String[] lines)
+        throws NotOnChannel, OutboundQueueFull {
+        int payload;
+
+        payload = 0;
+        for (String l: lines) {
+            payload += l.length();
+        }
+
+        this.timed("SendMsgBatch", String.join(",", dests), payload,
+                () -> this.doSendBatch(dests, lines));
+    }
+
+    private void doSendBatch(String[] dests, String[] lines)
+        throws NotOnChannel, OutboundQueueFull {
+        MessagePacker packer;
+        User me;
+        List<String> groups;
+        String login;
+
+        for (String d: dests) {
+            if (this.online && this.isChannel(d)) {
+                this.getChannel(d);
+            }
+        }
+
+        me = this.getUserBot();
+        login = (me.getLogin() != null) ?
+            me.getLogin() : this.getConfiguration().getLogin();
+
+        packer = new MessagePacker("PRIVMSG", this.isupport, this.getNick(),
+                login, me.getHostname());
+        groups = packer.packTargets(
+                new ArrayList<>(new LinkedHashSet<>(Arrays.asList(dests))));
+
+        /* each line goes to every target before the next line is sent, so
+         * that multi-line reports arrive in order everywhere */
+        for (String l: lines) {
+            for (String part: l.split("\r\n|\r|\n")) {
+                if (part.isEmpty()) {
+                    continue;
+                }
+
+                for (String g: groups) {
+                    for (String chunk: packer.split(g, part)) {
+                        this.queueMessage(Priority.NORMAL,
+                                MessageKind.MSG.prefix(g), chunk, "", null,
+                                null);
+                    }
+                }
+            }
+        }
     }
 
     private void doKick(String chan, String user, Optional<String> reason)
@@ -284,28 +1327,50 @@ public class DBusPircBotX extends PircBotX
         c = this.getChannel(chan);
         u = this.getChannelUser(chan, user);
 
-        reason.map(r -> { c.send().kick(u, r); return null; })
-            .orElseGet(() -> { c.send().kick(u); return null; });
+        this.outbound.submit(Priority.NORMAL, () ->
+                reason.map(r -> { c.send().kick(u, r); return null; })
+                    .orElseGet(() -> { c.send().kick(u); return null; }));
     }
 
     public void SendKick(String chan, String user) throws NotOnChannel,
         UserNotOnChannel {
-        this.doKick(chan, user, Optional.empty());
+        this.timed("SendKick", chan, 0,
+                () -> this.doKick(chan, user, Optional.empty()));
     }
 
     public void SendKick(String chan, String user, String reason)
         throws NotOnChannel, UserNotOnChannel {
-        this.doKick(chan, user, Optional.of(reason));
+        this.timed("SendKick", chan, reason.length(),
+                () -> this.doKick(chan, user, Optional.of(reason)));
+    }
+
+    private void doChangeMode(String target, String mode)
+        throws NotOnChannel {
+        Channel c;
+
+        c = this.getChannel(target);
+        this.outbound.submit(Priority.NORMAL, () -> c.send().setMode(mode));
     }
 
     public void ChangeMode(String target, String mode)
         throws NotOnChannel {
-        this.getChannel(target).send().setMode(mode);
+        this.timed("ChangeMode", target, 0,
+                () -> this.doChangeMode(target, mode));
+    }
+
+    private void doChangeTopic(String target, String topic)
+        throws NotOnChannel {
+        Channel c;
+
+        c = this.getChannel(target);
+        this.outbound.submit(Priority.NORMAL,
+                () -> c.send().setTopic(topic));
     }
 
     public void ChangeTopic(String target, String topic)
         throws NotOnChannel {
-        this.getChannel(target).send().setTopic(topic);
+        this.timed("ChangeTopic", target, topic.length(),
+                () -> this.doChangeTopic(target, topic));
     }
 
     private void doQuit(Optional<String> msg) {
@@ -314,10 +1379,12 @@ public class DBusPircBotX extends PircBotX
     }
 
     public void SendQuit() {
-        this.doQuit(Optional.empty());
+        this.timed("SendQuit", null, 0,
+                () -> this.doQuit(Optional.empty()));
     }
 
     public void SendQuit(String msg) {
-        this.doQuit(Optional.of(msg));
+        this.timed("SendQuit", null, msg.length(),
+                () -> this.doQuit(Optional.of(msg)));
     }
 }
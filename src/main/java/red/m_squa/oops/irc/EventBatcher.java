@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.types.UInt64;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import red.m_squa.oops.DBusPath;
+import red.m_squa.oops.iface.EventRecord;
+import red.m_squa.oops.iface.Output;
+
+/**
+ * Collects event records into batches, which are sent as a single
+ * EventBatch signal once the batch is full or the linger time expires.
+ *
+ * The linger timer is shared by every server, so it never waits for room
+ * in an emitter's queue; if there is none, it tries again after another
+ * linger time.
+ */
+public class EventBatcher implements EventSink {
+    private static final Logger log =
+        LoggerFactory.getLogger(EventBatcher.class);
+    private static final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "oops-batch-timer");
+            t.setDaemon(true);
+            return t;
+        });
+
+    private final SignalEmitter emitter;
+    private final SignalFilter filter;
+    private final DBusPath path;
+    private final int size;
+    private final long linger;
+    /* held while taking a batch and queueing it, so that batches go out
+     * in order */
+    private final ReentrantLock emitLock;
+    private List<EventRecord> pending;
+    private ScheduledFuture<?> flushtask;
+
+    public EventBatcher(SignalEmitter emitter, SignalFilter filter,
+            DBusPath path, int size, long linger) {
+        this.emitter = emitter;
+        this.filter = filter;
+        this.path = path;
+        this.size = size;
+        this.linger = linger;
+        this.emitLock = new ReentrantLock();
+        this.pending = new ArrayList<>(size);
+        this.flushtask = null;
+    }
+
+    public boolean isActive() {
+        return this.filter.wants("EventBatch");
+    }
+
+    public void accept(EventRecord rec) {
+        boolean full;
+
+        synchronized (this) {
+            this.pending.add(rec);
+            full = this.pending.size() >= this.size;
+
+            if (!full) {
+                this.schedule();
+            }
+        }
+
+        if (full) {
+            this.flush();
+        }
+    }
+
+    public void close() {
+        this.flush();
+    }
+
+    /* start the linger timer if it is not already running */
+    private synchronized void schedule() {
+        if (this.flushtask == null && !this.pending.isEmpty()) {
+            this.flushtask = timer.schedule(this::expire, this.linger,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Send whatever is pending, waiting for room in the emitter's queue if
+     * its overflow policy says to.
+     */
+    public void flush() {
+        this.emitLock.lock();
+        try {
+            this.send(true);
+        } finally {
+            this.emitLock.unlock();
+        }
+    }
+
+    /* the linger time is up; runs on the shared timer thread */
+    private void expire() {
+        boolean sent;
+
+        if (!this.emitLock.tryLock()) {
+            /* a flush is already in progress, and may be waiting */
+            synchronized (this) {
+                this.flushtask = null;
+            }
+
+            this.schedule();
+            return;
+        }
+
+        try {
+            sent = this.send(false);
+        } finally {
+            this.emitLock.unlock();
+        }
+
+        if (!sent) {
+            this.schedule();
+        }
+    }
+
+    /* take the pending batch and queue it, returning false if wait is false
+     * and there was no room, in which case the batch is put back */
+    private boolean send(boolean wait) {
+        List<EventRecord> batch;
+        Output.EventBatch sig;
+
+        synchronized (this) {
+            if (this.flushtask != null) {
+                this.flushtask.cancel(false);
+                this.flushtask = null;
+            }
+
+            if (this.pending.isEmpty()) {
+                return true;
+            }
+
+            batch = this.pending;
+            this.pending = new ArrayList<>(this.size);
+        }
+
+        try {
+            sig = new Output.EventBatch(this.path.getPath(),
+                    new UInt64(System.currentTimeMillis()), batch);
+        } catch (DBusException dbe) {
+            log.error("Could not create event batch signal: " +
+                    dbe.getMessage());
+            return true;
+        }
+
+        if (wait) {
+            this.emitter.emit(sig);
+            return true;
+        } else if (this.emitter.offer(sig)) {
+            return true;
+        }
+
+        synchronized (this) {
+            batch.addAll(this.pending);
+            this.pending = batch;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.types.UInt64;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import red.m_squa.oops.DBusPath;
+import red.m_squa.oops.except.JournalClosed;
+import red.m_squa.oops.iface.EventRecord;
+import red.m_squa.oops.iface.Output;
+
+/**
+ * Append-only journal of every event record, written to memory-mapped
+ * segment files by a thread of its own, or the shared workers for servers
+ * on the selector transport, so that the event thread only ever queues
+ * records. Each segment is named after the timestamp of its first
+ * record, and old segments are deleted once they exceed the configured
+ * age or total size.
+ *
+ * A segment starts with a magic number and format version, followed by
+ * records of the form: int length, long timestamp, type, source, channel
+ * count, channels, argument count, arguments, where each string is a short
+ * byte length followed by UTF-8 bytes (-1 for null). The length of a record
+ * is written after its body, so a torn record reads as the end of the
+ * segment.
+ */
+public class EventJournal implements EventSink {
+    private static final Logger log =
+        LoggerFactory.getLogger(EventJournal.class);
+    private static final int MAGIC = 0x4f4f504a;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final String SUFFIX = ".journal";
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+    private static final int BATCH = 64;
+
+    /* number of records in each replay signal */
+    private static final int REPLAY_BATCH = 100;
+
+    private final String name;
+    private final File dir;
+    private final int segsize;
+    private final long maxage;
+    private final long maxbytes;
+    private final BlockingQueue<EventRecord> queue;
+    private final AtomicLong dropped;
+    private final AtomicLong replays;
+    private final SignalEmitter emitter;
+    private final DBusPath path;
+    private final Workers.Drain writer;
+    /* replays in progress, cancelled on close */
+    private final List<Future<?>> replaying;
+    private ExecutorService replayer;
+    private volatile boolean running;
+    private FileChannel segchan;
+    private MappedByteBuffer segment;
+    private File segfile;
+
+    /**
+     * Create a journal writing segments of segsize bytes into dir, keeping
+     * segments for at most maxage milliseconds and maxbytes bytes in total
+     * (0 for no limit), and queueing at most queuesize records.
+     */
+    public EventJournal(String name, File dir, int segsize, long maxage,
+            long maxbytes, int queuesize, SignalEmitter emitter,
+            DBusPath path) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create directory " + dir);
+        }
+
+        this.name = name;
+        this.dir = dir;
+        this.segsize = segsize;
+        this.maxage = maxage;
+        this.maxbytes = maxbytes;
+        this.queue = new ArrayBlockingQueue<>(queuesize);
+        this.dropped = new AtomicLong();
+        this.replays = new AtomicLong();
+        this.emitter = emitter;
+        this.path = path;
+        this.running = false;
+
+        this.writer = new Workers.Drain("oops-journal-" + name, this::drain);
+        this.replaying = new ArrayList<>();
+    }
+
+    /**
+     * Write and replay on the shared workers rather than threads of its
+     * own. Must be called before start().
+     */
+    public void useSharedWorkers() {
+        this.writer.share();
+    }
+
+    public void start() {
+        if (this.writer.isShared()) {
+            this.replayer = Workers.replays;
+        } else {
+            this.replayer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "oops-replay-" + this.name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        this.running = true;
+        this.writer.start();
+    }
+
+    public boolean isActive() {
+        return true;
+    }
+
+    /* never blocks the event thread; records which do not fit are lost */
+    public void accept(EventRecord rec) {
+        if (!this.running || !this.queue.offer(rec)) {
+            this.dropped.incrementAndGet();
+            return;
+        }
+
+        this.writer.kick();
+    }
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /* encoding */
+
+    private static void putString(ByteBuffer buf, String s) {
+        byte[] b;
+
+        if (s == null) {
+            buf.putShort((short) -1);
+            return;
+        }
+
+        b = s.getBytes(StandardCharsets.UTF_8);
+        if (b.length > Short.MAX_VALUE) {
+            b = Arrays.copyOf(b, Short.MAX_VALUE);
+        }
+
+        buf.putShort((short) b.length);
+        buf.put(b);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] b;
+        short len;
+
+        len = buf.getShort();
+        if (len < 0) {
+            return null;
+        }
+
+        b = new byte[len];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static String[] getStrings(ByteBuffer buf) {
+        String[] ret;
+
+        ret = new String[buf.getShort()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = getString(buf);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Append a record to the current segment, returning false if it does
+     * not fit.
+     */
+    private boolean write(EventRecord rec) {
+        int start;
+
+        start = this.segment.position();
+
+        try {
+            this.segment.putInt(0);
+            this.segment.putLong(rec.ts.longValue());
+            putString(this.segment, rec.type);
+            putString(this.segment, rec.src);
+
+            this.segment.putShort((short) rec.chans.length);
+            for (String s: rec.chans) {
+                putString(this.segment, s);
+            }
+
+            this.segment.putShort((short) rec.args.length);
+            for (String s: rec.args) {
+                putString(this.segment, s);
+            }
+
+            /* leave room for the zero length which ends the segment */
+            this.segment.putInt(0);
+        } catch (BufferOverflowException boe) {
+            this.segment.position(start);
+            return false;
+        }
+
+        this.segment.position(this.segment.position() - 4);
+        this.segment.putInt(start, this.segment.position() - start);
+        return true;
+    }
+
+    private static EventRecord read(ByteBuffer buf) {
+        long ts;
+        String type, src;
+        String[] chans, args;
+
+        ts = buf.getLong();
+        type = getString(buf);
+        src = getString(buf);
+        chans = getStrings(buf);
+        args = getStrings(buf);
+
+        return new EventRecord(type, new UInt64(ts), src, chans, args);
+    }
+
+    /* segments */
+
+    private static long segmentStart(File f) {
+        String n;
+
+        n = f.getName();
+        try {
+            return Long.parseLong(n.substring(0, n.length() -
+                        SUFFIX.length()));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * List the segments in the journal directory, oldest first.
+     */
+    private File[] segments() {
+        File[] ret;
+
+        ret = this.dir.listFiles((d, n) -> n.endsWith(SUFFIX));
+        if (ret == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(ret, (a, b) ->
+                Long.compare(segmentStart(a), segmentStart(b)));
+        return ret;
+    }
+
+    /**
+     * Cut the current segment down to the data actually written.
+     */
+    private void closeSegment() throws IOException {
+        if (this.segchan == null) {
+            return;
+        }
+
+        if (this.segment != null) {
+            this.segment.force();
+            this.segchan.truncate(this.segment.position());
+        }
+
+        this.segchan.close();
+        this.segchan = null;
+        this.segment = null;
+    }
+
+    /**
+     * Give up on the current segment after an I/O error, cutting it down to
+     * the records already written, or deleting it if it was never mapped.
+     */
+    private void abandonSegment() {
+        if (this.segchan == null) {
+            this.segment = null;
+            return;
+        }
+
+        try {
+            if (this.segment != null) {
+                this.segchan.truncate(this.segment.position());
+            }
+        } catch (IOException ioe) {
+            log.error("Could not truncate journal segment " + this.segfile +
+                    ": " + ioe.getMessage());
+        }
+
+        try {
+            this.segchan.close();
+        } catch (IOException ioe) {
+            log.error("Could not close journal segment " + this.segfile +
+                    ": " + ioe.getMessage());
+        }
+
+        if (this.segment == null && !this.segfile.delete()) {
+            log.warn("Could not delete journal segment " + this.segfile);
+        }
+
+        this.segchan = null;
+        this.segment = null;
+    }
+
+    private void openSegment(long ts) throws IOException {
+        File f;
+
+        this.closeSegment();
+
+        /* names must be unique even if two segments start in the same
+         * millisecond */
+        do {
+            f = new File(this.dir, String.format("%020d%s", ts++, SUFFIX));
+        } while (f.exists());
+
+        this.segfile = f;
+        this.segchan = new RandomAccessFile(f, "rw").getChannel();
+        this.segment = this.segchan.map(FileChannel.MapMode.READ_WRITE, 0,
+                this.segsize);
+
+        this.segment.putInt(MAGIC);
+        this.segment.putInt(VERSION);
+
+        this.expire();
+    }
+
+    /**
+     * Delete the oldest segments until the journal is within its limits.
+     */
+    private void expire() {
+        File[] segs;
+        long total, cutoff;
+        int i;
+
+        segs = this.segments();
+        total = 0;
+        for (File f: segs) {
+            total += f.length();
+        }
+
+        cutoff = System.currentTimeMillis() - this.maxage;
+
+        /* a segment is only past its age once the next one has started */
+        for (i = 0; i < segs.length - 1; i++) {
+            if (segs[i].equals(this.segfile)) {
+                break;
+            }
+
+            if (!((this.maxbytes > 0 && total > this.maxbytes) ||
+                        (this.maxage > 0 &&
+                         segmentStart(segs[i + 1]) < cutoff))) {
+                break;
+            }
+
+            total -= segs[i].length();
+            if (!segs[i].delete()) {
+                log.warn("Could not delete journal segment " + segs[i]);
+            }
+        }
+    }
+
+    /* write a batch of queued records, returning true if there are more */
+    private boolean drain() {
+        EventRecord rec;
+
+        for (int i = 0; i < BATCH && (rec = this.queue.poll()) != null; i++) {
+            try {
+                if (this.segment == null || !this.write(rec)) {
+                    this.openSegment(rec.ts.longValue());
+                    if (!this.write(rec)) {
+                        log.warn("Event too large for journal segment");
+                        this.dropped.incrementAndGet();
+                    }
+                }
+            } catch (IOException ioe) {
+                log.error("Could not write journal segment: " +
+                        ioe.getMessage());
+                this.dropped.incrementAndGet();
+                this.abandonSegment();
+            }
+        }
+
+        return !this.queue.isEmpty();
+    }
+
+    /* replay */
+
+    /**
+     * Read the records of one segment with timestamps in the given range,
+     * passing them on in batches. Returns false if replay should stop.
+     */
+    private boolean replaySegment(File f, long from, long to, long id,
+            List<EventRecord> batch) throws IOException {
+        ByteBuffer buf;
+        EventRecord rec;
+        int len, start;
+
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+                FileChannel fc = raf.getChannel()) {
+            buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        }
+
+        if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC ||
+                buf.getInt() != VERSION) {
+            log.warn("Skipping unrecognised journal segment " + f);
+            return true;
+        }
+
+        while (buf.remaining() >= 4) {
+            start = buf.position();
+            len = buf.getInt();
+            if (len <= 0 || len > buf.limit() - start) {
+                break;
+            }
+
+            rec = read(buf);
+            buf.position(start + len);
+
+            if (rec.ts.longValue() < from) {
+                continue;
+            } else if (rec.ts.longValue() > to) {
+                break;
+            }
+
+            batch.add(rec);
+            if (batch.size() == REPLAY_BATCH) {
+                if (!this.sendReplay(id, new ArrayList<>(batch), false)) {
+                    return false;
+                }
+
+                batch.clear();
+            }
+        }
+
+        return true;
+    }
+
+    private void replay(long from, long to, long id) {
+        List<EventRecord> batch;
+        File[] segs;
+
+        batch = new ArrayList<>(REPLAY_BATCH);
+        segs = this.segments();
+
+        for (int i = 0; i < segs.length; i++) {
+            /* skip segments which end before the range starts */
+            if (i + 1 < segs.length && segmentStart(segs[i + 1]) < from) {
+                continue;
+            } else if (segmentStart(segs[i]) > to) {
+                break;
+            }
+
+            try {
+                if (!this.replaySegment(segs[i], from, to, id, batch)) {
+                    log.info("Abandoned replay " + id + " for " + this.name);
+                    return;
+                }
+            } catch (IOException ioe) {
+                /* most likely expired while we were getting to it */
+                log.warn("Could not read journal segment " + segs[i] + ": " +
+                        ioe.getMessage());
+            }
+        }
+
+        this.sendReplay(id, batch, true);
+    }
+
+    /* batches are sent by the replay thread itself rather than queued on
+     * the emitter, so that a long replay goes at the pace of the bus and
+     * neither holds up nor is dropped in favour of live events */
+    private boolean sendReplay(long id, List<EventRecord> events,
+            boolean done) {
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+
+        try {
+            return this.emitter.send(new Output.ReplayBatch(
+                        this.path.getPath(),
+                        new UInt64(System.currentTimeMillis()),
+                        new UInt64(id), events, done));
+        } catch (DBusException dbe) {
+            log.error("Could not create replay signal", dbe);
+            return false;
+        }
+    }
+
+    /**
+     * Start replaying the records with timestamps between from and to
+     * inclusive, returning the id used in the ReplayBatch signals which
+     * carry them.
+     */
+    public long startReplay(long from, long to) throws JournalClosed {
+        long id;
+
+        synchronized (this.replaying) {
+            if (!this.running) {
+                throw new JournalClosed();
+            }
+
+            id = this.replays.incrementAndGet();
+            this.replaying.removeIf(Future::isDone);
+            this.replaying.add(this.replayer.submit(
+                        () -> this.replay(from, to, id)));
+        }
+
+        return id;
+    }
+
+    /**
+     * Stop accepting records, and wait for the writer to finish with the
+     * ones already queued.
+     */
+    public void close() {
+        synchronized (this.replaying) {
+            this.running = false;
+            for (Future<?> f: this.replaying) {
+                f.cancel(true);
+            }
+
+            this.replaying.clear();
+            if (this.replayer != null && this.replayer != Workers.replays) {
+                this.replayer.shutdown();
+            }
+        }
+
+        if (!this.writer.flush(SHUTDOWN_TIMEOUT)) {
+            log.warn("Journal writer for " + this.name + " did not finish " +
+                    "within timeout, " + this.queue.size() +
+                    " records discarded");
+            this.queue.clear();
+        }
+
+        try {
+            this.closeSegment();
+        } catch (IOException ioe) {
+            log.error("Could not close journal segment: " + ioe.getMessage());
+        }
+
+        this.writer.stop();
+    }
+}
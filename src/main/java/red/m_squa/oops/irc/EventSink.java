@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import red.m_squa.oops.iface.EventRecord;
+
+/**
+ * Consumer of IRC events in record form, fed alongside signal emission.
+ */
+public interface EventSink {
+    public void accept(EventRecord rec);
+
+    /* whether records should currently be generated for this sink */
+    public boolean isActive();
+
+    /* called when the server is removed */
+    public void close();
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parsed form of the ISUPPORT (005) parameters sent by a server, built once
+ * when they arrive rather than looked up and parsed on every use. Values
+ * the server did not send fall back to what RFC 1459 servers assume.
+ */
+public class ISupport {
+    public enum CaseMapping {
+        ASCII,
+        RFC1459,
+        STRICT_RFC1459;
+
+        public static CaseMapping fromString(String str) {
+            if (str == null) {
+                return RFC1459;
+            }
+
+            switch (str) {
+            case "ascii":
+                return ASCII;
+            case "strict-rfc1459":
+                return STRICT_RFC1459;
+            default:
+                return RFC1459;
+            }
+        }
+    };
+
+    public static final ISupport DEFAULT =
+        new ISupport(Collections.emptyMap());
+
+    private static final int DEFAULT_LINE_LENGTH = 512;
+    private static final int DEFAULT_NICK_LENGTH = 9;
+
+    private final String chantypes;
+    private final String prefixmodes;
+    private final String prefixes;
+    private final String listmodes;
+    private final String parammodes;
+    private final String setparammodes;
+    private final String flagmodes;
+    private final Map<String, Integer> targmax;
+    private final Map<Character, Integer> maxlist;
+    private final int maxtargets;
+    private final int nicklen;
+    private final int linelen;
+    private final CaseMapping casemapping;
+
+    /**
+     * Parse the raw ISUPPORT parameters, keyed by parameter name.
+     */
+    public ISupport(Map<String, String> raw) {
+        String prefix;
+        String[] split, chanmodes;
+        int end;
+
+        this.chantypes = raw.getOrDefault("CHANTYPES", "#&");
+        this.casemapping = CaseMapping.fromString(raw.get("CASEMAPPING"));
+        this.maxtargets = parseInt(raw.get("MAXTARGETS"), 1);
+        this.nicklen = parseInt(raw.get("NICKLEN"), DEFAULT_NICK_LENGTH);
+        this.linelen = parseInt(raw.get("LINELEN"), DEFAULT_LINE_LENGTH);
+
+        prefix = raw.getOrDefault("PREFIX", "(ov)@+");
+        end = prefix.indexOf(')');
+        if (prefix.startsWith("(") && end > 0) {
+            this.prefixmodes = prefix.substring(1, end);
+            this.prefixes = prefix.substring(end + 1);
+        } else {
+            this.prefixmodes = "";
+            this.prefixes = "";
+        }
+
+        chanmodes = raw.getOrDefault("CHANMODES", "b,k,l,imnpst")
+            .split(",", -1);
+        this.listmodes = chanmodes[0];
+        this.parammodes = (chanmodes.length > 1) ? chanmodes[1] : "";
+        this.setparammodes = (chanmodes.length > 2) ? chanmodes[2] : "";
+        this.flagmodes = (chanmodes.length > 3) ? chanmodes[3] : "";
+
+        this.targmax = new HashMap<>();
+        if (raw.get("TARGMAX") != null) {
+            for (String s: raw.get("TARGMAX").split(",")) {
+                split = s.split(":", 2);
+                if (split.length == 2) {
+                    /* an empty limit means there is no limit */
+                    this.targmax.put(split[0].toUpperCase(Locale.ROOT),
+                            parseInt(split[1], Integer.MAX_VALUE));
+                }
+            }
+        }
+
+        this.maxlist = new HashMap<>();
+        if (raw.get("MAXLIST") != null) {
+            for (String s: raw.get("MAXLIST").split(",")) {
+                split = s.split(":", 2);
+                if (split.length != 2) {
+                    continue;
+                }
+
+                for (char c: split[0].toCharArray()) {
+                    this.maxlist.put(c, parseInt(split[1], 0));
+                }
+            }
+        }
+    }
+
+    private static int parseInt(String str, int def) {
+        if (str == null || str.isEmpty()) {
+            return def;
+        }
+
+        try {
+            return Integer.parseInt(str);
+        } catch (NumberFormatException nfe) {
+            return def;
+        }
+    }
+
+    public boolean isChannel(String name) {
+        return !name.isEmpty() && this.chantypes.indexOf(name.charAt(0)) >= 0;
+    }
+
+    /**
+     * Fold a nick or channel name according to the server's case mapping.
+     */
+    public String normalize(String name) {
+        char[] chars;
+
+        chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = this.fold(chars[i]);
+        }
+
+        return new String(chars);
+    }
+
+    private char fold(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return (char) (c + ('a' - 'A'));
+        } else if (this.casemapping == CaseMapping.ASCII) {
+            return c;
+        }
+
+        switch (c) {
+        case '[':
+            return '{';
+        case ']':
+            return '}';
+        case '\\':
+            return '|';
+        case '~':
+            return (this.casemapping == CaseMapping.RFC1459) ? '^' : c;
+        default:
+            return c;
+        }
+    }
+
+    /**
+     * How many targets the given command may have, from TARGMAX if the
+     * server sent it and MAXTARGETS otherwise.
+     */
+    public int getTargetLimit(String command) {
+        return this.targmax.getOrDefault(command.toUpperCase(Locale.ROOT),
+                this.maxtargets);
+    }
+
+    public int getLineLength() {
+        return this.linelen;
+    }
+
+    public int getNickLength() {
+        return this.nicklen;
+    }
+
+    public CaseMapping getCaseMapping() {
+        return this.casemapping;
+    }
+
+    /* channel modes which set user prefixes, e.g. "ov" */
+    public String getPrefixModes() {
+        return this.prefixmodes;
+    }
+
+    /* the prefixes themselves, e.g. "@+" */
+    public String getPrefixes() {
+        return this.prefixes;
+    }
+
+    /* channel modes which maintain a list, such as bans */
+    public String getListModes() {
+        return this.listmodes;
+    }
+
+    /* channel modes which always take a parameter, such as a key */
+    public String getParamModes() {
+        return this.parammodes;
+    }
+
+    /* channel modes which take a parameter only when set, such as a limit */
+    public String getSetParamModes() {
+        return this.setparammodes;
+    }
+
+    /* channel modes which never take a parameter */
+    public String getFlagModes() {
+        return this.flagmodes;
+    }
+
+    /**
+     * Maximum number of entries in the list for a list mode, or 0 if the
+     * server did not say.
+     */
+    public int getMaxList(char mode) {
+        return this.maxlist.getOrDefault(mode, 0);
+    }
+}
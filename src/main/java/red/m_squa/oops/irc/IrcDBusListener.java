@@ -19,32 +19,52 @@
 
 package red.m_squa.oops.irc;
 
-import org.freedesktop.dbus.connections.impl.DBusConnection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.interfaces.DBusInterface;
 import org.freedesktop.dbus.messages.DBusSignal;
 import org.freedesktop.dbus.types.UInt64;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import red.m_squa.pircbotx.AddressableListener;
 
 import red.m_squa.oops.DBusPath;
+import red.m_squa.oops.iface.EventRecord;
+import red.m_squa.oops.jfr.SignalEvent;
 
 /**
  * IRC event listener which sends events to DBus.
  */
 public abstract class IrcDBusListener extends AddressableListener
     implements DBusInterface {
-    private static final Logger log =
-        LoggerFactory.getLogger(IrcDBusListener.class);
     protected DBusPath path;
-    protected DBusConnection conn;
+    protected SignalEmitter emitter;
+    protected List<EventSink> sinks;
+    protected SignalFilter filter;
 
-    public IrcDBusListener(DBusConnection conn, DBusPath path) {
-        this.conn = conn;
+    public IrcDBusListener(SignalEmitter emitter, DBusPath path) {
+        this.emitter = emitter;
         this.path = path;
+        this.sinks = new CopyOnWriteArrayList<>();
+        this.filter = SignalFilter.ALL;
+    }
+
+    public void setFilter(SignalFilter filter) {
+        this.filter = filter;
+    }
+
+    public void addSink(EventSink sink) {
+        this.sinks.add(sink);
+    }
+
+    /**
+     * Close all event sinks attached to this listener.
+     */
+    public void close() {
+        for (EventSink s: this.sinks) {
+            s.close();
+        }
     }
 
     /* DBusInterface implementation */
@@ -58,23 +78,94 @@ public abstract class IrcDBusListener extends AddressableListener
 
     /* IRC signal handling */
 
+    /**
+     * Builds an event's signal. This runs later on the emitter's sender
+     * thread, so it must only use values already taken from the event.
+     */
     @FunctionalInterface
     public interface SignalGenerator {
         public DBusSignal generate(String path, UInt64 timestamp)
             throws DBusException;
     }
 
-    protected void signal(SignalGenerator siggen) {
-        DBusSignal sig;
+    @FunctionalInterface
+    public interface RecordGenerator {
+        public EventRecord generate(UInt64 timestamp);
+    }
 
-        try {
-            sig = siggen.generate(this.path.getPath(),
-                    new UInt64(System.currentTimeMillis()));
-        } catch (DBusException dbe) {
-            log.error("Could not create DBus signal '%s':", dbe.getMessage());
-            return;
+    /**
+     * Whether an event should be processed at all, either because someone is
+     * listening for the given signal member or because an event sink wants
+     * its record.
+     */
+    protected boolean wants(String member) {
+        if (this.filter.wants(member)) {
+            return true;
         }
 
-        this.conn.sendMessage(sig);
+        for (EventSink s: this.sinks) {
+            if (s.isActive()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    protected void signal(String member, SignalGenerator siggen) {
+        this.signal(member, siggen, null);
+    }
+
+    /**
+     * Send a signal, and pass the same event in record form to any active
+     * sinks.
+     */
+    protected void signal(String member, SignalGenerator siggen,
+            RecordGenerator recgen) {
+        SignalEvent ev;
+        EventRecord rec;
+        UInt64 timestamp;
+        String path;
+        long start;
+
+        ev = new SignalEvent();
+        ev.begin();
+
+        start = System.nanoTime();
+        timestamp = new UInt64(System.currentTimeMillis());
+
+        /* building and marshalling is left to the emitter's sender */
+        if (this.filter.wants(member)) {
+            path = this.path.getPath();
+            this.emitter.emit(() -> siggen.generate(path, timestamp), start);
+        }
+
+        rec = null;
+        if (recgen != null) {
+            for (EventSink s: this.sinks) {
+                if (!s.isActive()) {
+                    continue;
+                } else if (rec == null) {
+                    rec = recgen.generate(timestamp);
+                }
+
+                s.accept(rec);
+            }
+        }
+
+        ev.end();
+
+        /* the details are only worked out while recording */
+        if (ev.shouldCommit()) {
+            if (rec == null && recgen != null) {
+                rec = recgen.generate(timestamp);
+            }
+
+            ev.server = this.emitter.getName();
+            ev.member = member;
+            ev.channels = (rec == null) ? null : String.join(",", rec.chans);
+            ev.queueDepth = this.emitter.getQueueDepth();
+            ev.commit();
+        }
     }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in buckets of powers of two microseconds, cheap
+ * enough to record into from any thread on every event.
+ */
+public class LatencyHistogram {
+    /* bucket i holds latencies of i significant bits, so the last one
+     * starts at 2^38us, about three days, and takes anything longer */
+    private static final int BUCKETS = 40;
+
+    private final LongAdder[] counts;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    public LatencyHistogram() {
+        this.counts = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts[i] = new LongAdder();
+        }
+
+        this.sum = new LongAdder();
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Record a latency given in nanoseconds.
+     */
+    public void record(long nanos) {
+        long us;
+
+        us = Math.max(0, nanos / 1000);
+        this.counts[Math.min(BUCKETS - 1,
+                64 - Long.numberOfLeadingZeros(us))].increment();
+        this.sum.add(us);
+        this.max.accumulate(us);
+    }
+
+    /* not atomic with respect to concurrent recording */
+    public void reset() {
+        for (LongAdder a: this.counts) {
+            a.reset();
+        }
+
+        this.sum.reset();
+        this.max.reset();
+    }
+
+    public Snapshot snapshot() {
+        Snapshot ret;
+
+        ret = new Snapshot();
+        for (int i = 0; i < BUCKETS; i++) {
+            ret.counts[i] = this.counts[i].sum();
+        }
+
+        ret.sum = this.sum.sum();
+        ret.max = this.max.get();
+        return ret;
+    }
+
+    /**
+     * Point-in-time copy of a histogram, which can be merged with others.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private long sum;
+        private long max;
+
+        public Snapshot() {
+            this.counts = new long[BUCKETS];
+            this.sum = 0;
+            this.max = 0;
+        }
+
+        public void merge(Snapshot other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                this.counts[i] += other.counts[i];
+            }
+
+            this.sum += other.sum;
+            this.max = Math.max(this.max, other.max);
+        }
+
+        public long getCount() {
+            long ret;
+
+            ret = 0;
+            for (long c: this.counts) {
+                ret += c;
+            }
+
+            return ret;
+        }
+
+        /**
+         * Upper bound of the latency below which the given fraction of
+         * recordings fall, in microseconds.
+         */
+        public long getPercentile(double fraction) {
+            long total, seen;
+
+            total = this.getCount();
+            seen = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += this.counts[i];
+                if (seen > 0 && seen >= fraction * total) {
+                    return Math.min(this.max, (1L << i) - 1);
+                }
+            }
+
+            return this.max;
+        }
+
+        /**
+         * Add the count, mean and percentiles to a map, with keys starting
+         * with the given prefix.
+         */
+        public void describe(String prefix, Map<String, Long> into) {
+            long count;
+
+            count = this.getCount();
+            into.put(prefix + "-count", count);
+            into.put(prefix + "-mean-us", (count == 0) ? 0 : this.sum / count);
+            into.put(prefix + "-p50-us", this.getPercentile(0.5));
+            into.put(prefix + "-p90-us", this.getPercentile(0.9));
+            into.put(prefix + "-p99-us", this.getPercentile(0.99));
+            into.put(prefix + "-max-us", this.max);
+        }
+    }
+}
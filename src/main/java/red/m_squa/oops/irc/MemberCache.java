@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+import org.pircbotx.User;
+
+/**
+ * Cache of channel member lists, sorted by nick. Each channel has a version
+ * counter which is bumped whenever its membership changes, and a channel's
+ * snapshot is only rebuilt when it is requested after such a change.
+ */
+public class MemberCache {
+    public static class Snapshot {
+        private final long version;
+        private final String[] nicks;
+        private final String[] hostmasks;
+
+        private Snapshot(long version, String[] nicks, String[] hostmasks) {
+            this.version = version;
+            this.nicks = nicks;
+            this.hostmasks = hostmasks;
+        }
+
+        public String[] getHostmasks() {
+            return this.hostmasks;
+        }
+
+        /**
+         * Return up to limit hostmasks of users whose normalised nick sorts
+         * after the cursor, optionally only those matching a pattern.
+         */
+        public String[] page(String cursor, int limit, Pattern filter) {
+            List<String> ret;
+            int i;
+
+            if (cursor.isEmpty()) {
+                i = 0;
+            } else {
+                i = Arrays.binarySearch(this.nicks, cursor);
+                i = (i >= 0) ? i + 1 : -(i + 1);
+            }
+
+            ret = new ArrayList<>(Math.min(limit, this.nicks.length));
+            for (; i < this.nicks.length && ret.size() < limit; i++) {
+                if (filter == null ||
+                        filter.matcher(this.hostmasks[i]).matches()) {
+                    ret.add(this.hostmasks[i]);
+                }
+            }
+
+            return ret.toArray(new String[0]);
+        }
+    }
+
+    private final UnaryOperator<String> normalizer;
+    private final Map<String, AtomicLong> versions;
+    private final Map<String, Snapshot> snapshots;
+
+    public MemberCache(UnaryOperator<String> normalizer) {
+        this.normalizer = normalizer;
+        this.versions = new ConcurrentHashMap<>();
+        this.snapshots = new ConcurrentHashMap<>();
+    }
+
+    private AtomicLong version(String key) {
+        return this.versions.computeIfAbsent(key, k -> new AtomicLong());
+    }
+
+    public void invalidate(String chan) {
+        this.version(this.normalizer.apply(chan)).incrementAndGet();
+    }
+
+    public void clear() {
+        for (AtomicLong v: this.versions.values()) {
+            v.incrementAndGet();
+        }
+
+        this.snapshots.clear();
+    }
+
+    /**
+     * Return an up-to-date snapshot of a channel's members, rebuilding it
+     * from the given user collection only if it has changed.
+     */
+    public Snapshot get(String chan, Collection<User> users) {
+        Snapshot snap;
+        String key;
+        String[] keys, nicks, hostmasks;
+        User[] members;
+        Integer[] order;
+        long v;
+
+        key = this.normalizer.apply(chan);
+
+        /* read the version before the member list, so that a change made
+         * while building the snapshot causes another rebuild next time */
+        v = this.version(key).get();
+        snap = this.snapshots.get(key);
+
+        if (snap != null && snap.version == v) {
+            return snap;
+        }
+
+        members = users.toArray(new User[0]);
+        keys = new String[members.length];
+        order = new Integer[members.length];
+        for (int i = 0; i < members.length; i++) {
+            keys[i] = this.normalizer.apply(members[i].getNick());
+            order[i] = i;
+        }
+
+        Arrays.sort(order, (a, b) -> keys[a].compareTo(keys[b]));
+
+        nicks = new String[members.length];
+        hostmasks = new String[members.length];
+        for (int i = 0; i < members.length; i++) {
+            nicks[i] = keys[order[i]];
+            hostmasks[i] = members[order[i]].getHostmask();
+        }
+
+        snap = new Snapshot(v, nicks, hostmasks);
+        this.snapshots.put(key, snap);
+        return snap;
+    }
+
+    /**
+     * Convert a glob with '*' and '?' wildcards into a case-insensitive
+     * pattern.
+     */
+    public static Pattern globToPattern(String glob) {
+        StringBuilder sb;
+        int start;
+
+        sb = new StringBuilder();
+        start = 0;
+
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    sb.append(Pattern.quote(glob.substring(start, i)));
+                }
+
+                sb.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+
+        if (start < glob.length()) {
+            sb.append(Pattern.quote(glob.substring(start)));
+        }
+
+        return Pattern.compile(sb.toString(),
+                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs messages for several targets into as few IRC lines as the server
+ * allows, and splits text which does not fit into a single line.
+ */
+public class MessagePacker {
+    /* longest hostname allowed by most servers, used when ours is not
+     * known yet */
+    private static final int MAX_HOSTNAME = 63;
+
+    /* never let a target list leave less than this much room for text */
+    private static final int MIN_PAYLOAD = 128;
+
+    private final int linelen;
+    private final int targmax;
+    private final int prefixlen;
+
+    /**
+     * Create a packer for the given command, using the server's ISUPPORT
+     * limits and our own hostmask as the server will relay it.
+     */
+    public MessagePacker(String command, ISupport isupport, String nick,
+            String login, String host) {
+        int len;
+
+        this.linelen = isupport.getLineLength();
+        this.targmax = isupport.getTargetLimit(command);
+
+        /* ":nick!login@host COMMAND " ... " :" ... "\r\n" */
+        len = 1 + utf8Length(nick) + 1 + utf8Length(login) + 1;
+        len += (host == null || host.isEmpty()) ?
+            MAX_HOSTNAME : utf8Length(host);
+        len += 1 + command.length() + 1 + 2 + 2;
+
+        this.prefixlen = len;
+    }
+
+    static int utf8Length(String str) {
+        return (str == null) ? 0 :
+            str.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static int utf8Length(int cp) {
+        if (cp < 0x80) {
+            return 1;
+        } else if (cp < 0x800) {
+            return 2;
+        } else if (cp < 0x10000) {
+            return 3;
+        }
+
+        return 4;
+    }
+
+    /**
+     * Group targets into comma-separated lists, each within the server's
+     * target limit and leaving reasonable room for the message itself.
+     */
+    public List<String> packTargets(List<String> targets) {
+        List<String> ret;
+        StringBuilder sb;
+        int count, room;
+
+        ret = new ArrayList<>();
+        sb = new StringBuilder();
+        room = Math.max(this.linelen - this.prefixlen - MIN_PAYLOAD, 0);
+        count = 0;
+
+        for (String t: targets) {
+            if (count > 0 && (count >= this.targmax ||
+                        utf8Length(sb.toString()) + 1 + utf8Length(t) > room)) {
+                ret.add(sb.toString());
+                sb.setLength(0);
+                count = 0;
+            }
+
+            if (count > 0) {
+                sb.append(',');
+            }
+
+            sb.append(t);
+            count++;
+        }
+
+        if (count > 0) {
+            ret.add(sb.toString());
+        }
+
+        return ret;
+    }
+
+    /**
+     * Split a line of text into pieces which fit into a line sent to the
+     * given target list. Pieces are split at a space where there is one in
+     * the second half of the piece, and never inside a UTF-8 sequence.
+     */
+    public List<String> split(String targets, String text) {
+        List<String> ret;
+        int budget, start, end, bytes, cp, space;
+
+        ret = new ArrayList<>();
+        budget = Math.max(this.linelen - this.prefixlen -
+                utf8Length(targets), 1);
+
+        start = 0;
+        while (start < text.length()) {
+            end = start;
+            bytes = 0;
+            space = -1;
+
+            while (end < text.length()) {
+                cp = text.codePointAt(end);
+                if (bytes + utf8Length(cp) > budget) {
+                    break;
+                }
+
+                bytes += utf8Length(cp);
+                end += Character.charCount(cp);
+
+                if (cp == ' ' && bytes > budget / 2) {
+                    space = end;
+                }
+            }
+
+            /* always make progress, even with an absurdly small budget */
+            if (end == start) {
+                end += Character.charCount(text.codePointAt(start));
+            } else if (end < text.length() && space > 0) {
+                end = space;
+            }
+
+            ret.add(text.substring(start, end));
+            start = end;
+        }
+
+        return ret;
+    }
+}
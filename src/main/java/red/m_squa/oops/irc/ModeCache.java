@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Cache of channel modes, filled in from RPL_CHANNELMODEIS replies and kept
+ * up to date by following MODE changes. Callers which need a channel's mode
+ * wait on the cache for a reply to arrive rather than polling the channel
+ * state.
+ */
+public class ModeCache {
+    private static class Entry {
+        private String mode;
+        private boolean stale;
+        private boolean requested;
+    }
+
+    private final UnaryOperator<String> normalizer;
+    private final Map<String, Entry> entries;
+
+    public ModeCache(UnaryOperator<String> normalizer) {
+        this.normalizer = normalizer;
+        this.entries = new HashMap<>();
+    }
+
+    private Entry entry(String chan) {
+        return this.entries.computeIfAbsent(this.normalizer.apply(chan),
+                k -> new Entry());
+    }
+
+    /**
+     * Note that a MODE query for a channel has already been sent, e.g. by
+     * PircBotX after joining it.
+     */
+    public synchronized void expect(String chan) {
+        Entry e;
+
+        e = this.entry(chan);
+        e.stale = true;
+        e.requested = true;
+    }
+
+    /**
+     * Mark a channel's mode as out of date. Returns true if the caller
+     * should send a MODE query, i.e. if one is not already outstanding.
+     */
+    public synchronized boolean invalidate(String chan) {
+        Entry e;
+
+        e = this.entry(chan);
+        e.stale = true;
+
+        if (e.requested) {
+            return false;
+        }
+
+        e.requested = true;
+        return true;
+    }
+
+    /**
+     * Note that a MODE query asked for by invalidate() could not be sent,
+     * so that waiters give up rather than waiting for a reply.
+     */
+    public synchronized void cancel(String chan) {
+        Entry e;
+
+        e = this.entries.get(this.normalizer.apply(chan));
+        if (e != null) {
+            e.requested = false;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Record a channel's mode, waking up anyone waiting for it. Returns
+     * true if the mode differs from the previously known one.
+     */
+    public synchronized boolean set(String chan, String mode) {
+        Entry e;
+        boolean changed;
+
+        e = this.entry(chan);
+        changed = !mode.equals(e.mode);
+
+        e.mode = mode;
+        e.stale = false;
+        e.requested = false;
+
+        this.notifyAll();
+        return changed;
+    }
+
+    /**
+     * Apply a MODE change, as sent by the server, to a channel's cached
+     * mode. Returns false if the change alters the mode string but the
+     * cache cannot follow it, because the mode is not known or the change
+     * could not be parsed, in which case the caller should ask the server.
+     */
+    public synchronized boolean apply(String chan, String change,
+            ISupport isupport) {
+        Map<Character, String> modes;
+        String[] parts, current;
+        Entry e;
+        boolean add, touched;
+        int arg;
+
+        parts = change.split(" ");
+        touched = false;
+        for (char c: parts[0].toCharArray()) {
+            if (c != '+' && c != '-' &&
+                    isupport.getPrefixModes().indexOf(c) < 0 &&
+                    isupport.getListModes().indexOf(c) < 0) {
+                touched = true;
+            }
+        }
+
+        /* only user prefixes or list modes such as bans */
+        if (!touched) {
+            return true;
+        }
+
+        e = this.entries.get(this.normalizer.apply(chan));
+        if (e == null || e.stale || e.mode == null) {
+            return false;
+        }
+
+        /* the current mode, as each flag and its parameter if any */
+        modes = new LinkedHashMap<>();
+        current = e.mode.split(" ");
+        arg = 1;
+        for (char c: current[0].toCharArray()) {
+            if (c == '+') {
+                continue;
+            } else if (isupport.getParamModes().indexOf(c) >= 0 ||
+                    isupport.getSetParamModes().indexOf(c) >= 0) {
+                /* parameters may be hidden from those not on the channel */
+                modes.put(c, (arg < current.length) ? current[arg++] : null);
+            } else {
+                modes.put(c, null);
+            }
+        }
+
+        add = true;
+        arg = 1;
+        for (char c: parts[0].toCharArray()) {
+            if (c == '+' || c == '-') {
+                add = (c == '+');
+            } else if (isupport.getPrefixModes().indexOf(c) >= 0 ||
+                    isupport.getListModes().indexOf(c) >= 0) {
+                arg++;
+            } else if (isupport.getParamModes().indexOf(c) >= 0 ||
+                    (add && isupport.getSetParamModes().indexOf(c) >= 0)) {
+                if (arg >= parts.length) {
+                    return false;
+                }
+
+                if (add) {
+                    modes.put(c, parts[arg]);
+                } else {
+                    modes.remove(c);
+                }
+
+                arg++;
+            } else if (isupport.getSetParamModes().indexOf(c) >= 0 ||
+                    isupport.getFlagModes().indexOf(c) >= 0) {
+                if (add) {
+                    modes.put(c, null);
+                } else {
+                    modes.remove(c);
+                }
+            } else {
+                return false;
+            }
+        }
+
+        e.mode = format(modes);
+        return true;
+    }
+
+    private static String format(Map<Character, String> modes) {
+        StringBuilder flags, params;
+
+        flags = new StringBuilder("+");
+        params = new StringBuilder();
+        for (Map.Entry<Character, String> m: modes.entrySet()) {
+            flags.append(m.getKey());
+            if (m.getValue() != null) {
+                params.append(' ').append(m.getValue());
+            }
+        }
+
+        return flags.append(params).toString();
+    }
+
+    /* the cached mode of a channel, whether or not it is up to date */
+    public synchronized String peek(String chan) {
+        Entry e;
+
+        e = this.entries.get(this.normalizer.apply(chan));
+        return (e == null) ? null : e.mode;
+    }
+
+    public synchronized boolean isFresh(String chan) {
+        Entry e;
+
+        e = this.entries.get(this.normalizer.apply(chan));
+        return e != null && !e.stale && e.mode != null;
+    }
+
+    /**
+     * Wait up to timeout milliseconds for an up-to-date mode for a channel.
+     * If none arrives in time, or no query is outstanding, the last known
+     * mode is returned, or null if the mode has never been seen.
+     */
+    public synchronized String await(String chan, long timeout)
+        throws InterruptedException {
+        Entry e;
+        long deadline, remaining;
+
+        e = this.entry(chan);
+        deadline = System.currentTimeMillis() + timeout;
+
+        while (e.stale || e.mode == null) {
+            if (!e.requested) {
+                break;
+            }
+
+            remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                /* the query went unanswered, so allow another one */
+                e.requested = false;
+                break;
+            }
+
+            this.wait(remaining);
+            e = this.entry(chan);
+        }
+
+        return e.mode;
+    }
+
+    public synchronized void remove(String chan) {
+        this.entries.remove(this.normalizer.apply(chan));
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+}
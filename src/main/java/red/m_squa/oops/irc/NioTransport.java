@@ -0,0 +1,955 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.pircbotx.Configuration;
+import org.pircbotx.PircBotX;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Carries the connections of any number of bots on a few selector threads,
+ * instead of each bot blocking a thread of its own on its socket. Lines are
+ * decrypted and split on the selector threads, then handed to each bot's
+ * input parser in order by a shared pool of workers, so that listeners see
+ * the same events as they would with the bot's own connection.
+ *
+ * A bot added here is run until it disconnects for good, reconnecting as
+ * its configuration says, and the exit callback is then called with the
+ * connection failure which stopped it, if any.
+ */
+public class NioTransport {
+    private static final Logger log =
+        LoggerFactory.getLogger(NioTransport.class);
+
+    /* far longer than any line a server should send; longer ones are
+     * dropped */
+    private static final int MAX_LINE = 16 * 1024;
+    private static final int READ_SIZE = 2 * MAX_LINE;
+
+    /* lines waiting for a worker before a connection stops being read, and
+     * lines handled for one connection before the worker moves on */
+    private static final int MAX_PENDING = 1024;
+    private static final int BATCH = 64;
+
+    /* how often the selector threads look for idle connections */
+    private static final long TICK = 1000;
+
+    private static final ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
+
+    /** How the connection to a server is secured. */
+    public enum Security {
+        PLAIN,
+        TLS,
+        /* without checking the server's certificate */
+        TLS_INSECURE
+    };
+
+    private final Loop[] loops;
+    private final ScheduledExecutorService workers;
+    private final long delay;
+    private final BiConsumer<PircBotX, Exception> exit;
+    private final Set<Session> sessions;
+    private int next;
+    private volatile boolean stopped;
+
+    /**
+     * Start the given numbers of selector and worker threads, waiting the
+     * given number of milliseconds before each reconnection.
+     */
+    public NioTransport(int selectors, int workers, long delay,
+            BiConsumer<PircBotX, Exception> exit) throws IOException {
+        this.loops = new Loop[selectors];
+        this.delay = delay;
+        this.exit = exit;
+        this.sessions = ConcurrentHashMap.newKeySet();
+        this.next = 0;
+        this.stopped = false;
+
+        for (int i = 0; i < selectors; i++) {
+            this.loops[i] = new Loop(i);
+        }
+
+        this.workers = Executors.newScheduledThreadPool(workers, r -> {
+            Thread t = new Thread(r, "oops-nio-worker");
+            t.setDaemon(true);
+            return t;
+        });
+
+        for (Loop l: this.loops) {
+            l.thread.start();
+        }
+    }
+
+    /**
+     * Start connecting a bot, which must not have been started otherwise.
+     */
+    public synchronized void addBot(DBusPircBotX bot, Security security) {
+        Session s;
+
+        if (this.stopped) {
+            throw new IllegalStateException("Transport has been stopped");
+        }
+
+        s = new Session(bot, security,
+                this.loops[this.next++ % this.loops.length]);
+        this.sessions.add(s);
+        s.serial(s::resolve);
+    }
+
+    /**
+     * Disconnect all bots without reconnecting, and refuse any more.
+     */
+    public synchronized void stop(String reason) {
+        this.stopped = true;
+
+        for (Session s: this.sessions) {
+            s.stop(reason);
+        }
+    }
+
+    private static SSLContext insecureContext()
+        throws GeneralSecurityException {
+        SSLContext ctx;
+
+        ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, new TrustManager[] { new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain,
+                    String type) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain,
+                    String type) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        } }, null);
+
+        return ctx;
+    }
+
+    /* a selector thread, which does everything touching its channels */
+    private class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        private final Thread thread;
+
+        private Loop(int n) throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.thread = new Thread(this, "oops-nio-select-" + n);
+            this.thread.setDaemon(true);
+        }
+
+        private void submit(Runnable r) {
+            this.tasks.add(r);
+            this.selector.wakeup();
+        }
+
+        public void run() {
+            Runnable r;
+            long now, tick;
+
+            tick = System.currentTimeMillis() + TICK;
+            for (;;) {
+                try {
+                    this.selector.select(TICK);
+                } catch (IOException ioe) {
+                    log.error("Selector failed: " + ioe.getMessage());
+                }
+
+                while ((r = this.tasks.poll()) != null) {
+                    try {
+                        r.run();
+                    } catch (RuntimeException re) {
+                        log.error("Exception in selector task: ", re);
+                    }
+                }
+
+                for (SelectionKey k: this.selector.selectedKeys()) {
+                    if (k.isValid()) {
+                        ((Link) k.attachment()).ready(k);
+                    }
+                }
+
+                this.selector.selectedKeys().clear();
+
+                /* ticking may register new channels */
+                now = System.currentTimeMillis();
+                if (now >= tick) {
+                    for (SelectionKey k:
+                            new ArrayList<>(this.selector.keys())) {
+                        if (k.isValid()) {
+                            ((Link) k.attachment()).tick(now);
+                        }
+                    }
+
+                    tick = now + TICK;
+                }
+            }
+        }
+    }
+
+    /*
+     * A bot for as long as it runs here. Everything done with the bot
+     * itself, and the state here, goes through its serial queue, which
+     * runs on the workers one task at a time.
+     */
+    private class Session {
+        private final DBusPircBotX bot;
+        private final String name;
+        private final Security security;
+        private final Loop loop;
+        private final Queue<Runnable> tasks;
+        private final AtomicBoolean scheduled;
+        private volatile Link link;
+        private int attempts;
+
+        private Session(DBusPircBotX bot, Security security, Loop loop) {
+            this.bot = bot;
+            this.name = bot.getEmitter().getName();
+            this.security = security;
+            this.loop = loop;
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.scheduled = new AtomicBoolean(false);
+            this.attempts = 0;
+        }
+
+        private void serial(Runnable r) {
+            this.tasks.add(r);
+            if (this.scheduled.compareAndSet(false, true)) {
+                NioTransport.this.workers.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            Runnable r;
+
+            for (int i = 0; i < BATCH && (r = this.tasks.poll()) != null;
+                    i++) {
+                try {
+                    r.run();
+                } catch (RuntimeException re) {
+                    log.error("Exception in transport task for server: " +
+                            this.name, re);
+                }
+            }
+
+            /* give other connections a turn before carrying on */
+            this.scheduled.set(false);
+            if (!this.tasks.isEmpty() &&
+                    this.scheduled.compareAndSet(false, true)) {
+                NioTransport.this.workers.execute(this::drain);
+            }
+        }
+
+        private boolean isStopped() {
+            return NioTransport.this.stopped || this.bot.isReconnectStopped();
+        }
+
+        /* look up every address of every server, off the selector */
+        private void resolve() {
+            List<InetSocketAddress> addrs;
+            Exception error;
+
+            if (this.isStopped()) {
+                this.finish(null);
+                return;
+            }
+
+            addrs = new ArrayList<>();
+            error = null;
+            for (Configuration.ServerEntry e:
+                    this.bot.getConfiguration().getServers()) {
+                try {
+                    for (InetAddress a:
+                            InetAddress.getAllByName(e.getHostname())) {
+                        addrs.add(new InetSocketAddress(a, e.getPort()));
+                    }
+                } catch (UnknownHostException uhe) {
+                    log.warn("Could not resolve " + e.getHostname() +
+                            " for server: " + this.name);
+                    error = uhe;
+                }
+            }
+
+            if (addrs.isEmpty()) {
+                this.failed(error);
+                return;
+            }
+
+            this.link = new Link(this, addrs);
+            this.loop.submit(this.link::connectNext);
+        }
+
+        private void opened(Link l) {
+            this.attempts = 0;
+
+            /* stopped too late for the connection attempt to be cancelled */
+            if (this.isStopped()) {
+                this.loop.submit(() -> l.close(null));
+                return;
+            }
+
+            try {
+                this.bot.linkOpened(l);
+            } catch (RuntimeException re) {
+                log.error("Could not register with server: " + this.name,
+                        re);
+                this.loop.submit(() -> l.close(re));
+            }
+        }
+
+        private void handle(String line) {
+            try {
+                this.bot.getInputParser().handleLine(line);
+            } catch (Exception e) {
+                log.error("Exception encountered when parsing line " +
+                        line + " from server: " + this.name, e);
+            }
+        }
+
+        private void ping() {
+            if (this.bot.isConnected()) {
+                this.bot.sendRaw().rawLine("PING " +
+                        (System.currentTimeMillis() / 1000));
+            }
+        }
+
+        private void closed(Exception cause) {
+            this.link = null;
+            this.bot.linkClosed(cause);
+            this.retry(null);
+        }
+
+        private void failed(Exception cause) {
+            this.link = null;
+            this.attempts++;
+            this.retry(cause);
+        }
+
+        /* as PircBotX would after a connection ends or cannot be made */
+        private void retry(Exception cause) {
+            Configuration conf;
+
+            conf = this.bot.getConfiguration();
+            if (!conf.isAutoReconnect() || this.isStopped()) {
+                this.finish(cause);
+            } else if (this.attempts >= conf.getAutoReconnectAttempts()) {
+                this.finish(new IOException("Failed to connect to IRC " +
+                            "server(s) after " + this.attempts +
+                            " attempts"));
+            } else {
+                log.debug("Reconnecting in " + NioTransport.this.delay +
+                        " ms to server: " + this.name);
+                NioTransport.this.workers.schedule(
+                        () -> this.serial(this::resolve),
+                        NioTransport.this.delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void finish(Exception cause) {
+            NioTransport.this.sessions.remove(this);
+
+            if (cause != null) {
+                log.error("Could not connect to server: " + this.name,
+                        cause);
+            }
+
+            NioTransport.this.exit.accept(this.bot, cause);
+        }
+
+        /* a connection still being made is given up on, and one made is
+         * left for the server to close after quitting */
+        private void stop(String reason) {
+            Link l;
+
+            this.bot.stopBotReconnect();
+
+            l = this.link;
+            if (l == null) {
+                return;
+            }
+
+            if (l.open) {
+                try {
+                    this.bot.sendIRC().quitServer(reason);
+                } catch (RuntimeException re) {
+                    /* not registered yet, or closed in the meantime */
+                    this.loop.submit(() -> l.close(null));
+                }
+            } else {
+                this.loop.submit(() -> l.close(null));
+            }
+        }
+    }
+
+    /**
+     * One connection to a server, trying each address in turn until one
+     * answers.
+     */
+    public static class Link {
+        private final Session session;
+        private final Selector selector;
+        private final List<InetSocketAddress> addrs;
+        private final Charset charset;
+        private final long timeout;
+        private final Deque<ByteBuffer> outbox;
+        private final AtomicBoolean flushing;
+        private final AtomicInteger pending;
+        private volatile InetSocketAddress addr;
+        private volatile InetAddress local;
+        private volatile boolean open;
+        private int index;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private SSLEngine engine;
+        private ByteBuffer netIn;
+        private ByteBuffer appIn;
+        private ByteBuffer netOut;
+        private Exception error;
+        private boolean connected;
+        private boolean closed;
+        private boolean discarding;
+        private boolean paused;
+        private boolean pinged;
+        private long started;
+        private long lastRead;
+
+        private Link(Session session, List<InetSocketAddress> addrs) {
+            Configuration conf;
+
+            conf = session.bot.getConfiguration();
+            this.session = session;
+            this.selector = session.loop.selector;
+            this.addrs = addrs;
+            this.charset = conf.getEncoding();
+            this.timeout = conf.getSocketTimeout();
+            this.outbox = new ArrayDeque<>();
+            this.flushing = new AtomicBoolean(false);
+            this.pending = new AtomicInteger(0);
+            this.open = false;
+            this.index = 0;
+            this.connected = false;
+            this.closed = false;
+            this.discarding = false;
+            this.paused = false;
+        }
+
+        public String getHostname() {
+            return this.addr.getHostString();
+        }
+
+        public int getPort() {
+            return this.addr.getPort();
+        }
+
+        public InetAddress getLocalAddress() {
+            return this.local;
+        }
+
+        /**
+         * Whether lines can be written, which they can from as soon as the
+         * connection is made until it is closed.
+         */
+        public boolean isOpen() {
+            return this.open;
+        }
+
+        /**
+         * Queue a line to be sent, from any thread. Lines written once the
+         * connection is closed are dropped.
+         */
+        public void write(String line) {
+            synchronized (this.outbox) {
+                this.outbox.add(ByteBuffer.wrap((line + "\r\n")
+                            .getBytes(this.charset)));
+            }
+
+            if (this.flushing.compareAndSet(false, true)) {
+                this.session.loop.submit(() -> {
+                    try {
+                        this.pump();
+                    } catch (IOException | RuntimeException e) {
+                        this.close(e);
+                    }
+                });
+            }
+        }
+
+        /* everything from here on runs on the selector thread */
+
+        private void connectNext() {
+            Configuration conf;
+            SocketChannel ch;
+            boolean done;
+
+            conf = this.session.bot.getConfiguration();
+            while (this.index < this.addrs.size()) {
+                if (this.session.isStopped()) {
+                    this.closed = true;
+                    this.session.serial(() -> this.session.failed(null));
+                    return;
+                }
+
+                this.addr = this.addrs.get(this.index++);
+                log.debug("Connecting to " + this.addr + " for server: " +
+                        this.session.name);
+
+                try {
+                    ch = SocketChannel.open();
+                    this.channel = ch;
+                    ch.configureBlocking(false);
+                    if (conf.getLocalAddress() != null) {
+                        ch.bind(new InetSocketAddress(conf.getLocalAddress(),
+                                    0));
+                    }
+
+                    this.started = System.currentTimeMillis();
+                    done = ch.connect(this.addr);
+                    this.key = ch.register(this.selector,
+                            done ? 0 : SelectionKey.OP_CONNECT, this);
+                } catch (IOException ioe) {
+                    this.attemptFailed(ioe);
+                    continue;
+                }
+
+                if (done) {
+                    try {
+                        this.connected();
+                    } catch (IOException | RuntimeException e) {
+                        this.close(e);
+                    }
+                }
+
+                return;
+            }
+
+            this.closed = true;
+            this.session.serial(() -> this.session.failed(this.error));
+        }
+
+        private void attemptFailed(Exception e) {
+            log.warn("Failed to connect to " + this.addr + " for server: " +
+                    this.session.name + ": " + e.getMessage());
+            this.error = e;
+            this.closeChannel();
+        }
+
+        private void connected() throws IOException {
+            SSLContext ctx;
+
+            this.local = ((InetSocketAddress) this.channel.getLocalAddress())
+                .getAddress();
+            this.netIn = ByteBuffer.allocate(READ_SIZE);
+
+            /* certificates are checked against the default trust store, as
+             * with the blocking transport's socket factory */
+            if (this.session.security != Security.PLAIN) {
+                try {
+                    ctx = (this.session.security == Security.TLS) ?
+                        SSLContext.getDefault() : insecureContext();
+                } catch (GeneralSecurityException gse) {
+                    throw new IOException("Could not set up TLS: " +
+                            gse.getMessage(), gse);
+                }
+
+                this.engine = ctx.createSSLEngine(this.addr.getHostString(),
+                        this.addr.getPort());
+                this.engine.setUseClientMode(true);
+                this.appIn = ByteBuffer.allocate(MAX_LINE +
+                        this.engine.getSession().getApplicationBufferSize());
+                this.netOut = ByteBuffer.allocate(
+                        this.engine.getSession().getPacketBufferSize());
+                this.engine.beginHandshake();
+            }
+
+            log.info("Connected to " + this.addr + " for server: " +
+                    this.session.name);
+
+            /* lines written during the TLS handshake wait in the outbox */
+            this.connected = true;
+            this.lastRead = System.currentTimeMillis();
+            this.key.interestOps(SelectionKey.OP_READ);
+            this.open = true;
+            this.session.serial(() -> this.session.opened(this));
+            this.pump();
+        }
+
+        private void ready(SelectionKey k) {
+            try {
+                if (k.isConnectable()) {
+                    try {
+                        if (!this.channel.finishConnect()) {
+                            return;
+                        }
+                    } catch (IOException ioe) {
+                        this.attemptFailed(ioe);
+                        this.connectNext();
+                        return;
+                    }
+
+                    this.connected();
+                    return;
+                }
+
+                if (k.isReadable()) {
+                    this.read();
+                }
+
+                if (k.isValid() && k.isWritable()) {
+                    this.pump();
+                }
+            } catch (IOException | RuntimeException e) {
+                this.close(e);
+            }
+        }
+
+        private void tick(long now) {
+            long idle;
+
+            if (!this.connected) {
+                if (now - this.started > this.timeout) {
+                    this.attemptFailed(new SocketTimeoutException(
+                                "Connect timed out"));
+                    this.connectNext();
+                }
+
+                return;
+            }
+
+            /* PircBotX pings a quiet server too, but never gives up on it */
+            idle = now - this.lastRead;
+            if (idle > 2 * this.timeout) {
+                this.close(new SocketTimeoutException("Nothing received " +
+                            "from server in " + idle + " ms"));
+            } else if (idle > this.timeout && !this.pinged) {
+                this.pinged = true;
+                this.session.serial(this.session::ping);
+            }
+        }
+
+        private void read() throws IOException {
+            if (this.channel.read(this.netIn) < 0) {
+                this.close(null);
+                return;
+            }
+
+            this.lastRead = System.currentTimeMillis();
+            this.pinged = false;
+            this.pump();
+        }
+
+        /* take in whatever has been read, then send whatever can be sent */
+        private void pump() throws IOException {
+            if (this.closed || !this.connected) {
+                return;
+            }
+
+            if (this.engine == null) {
+                this.netIn.flip();
+                this.frame(this.netIn);
+                this.netIn.compact();
+            } else if (!this.unwrap()) {
+                return;
+            }
+
+            this.flush();
+        }
+
+        /* returns false if the server closed the session */
+        private boolean unwrap() throws IOException {
+            SSLEngineResult res;
+            HandshakeStatus hs;
+
+            for (;;) {
+                hs = this.engine.getHandshakeStatus();
+                if (hs == HandshakeStatus.NEED_TASK) {
+                    this.runTasks();
+                    continue;
+                } else if (hs == HandshakeStatus.NEED_WRAP) {
+                    if (!this.wrap()) {
+                        return true;
+                    }
+
+                    this.drain();
+                    continue;
+                }
+
+                this.netIn.flip();
+                res = this.engine.unwrap(this.netIn, this.appIn);
+                this.netIn.compact();
+
+                switch (res.getStatus()) {
+                case OK:
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!this.netIn.hasRemaining()) {
+                        throw new IOException("TLS record too large");
+                    }
+
+                    return true;
+                case BUFFER_OVERFLOW:
+                    /* there is always room for a record after a line */
+                    throw new IOException("TLS record too large");
+                case CLOSED:
+                    this.close(null);
+                    return false;
+                }
+
+                if (res.bytesProduced() > 0) {
+                    this.appIn.flip();
+                    this.frame(this.appIn);
+                    this.appIn.compact();
+                }
+
+                hs = this.engine.getHandshakeStatus();
+                if (res.bytesConsumed() == 0 && res.bytesProduced() == 0 &&
+                        hs != HandshakeStatus.NEED_TASK &&
+                        hs != HandshakeStatus.NEED_WRAP) {
+                    return true;
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+
+            while ((task = this.engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        /* wrap handshake data or queued lines into netOut, returning
+         * whether anything was produced */
+        private boolean wrap() throws IOException {
+            SSLEngineResult res;
+            ByteBuffer[] src;
+
+            if (this.netOut.remaining() <
+                    this.engine.getSession().getPacketBufferSize()) {
+                return false;
+            }
+
+            synchronized (this.outbox) {
+                src = this.outbox.toArray(NO_BUFFERS);
+            }
+
+            res = this.engine.wrap(src, this.netOut);
+            this.sent();
+
+            if (res.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException("TLS session closed");
+            }
+
+            return res.bytesProduced() > 0;
+        }
+
+        /* drop lines from the outbox once they are sent */
+        private void sent() {
+            synchronized (this.outbox) {
+                while (!this.outbox.isEmpty() &&
+                        !this.outbox.peek().hasRemaining()) {
+                    this.outbox.poll();
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            this.netOut.flip();
+            this.channel.write(this.netOut);
+            this.netOut.compact();
+        }
+
+        private void flush() throws IOException {
+            ByteBuffer[] src;
+            boolean blocked;
+
+            /* anything queued after this point will be flushed again */
+            this.flushing.set(false);
+
+            if (this.engine == null) {
+                synchronized (this.outbox) {
+                    src = this.outbox.toArray(NO_BUFFERS);
+                }
+
+                this.channel.write(src);
+                this.sent();
+
+                synchronized (this.outbox) {
+                    blocked = !this.outbox.isEmpty();
+                }
+            } else {
+                do {
+                    this.drain();
+                } while (this.netOut.position() == 0 && this.wrap());
+
+                blocked = this.netOut.position() > 0;
+            }
+
+            if (blocked) {
+                this.key.interestOps(this.key.interestOps() |
+                        SelectionKey.OP_WRITE);
+            } else {
+                this.key.interestOps(this.key.interestOps() &
+                        ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        /* hand each whole line in the buffer to the bot, leaving the
+         * start of any partial one */
+        private void frame(ByteBuffer buf) {
+            byte[] data;
+            int off, start, end;
+
+            data = buf.array();
+            off = buf.arrayOffset();
+            start = buf.position();
+            for (int i = start; i < buf.limit(); i++) {
+                if (data[off + i] != '\n') {
+                    continue;
+                }
+
+                end = i;
+                if (end > start && data[off + end - 1] == '\r') {
+                    end--;
+                }
+
+                if (!this.discarding && end > start) {
+                    this.deliver(new String(data, off + start, end - start,
+                                this.charset));
+                }
+
+                this.discarding = false;
+                start = i + 1;
+            }
+
+            buf.position(start);
+            if (buf.remaining() > MAX_LINE) {
+                log.warn("Dropping overlong line from server: " +
+                        this.session.name);
+                this.discarding = true;
+                buf.position(buf.limit());
+            }
+        }
+
+        /* stop reading while the bot is too far behind */
+        private void deliver(String line) {
+            if (this.pending.incrementAndGet() == MAX_PENDING) {
+                this.paused = true;
+                this.key.interestOps(this.key.interestOps() &
+                        ~SelectionKey.OP_READ);
+            }
+
+            this.session.serial(() -> {
+                this.session.handle(line);
+                if (this.pending.decrementAndGet() == MAX_PENDING / 2) {
+                    this.session.loop.submit(this::resume);
+                }
+            });
+        }
+
+        private void resume() {
+            if (this.paused && !this.closed) {
+                this.paused = false;
+                this.key.interestOps(this.key.interestOps() |
+                        SelectionKey.OP_READ);
+            }
+        }
+
+        private void closeChannel() {
+            if (this.key != null) {
+                this.key.cancel();
+                this.key = null;
+            }
+
+            try {
+                this.channel.close();
+            } catch (IOException ioe) {
+                log.error("Cannot close socket: " + ioe.getMessage());
+            }
+        }
+
+        /* the bot is told once any lines already read are handled */
+        private void close(Exception cause) {
+            if (this.closed) {
+                return;
+            }
+
+            if (!this.connected) {
+                this.attemptFailed((cause != null) ? cause :
+                        new IOException("Connect cancelled"));
+                this.connectNext();
+                return;
+            }
+
+            if (cause != null) {
+                log.error("Lost connection to server: " +
+                        this.session.name, cause);
+            }
+
+            this.closed = true;
+            this.open = false;
+            this.closeChannel();
+            this.session.serial(() -> this.session.closed(cause));
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import red.m_squa.oops.except.BadPriority;
+import red.m_squa.oops.except.OutboundQueueFull;
+
+/**
+ * Paces outgoing IRC commands with a token bucket, so that bursts up to the
+ * bucket size go out immediately and anything beyond that is sent at the
+ * refill rate. Commands wait in one of several priority lanes, and the
+ * highest priority lane with anything in it is always served first.
+ *
+ * Every line written to the server takes a token, including those sent by
+ * PircBotX itself, so that a command which sends several lines is charged
+ * for each. Lines which find the bucket empty wait in order ahead of any
+ * queued commands.
+ *
+ * Sending is done by a thread of its own, or the shared workers for servers
+ * on the selector transport, which is woken when something is queued and,
+ * while the bucket is empty, when the next token is due.
+ */
+public class OutboundScheduler {
+    private static final Logger log =
+        LoggerFactory.getLogger(OutboundScheduler.class);
+    private static final int BATCH = 64;
+
+    /* reason given for commands discarded when the scheduler is stopped */
+    public static final String STOPPED = "server stopped";
+
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW;
+
+        public static Priority fromString(String str) {
+            switch (str) {
+            case "high":
+                return HIGH;
+            case "normal":
+                return NORMAL;
+            case "low":
+                return LOW;
+            default:
+                throw new BadPriority(str);
+            }
+        }
+
+        public String toString() {
+            return this.name().toLowerCase();
+        }
+    };
+
+    /**
+     * Told what happened to a queued command, with the time it spent
+     * queued in milliseconds and the reason it was dropped, or null if it
+     * was sent.
+     */
+    @FunctionalInterface
+    public interface Outcome {
+        public void done(long wait, String error);
+    }
+
+    /**
+     * Writes a line to the server once it has a token.
+     */
+    @FunctionalInterface
+    public interface LineWriter {
+        public void write(String line) throws IOException;
+    }
+
+    private static class Item {
+        private final Runnable send;
+        private final Outcome outcome;
+        private final long queued;
+
+        private Item(Runnable send, Outcome outcome) {
+            this.send = send;
+            this.outcome = outcome;
+            this.queued = System.currentTimeMillis();
+        }
+
+        private void done(String error) {
+            if (this.outcome != null) {
+                this.outcome.done(System.currentTimeMillis() - this.queued,
+                        error);
+            }
+        }
+    }
+
+    private static class Lane {
+        private final Deque<Item> queue = new ArrayDeque<>();
+        private long sent;
+        private long totalWait;
+        private long maxWait;
+    }
+
+    private final Lane[] lanes;
+    /* lines waiting for a token, in the order they were written */
+    private final Deque<String> lines;
+    /* held while writing, so that lines go out in order */
+    private final Object writeLock;
+    private final int capacity;
+    private final double burst;
+    private final long interval;
+    private final Workers.Drain sender;
+    private volatile LineWriter writer;
+    private volatile boolean running;
+    private boolean paused;
+    /* whether a wakeup for the next token is already scheduled */
+    private boolean waking;
+    private double tokens;
+    private long refilled;
+
+    /**
+     * Create a scheduler allowing bursts of up to burst commands, with one
+     * more allowed every interval milliseconds, and holding at most
+     * capacity commands in each lane.
+     */
+    public OutboundScheduler(String name, int burst, long interval,
+            int capacity) {
+        this.lanes = new Lane[Priority.values().length];
+        for (int i = 0; i < this.lanes.length; i++) {
+            this.lanes[i] = new Lane();
+        }
+
+        this.lines = new ArrayDeque<>();
+        this.writeLock = new Object();
+        this.capacity = capacity;
+        this.burst = Math.max(burst, 1);
+        this.interval = Math.max(interval, 0);
+        this.tokens = this.burst;
+        this.refilled = System.currentTimeMillis();
+        this.running = false;
+        this.paused = true;
+        this.waking = false;
+
+        this.sender = new Workers.Drain("oops-outbound-" + name, this::pump);
+    }
+
+    /**
+     * Send from the shared workers rather than a thread of its own, for
+     * servers whose writes never block. Must be called before start().
+     */
+    public void useSharedWorkers() {
+        this.sender.share();
+    }
+
+    public void setWriter(LineWriter writer) {
+        this.writer = writer;
+    }
+
+    public void start() {
+        this.running = true;
+        this.sender.start();
+    }
+
+    /**
+     * Stop sending, discarding anything still queued.
+     */
+    public void shutdown() {
+        Item i;
+
+        this.running = false;
+        this.sender.stop();
+
+        synchronized (this) {
+            for (Lane l: this.lanes) {
+                while ((i = l.queue.poll()) != null) {
+                    i.done(STOPPED);
+                }
+            }
+
+            this.lines.clear();
+        }
+    }
+
+    /**
+     * Forget lines written for a connection which has been lost, and refill
+     * the bucket for the next one.
+     */
+    public synchronized void reset() {
+        this.lines.clear();
+        this.tokens = this.burst;
+        this.refilled = System.currentTimeMillis();
+    }
+
+    /* replies to PINGs, and leaving, are never held up behind other lines,
+     * but still use up a token */
+    private static boolean isUrgent(String line) {
+        return line.startsWith("PONG ") || line.equals("QUIT") ||
+            line.startsWith("QUIT ");
+    }
+
+    /**
+     * Write a line to the server if there is a token for it, or hold it
+     * until there is. Lines are written straight away once the scheduler
+     * has been stopped.
+     */
+    public void write(String line) throws IOException {
+        boolean now;
+
+        synchronized (this.writeLock) {
+            synchronized (this) {
+                if (!this.running || isUrgent(line)) {
+                    this.refill();
+                    this.tokens -= 1;
+                    now = true;
+                } else if (this.lines.isEmpty() && this.take()) {
+                    now = true;
+                } else {
+                    this.lines.add(line);
+                    this.sender.kick();
+                    now = false;
+                }
+            }
+
+            if (now) {
+                this.writer.write(line);
+            }
+        }
+    }
+
+    /**
+     * Hold queued commands while there is no connection to send them on,
+     * or start sending them again. A new scheduler starts out paused.
+     */
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+        if (!paused) {
+            this.sender.kick();
+        }
+    }
+
+    public void submit(Priority prio, Runnable send)
+        throws OutboundQueueFull {
+        this.submit(prio, send, null);
+    }
+
+    /**
+     * Queue a command, and report what became of it to the given outcome
+     * once it has been sent or dropped.
+     */
+    public synchronized void submit(Priority prio, Runnable send,
+            Outcome outcome) throws OutboundQueueFull {
+        Lane l;
+
+        l = this.lanes[prio.ordinal()];
+        if (l.queue.size() >= this.capacity) {
+            throw new OutboundQueueFull(prio.toString());
+        }
+
+        l.queue.add(new Item(send, outcome));
+        this.sender.kick();
+    }
+
+    /**
+     * Queue depth, commands sent, and total and maximum time spent queued
+     * in milliseconds for each lane.
+     */
+    public synchronized Map<String, Long> getStats() {
+        Map<String, Long> ret;
+        Lane l;
+
+        ret = new LinkedHashMap<>();
+        for (Priority p: Priority.values()) {
+            l = this.lanes[p.ordinal()];
+            ret.put(p + "-depth", (long) l.queue.size());
+            ret.put(p + "-sent", l.sent);
+            ret.put(p + "-wait-ms", l.totalWait);
+            ret.put(p + "-max-wait-ms", l.maxWait);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Top up the bucket for the time since it was last filled, returning
+     * whether there is a token available.
+     */
+    private boolean refill() {
+        long now;
+
+        if (this.interval == 0) {
+            this.tokens = this.burst;
+            return true;
+        }
+
+        now = System.currentTimeMillis();
+        this.tokens = Math.min(this.burst, this.tokens +
+                (double) (now - this.refilled) / this.interval);
+        this.refilled = now;
+
+        return this.tokens >= 1;
+    }
+
+    /* take a token if there is one */
+    private boolean take() {
+        if (!this.refill()) {
+            return false;
+        }
+
+        this.tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Whether there is a token available, without taking it. If not, the
+     * sender is woken again once there should be.
+     */
+    private synchronized boolean hasToken() {
+        if (this.refill()) {
+            return true;
+        }
+
+        if (!this.waking) {
+            this.waking = true;
+            this.sender.schedule(this::wake,
+                    (long) Math.ceil((1 - this.tokens) * this.interval));
+        }
+
+        return false;
+    }
+
+    private void wake() {
+        synchronized (this) {
+            this.waking = false;
+        }
+
+        this.sender.kick();
+    }
+
+    /**
+     * Write the oldest held line, if there is one and a token for it.
+     * Returns whether a line was written.
+     */
+    private boolean drain() {
+        String line;
+
+        synchronized (this.writeLock) {
+            synchronized (this) {
+                if (this.lines.isEmpty() || !this.take()) {
+                    return false;
+                }
+
+                line = this.lines.poll();
+            }
+
+            try {
+                this.writer.write(line);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not send held IRC line: " + e.getMessage());
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove the next command from the highest priority non-empty lane.
+     * Returns null if all are empty or sending is paused, or if there are
+     * held lines to send.
+     */
+    private synchronized Item next() {
+        Item i;
+        long wait;
+
+        if (!this.lines.isEmpty() || this.paused) {
+            return null;
+        }
+
+        for (Lane l: this.lanes) {
+            i = l.queue.poll();
+            if (i == null) {
+                continue;
+            }
+
+            wait = System.currentTimeMillis() - i.queued;
+            l.sent++;
+            l.totalWait += wait;
+            l.maxWait = Math.max(l.maxWait, wait);
+            return i;
+        }
+
+        return null;
+    }
+
+    /* send a batch of held lines and queued commands, returning true if
+     * there may be more to send straight away */
+    private boolean pump() {
+        Item i;
+
+        for (int n = 0; n < BATCH; n++) {
+            /* a token is waited for before choosing what to send, so that a
+             * command queued meanwhile can still jump ahead of lower
+             * priority ones; the lines it sends take the tokens */
+            if (!this.running || !this.hasToken()) {
+                return false;
+            } else if (this.drain()) {
+                continue;
+            }
+
+            i = this.next();
+            if (i == null) {
+                synchronized (this) {
+                    if (this.lines.isEmpty()) {
+                        return false;
+                    }
+                }
+
+                continue;
+            }
+
+            try {
+                i.send.run();
+            } catch (RuntimeException re) {
+                log.warn("Could not send queued IRC command: " +
+                        re.getMessage());
+                i.done(re.getMessage());
+                continue;
+            }
+
+            i.done(null);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only file of outgoing messages which have not been sent yet, so
+ * that they can be sent after a restart. Each message is written when it
+ * is queued and acknowledged once it has been sent; writes are buffered
+ * and synced to disk by a background thread at a fixed interval, so that
+ * sending messages never waits for the disk.
+ *
+ * Each line of the file is either a message record, of the form
+ * "M seq timestamp prefix message suffix", or an acknowledgement of the
+ * form "A seq", with fields separated by tabs.
+ */
+public class OutboundSpool {
+    private static final Logger log =
+        LoggerFactory.getLogger(OutboundSpool.class);
+
+    /* once everything has been acknowledged, the file is emptied again if
+     * it has grown beyond this size */
+    private static final long COMPACT_SIZE = 1024 * 1024;
+
+    /* reason given for messages dropped for being too old to send */
+    public static final String EXPIRED = "message expired";
+
+    public static class Record {
+        private final long seq;
+        private final long timestamp;
+        private final String prefix;
+        private final String message;
+        private final String suffix;
+
+        private Record(long seq, long timestamp, String prefix,
+                String message, String suffix) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.prefix = prefix;
+            this.message = message;
+            this.suffix = suffix;
+        }
+
+        public long getSeq() {
+            return this.seq;
+        }
+
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+
+        public String getPrefix() {
+            return this.prefix;
+        }
+
+        public String getMessage() {
+            return this.message;
+        }
+
+        public String getSuffix() {
+            return this.suffix;
+        }
+    }
+
+    private final File file;
+    private final long maxage;
+    private final long interval;
+    private final List<Record> replay;
+    private final Set<Long> pending;
+    private final Workers.Drain syncer;
+    /* held while syncing, so that closing waits for a sync in progress */
+    private final Object syncLock;
+    private ScheduledFuture<?> periodic;
+    private FileOutputStream out;
+    private Writer writer;
+    private long seq;
+    private long written;
+    private boolean dirty;
+    private volatile boolean running;
+
+    /**
+     * Open a spool file, keeping any unacknowledged messages younger than
+     * maxage milliseconds for replay and discarding everything else. The
+     * same age limit applies to messages when they come to be sent.
+     */
+    public OutboundSpool(String name, File file, long maxage, long interval)
+        throws IOException {
+        Map<Long, Record> recs;
+        Record r;
+        String line;
+        String[] split;
+        long cutoff;
+
+        this.file = file;
+        this.maxage = maxage;
+        this.interval = interval;
+        this.pending = new HashSet<>();
+        this.seq = 0;
+
+        recs = new LinkedHashMap<>();
+        cutoff = System.currentTimeMillis() - maxage;
+
+        if (file.exists()) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                            new FileInputStream(file),
+                            StandardCharsets.UTF_8))) {
+                while ((line = br.readLine()) != null) {
+                    split = line.split("\t", -1);
+
+                    try {
+                        if (split[0].equals("M") && split.length == 6) {
+                            r = new Record(Long.parseLong(split[1]),
+                                    Long.parseLong(split[2]),
+                                    unescape(split[3]), unescape(split[4]),
+                                    unescape(split[5]));
+                            recs.put(r.seq, r);
+                            this.seq = Math.max(this.seq, r.seq);
+                        } else if (split[0].equals("A") &&
+                                split.length == 2) {
+                            recs.remove(Long.parseLong(split[1]));
+                        }
+                    } catch (NumberFormatException nfe) {
+                        /* most likely a torn write at the end of the file */
+                        log.warn("Ignoring malformed spool record in " +
+                                file);
+                    }
+                }
+            }
+        }
+
+        this.replay = new ArrayList<>();
+        for (Record rec: recs.values()) {
+            if (rec.timestamp >= cutoff) {
+                this.replay.add(rec);
+            }
+        }
+
+        if (recs.size() > this.replay.size()) {
+            log.info("Discarded " + (recs.size() - this.replay.size()) +
+                    " expired messages from spool " + file);
+        }
+
+        this.rewrite();
+
+        this.syncer = new Workers.Drain("oops-spool-" + name, this::run);
+        this.syncLock = new Object();
+        this.running = false;
+    }
+
+    /**
+     * Sync from the shared workers rather than a thread of its own. Must be
+     * called before start().
+     */
+    public void useSharedWorkers() {
+        this.syncer.share();
+    }
+
+    public void start() {
+        this.running = true;
+        this.syncer.start();
+        this.periodic = this.syncer.kickEvery(Math.max(this.interval, 1));
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t")
+            .replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb;
+        char c;
+
+        sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                sb.append(c);
+                continue;
+            }
+
+            c = s.charAt(++i);
+            switch (c) {
+            case 't':
+                sb.append('\t');
+                break;
+            case 'n':
+                sb.append('\n');
+                break;
+            case 'r':
+                sb.append('\r');
+                break;
+            default:
+                sb.append(c);
+                break;
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private String format(Record r) {
+        return "M\t" + r.seq + "\t" + r.timestamp + "\t" + escape(r.prefix) +
+            "\t" + escape(r.message) + "\t" + escape(r.suffix) + "\n";
+    }
+
+    /**
+     * Replace the file with one holding only the messages to be replayed.
+     */
+    private void rewrite() throws IOException {
+        File tmp;
+
+        tmp = new File(this.file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+                Writer w = new BufferedWriter(new OutputStreamWriter(fos,
+                        StandardCharsets.UTF_8))) {
+            for (Record r: this.replay) {
+                w.write(this.format(r));
+                this.pending.add(r.seq);
+            }
+
+            w.flush();
+            fos.getFD().sync();
+        }
+
+        Files.move(tmp.toPath(), this.file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        this.out = new FileOutputStream(this.file, true);
+        this.writer = new BufferedWriter(new OutputStreamWriter(this.out,
+                    StandardCharsets.UTF_8));
+        this.written = this.file.length();
+    }
+
+    /**
+     * Whether a message queued at the given time is now too old to send.
+     */
+    public boolean isExpired(long timestamp) {
+        return System.currentTimeMillis() - timestamp > this.maxage;
+    }
+
+    /**
+     * Take the messages left over from a previous run, in the order they
+     * were originally queued, dropping any which have expired since the
+     * spool was opened. Returns an empty list after the first call.
+     */
+    public synchronized List<Record> takeReplay() {
+        List<Record> ret;
+        int expired;
+
+        ret = new ArrayList<>(this.replay.size());
+        expired = 0;
+        for (Record r: this.replay) {
+            if (this.isExpired(r.timestamp)) {
+                this.ack(r.seq);
+                expired++;
+            } else {
+                ret.add(r);
+            }
+        }
+
+        if (expired > 0) {
+            log.info("Discarded " + expired + " expired messages from " +
+                    "spool " + this.file);
+        }
+
+        this.replay.clear();
+        return ret;
+    }
+
+    private void write(String line) {
+        try {
+            this.writer.write(line);
+            this.written += line.length();
+            this.dirty = true;
+        } catch (IOException ioe) {
+            log.error("Could not write to spool " + this.file + ": " +
+                    ioe.getMessage());
+        }
+    }
+
+    /**
+     * Record a message which is about to be queued, returning its sequence
+     * number.
+     */
+    public synchronized long append(String prefix, String message,
+            String suffix) {
+        Record r;
+
+        r = new Record(++this.seq, System.currentTimeMillis(), prefix,
+                message, suffix);
+        this.pending.add(r.seq);
+        this.write(this.format(r));
+
+        return r.seq;
+    }
+
+    /**
+     * Record that a message has been sent, or dropped for good.
+     */
+    public synchronized void ack(long seq) {
+        if (this.pending.remove(seq)) {
+            this.write("A\t" + seq + "\n");
+        }
+    }
+
+    /**
+     * Flush buffered records to disk, and empty the file if it holds
+     * nothing worth keeping.
+     */
+    private void sync() throws IOException {
+        FileOutputStream fos;
+
+        synchronized (this) {
+            if (!this.dirty) {
+                return;
+            }
+
+            this.writer.flush();
+            this.dirty = false;
+            fos = this.out;
+
+            if (this.pending.isEmpty() && this.replay.isEmpty() &&
+                    this.written > COMPACT_SIZE) {
+                fos.getChannel().truncate(0);
+                this.written = 0;
+            }
+        }
+
+        /* the slow part happens outside the lock */
+        fos.getChannel().force(false);
+    }
+
+    private boolean run() {
+        synchronized (this.syncLock) {
+            if (!this.running) {
+                return false;
+            }
+
+            try {
+                this.sync();
+            } catch (IOException ioe) {
+                log.error("Could not sync spool " + this.file + ": " +
+                        ioe.getMessage());
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Stop the periodic sync, and write out anything still buffered.
+     */
+    public void close() {
+        this.running = false;
+        if (this.periodic != null) {
+            this.periodic.cancel(false);
+        }
+
+        synchronized (this.syncLock) {
+            try {
+                this.sync();
+
+                synchronized (this) {
+                    this.writer.close();
+                }
+            } catch (IOException ioe) {
+                log.error("Could not close spool " + this.file + ": " +
+                        ioe.getMessage());
+            }
+        }
+
+        this.syncer.stop();
+    }
+}
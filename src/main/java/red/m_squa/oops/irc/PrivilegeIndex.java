@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+import org.pircbotx.Channel;
+import org.pircbotx.User;
+import org.pircbotx.UserLevel;
+
+/**
+ * Per-channel index of user privilege levels, maintained incrementally from
+ * IRC events. Levels are bitmasks of the LEVEL_* constants, with zero
+ * meaning a regular user.
+ */
+public class PrivilegeIndex {
+    public static final int LEVEL_VOICE = 1;
+    public static final int LEVEL_HALFOP = 2;
+    public static final int LEVEL_OP = 4;
+    public static final int LEVEL_SUPEROP = 8;
+    public static final int LEVEL_OWNER = 16;
+
+    private final UnaryOperator<String> normalizer;
+    /* channel -> nick -> level */
+    private final Map<String, Map<String, Integer>> levels;
+    /* channels whose full user list has been seen */
+    private final Set<String> complete;
+
+    public PrivilegeIndex(UnaryOperator<String> normalizer) {
+        this.normalizer = normalizer;
+        this.levels = new ConcurrentHashMap<>();
+        this.complete = ConcurrentHashMap.newKeySet();
+    }
+
+    public static int levelBit(UserLevel l) {
+        switch (l) {
+        case VOICE:
+            return LEVEL_VOICE;
+        case HALFOP:
+            return LEVEL_HALFOP;
+        case OP:
+            return LEVEL_OP;
+        case SUPEROP:
+            return LEVEL_SUPEROP;
+        case OWNER:
+            return LEVEL_OWNER;
+        default:
+            return 0;
+        }
+    }
+
+    public static int levelOf(Collection<UserLevel> ls) {
+        int ret;
+
+        ret = 0;
+        for (UserLevel l: ls) {
+            ret |= levelBit(l);
+        }
+
+        return ret;
+    }
+
+    private Map<String, Integer> channel(String chan) {
+        return this.levels.computeIfAbsent(this.normalizer.apply(chan),
+                k -> new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Return the level of a user on a channel, or null if the user is not
+     * known to be on it.
+     */
+    public Integer get(String chan, String nick) {
+        Map<String, Integer> users;
+
+        users = this.levels.get(this.normalizer.apply(chan));
+        if (users == null) {
+            return null;
+        }
+
+        return users.get(this.normalizer.apply(nick));
+    }
+
+    /**
+     * Whether the index holds every user on a channel, so that a user
+     * missing from it is not on the channel.
+     */
+    public boolean isComplete(String chan) {
+        return this.complete.contains(this.normalizer.apply(chan));
+    }
+
+    /**
+     * Rebuild the index for a channel from its full user list.
+     */
+    public void rebuild(Channel c) {
+        Map<String, Integer> users;
+        String key;
+
+        users = new ConcurrentHashMap<>();
+        for (User u: c.getUsers()) {
+            users.put(this.normalizer.apply(u.getNick()),
+                    levelOf(c.getUserLevels(u)));
+        }
+
+        key = this.normalizer.apply(c.getName());
+        this.levels.put(key, users);
+        this.complete.add(key);
+    }
+
+    public void add(String chan, String nick) {
+        this.channel(chan).putIfAbsent(this.normalizer.apply(nick), 0);
+    }
+
+    public void remove(String chan, String nick) {
+        Map<String, Integer> users;
+
+        users = this.levels.get(this.normalizer.apply(chan));
+        if (users != null) {
+            users.remove(this.normalizer.apply(nick));
+        }
+    }
+
+    public void removeChannel(String chan) {
+        String key;
+
+        key = this.normalizer.apply(chan);
+        this.complete.remove(key);
+        this.levels.remove(key);
+    }
+
+    /**
+     * Remove a user from all channels, e.g. when quitting.
+     */
+    public void removeUser(String nick) {
+        String key;
+
+        key = this.normalizer.apply(nick);
+        for (Map<String, Integer> users: this.levels.values()) {
+            users.remove(key);
+        }
+    }
+
+    public void rename(String oldnick, String newnick) {
+        String oldkey, newkey;
+        Integer l;
+
+        oldkey = this.normalizer.apply(oldnick);
+        newkey = this.normalizer.apply(newnick);
+
+        for (Map<String, Integer> users: this.levels.values()) {
+            l = users.remove(oldkey);
+            if (l != null) {
+                users.put(newkey, l);
+            }
+        }
+    }
+
+    /**
+     * Set or clear a level bit for a user on a channel.
+     */
+    public void update(String chan, String nick, int bit, boolean set) {
+        this.channel(chan).compute(this.normalizer.apply(nick),
+                (k, v) -> {
+                    int l = (v == null) ? 0 : v;
+                    return set ? (l | bit) : (l & ~bit);
+                });
+    }
+
+    public void clear() {
+        this.complete.clear();
+        this.levels.clear();
+    }
+}
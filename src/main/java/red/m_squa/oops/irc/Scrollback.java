@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+import red.m_squa.oops.iface.EventRecord;
+
+/**
+ * Keeps the most recent events seen on each channel, so that clients which
+ * start late can catch up. Each channel has a preallocated ring of a fixed
+ * number of events; in addition, the estimated size of all stored events
+ * across every server is bounded by a shared budget, and the oldest events
+ * held on any channel are evicted early to stay within it. Events not on
+ * any channel, such as private messages, are kept under the name "*".
+ */
+public class Scrollback implements EventSink {
+    public static final String SERVER = "*";
+
+    /**
+     * Space shared by the scrollbacks of every server. When it runs out,
+     * the oldest event held by any of them is given up first, so that a busy
+     * channel cannot keep quieter ones from storing anything.
+     */
+    public static class Budget {
+        private final AtomicLong remaining;
+        private final Set<Scrollback> members;
+
+        public Budget(long bytes) {
+            this.remaining = new AtomicLong(bytes);
+            this.members = ConcurrentHashMap.newKeySet();
+        }
+
+        /**
+         * Evict the oldest stored event, returning false if there is none.
+         */
+        private boolean evictOldest() {
+            Ring oldest;
+            long ts;
+
+            oldest = null;
+            ts = Long.MAX_VALUE;
+            for (Scrollback sb: this.members) {
+                for (Ring r: sb.rings.values()) {
+                    synchronized (r) {
+                        if (r.count > 0 &&
+                                r.slots[r.head].ts.longValue() < ts) {
+                            oldest = r;
+                            ts = r.slots[r.head].ts.longValue();
+                        }
+                    }
+                }
+            }
+
+            if (oldest == null) {
+                return false;
+            }
+
+            synchronized (oldest) {
+                if (oldest.count > 0) {
+                    this.remaining.addAndGet(oldest.evict());
+                }
+            }
+
+            return true;
+        }
+    }
+
+    private static class Ring {
+        private final EventRecord[] slots;
+        private final long[] sizes;
+        private int head;
+        private int count;
+        /* set once the ring is no longer reachable from the map */
+        private boolean dropped;
+
+        private Ring(int capacity) {
+            this.slots = new EventRecord[capacity];
+            this.sizes = new long[capacity];
+            this.head = 0;
+            this.count = 0;
+            this.dropped = false;
+        }
+
+        /* index of the i-th oldest event */
+        private int index(int i) {
+            return (this.head + i) % this.slots.length;
+        }
+
+        /**
+         * Remove the oldest event, returning its size.
+         */
+        private long evict() {
+            long size;
+
+            size = this.sizes[this.head];
+            this.slots[this.head] = null;
+            this.head = this.index(1);
+            this.count--;
+
+            return size;
+        }
+    }
+
+    private final UnaryOperator<String> normalizer;
+    private final Map<String, Ring> rings;
+    private final Budget budget;
+    private final int capacity;
+
+    /**
+     * Create a scrollback keeping up to capacity events per channel, taking
+     * the space for them from the shared budget of remaining bytes.
+     */
+    public Scrollback(UnaryOperator<String> normalizer, int capacity,
+            Budget budget) {
+        this.normalizer = normalizer;
+        this.rings = new ConcurrentHashMap<>();
+        this.budget = budget;
+        this.capacity = capacity;
+
+        budget.members.add(this);
+    }
+
+    /**
+     * Rough estimate of the memory used by an event record.
+     */
+    private static long estimate(EventRecord rec) {
+        long size;
+
+        size = 64 + 2 * (rec.type.length() + rec.src.length());
+        for (String s: rec.chans) {
+            size += 48 + 2 * s.length();
+        }
+
+        for (String s: rec.args) {
+            size += 48 + 2 * (s == null ? 0 : s.length());
+        }
+
+        return size;
+    }
+
+    public boolean isActive() {
+        return true;
+    }
+
+    public void accept(EventRecord rec) {
+        if (rec.chans.length == 0) {
+            this.store(SERVER, rec);
+            return;
+        }
+
+        for (String c: rec.chans) {
+            this.store(this.normalizer.apply(c), rec);
+        }
+    }
+
+    private void store(String key, EventRecord rec) {
+        Ring r;
+        long size;
+
+        size = estimate(rec);
+
+        /* make room within the budget by giving up the oldest events held
+         * anywhere first */
+        while (this.budget.remaining.addAndGet(-size) < 0) {
+            this.budget.remaining.addAndGet(size);
+            if (!this.budget.evictOldest()) {
+                return;
+            }
+        }
+
+        r = this.rings.computeIfAbsent(key, k -> new Ring(this.capacity));
+
+        synchronized (r) {
+            if (r.dropped) {
+                this.budget.remaining.addAndGet(size);
+                return;
+            }
+
+            if (r.count == r.slots.length) {
+                this.budget.remaining.addAndGet(r.evict());
+            }
+
+            r.slots[r.index(r.count)] = rec;
+            r.sizes[r.index(r.count)] = size;
+            r.count++;
+        }
+    }
+
+    /**
+     * Return up to max of the most recent events on a channel newer than
+     * the given timestamp, oldest first.
+     */
+    public List<EventRecord> get(String chan, long since, int max) {
+        List<EventRecord> ret;
+        Ring r;
+        int first;
+
+        ret = new ArrayList<>();
+        r = this.rings.get(chan.equals(SERVER) ?
+                SERVER : this.normalizer.apply(chan));
+        if (r == null || max <= 0) {
+            return ret;
+        }
+
+        synchronized (r) {
+            first = r.count;
+            while (first > 0 && ret.size() < max &&
+                    r.slots[r.index(first - 1)].ts.longValue() > since) {
+                first--;
+                ret.add(r.slots[r.index(first)]);
+            }
+        }
+
+        Collections.reverse(ret);
+        return ret;
+    }
+
+    /**
+     * Drop a channel's events, returning the space to the shared budget.
+     */
+    public void drop(String chan) {
+        this.remove(this.normalizer.apply(chan));
+    }
+
+    /**
+     * Drop the events of every channel, keeping those not on any channel.
+     */
+    public void dropChannels() {
+        for (String k: this.rings.keySet()) {
+            if (!k.equals(SERVER)) {
+                this.remove(k);
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Ring r;
+
+        r = this.rings.remove(key);
+        if (r == null) {
+            return;
+        }
+
+        synchronized (r) {
+            r.dropped = true;
+            while (r.count > 0) {
+                this.budget.remaining.addAndGet(r.evict());
+            }
+        }
+    }
+
+    /**
+     * Drop everything, returning the space to the shared budget.
+     */
+    public void close() {
+        this.budget.members.remove(this);
+
+        for (String k: this.rings.keySet()) {
+            this.remove(k);
+        }
+    }
+}
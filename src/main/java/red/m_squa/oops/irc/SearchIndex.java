@@ -0,0 +1,868 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+import org.freedesktop.dbus.types.UInt64;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import red.m_squa.oops.iface.EventRecord;
+
+/**
+ * On-disk store of channel messages with an inverted index, so that
+ * history can be searched without scanning it.
+ *
+ * Messages are stored per channel in buckets covering a fixed span of
+ * time. Each bucket is a file of messages plus, once the bucket is over,
+ * an index file mapping each token to the sorted offsets of the messages
+ * containing it. The index of the bucket currently being written is kept
+ * in memory, and rebuilt from the message file after a restart. Only the
+ * token directories of older buckets are loaded and cached, and their
+ * offsets are read from the index file as needed, so that searches do not
+ * hold up the writer.
+ *
+ * An index file starts with a magic number, format version and token
+ * count, followed by a directory of each token and the file position of
+ * its offsets, and then the offsets themselves as an int count followed by
+ * that many ints.
+ */
+public class SearchIndex implements EventSink {
+    private static final Logger log =
+        LoggerFactory.getLogger(SearchIndex.class);
+    private static final String MESSAGES = ".msgs";
+    private static final String INDEX = ".idx";
+    private static final int MAGIC = 0x4f4f5049;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 12;
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+    private static final int BATCH = 64;
+
+    /* number of older bucket directories kept in memory */
+    private static final int CACHE_SIZE = 128;
+
+    /* the offsets of the messages in a bucket containing a token */
+    @FunctionalInterface
+    private interface TokenIndex {
+        public int[] get(String token) throws IOException;
+    }
+
+    /* an index file, of which only the directory is held in memory */
+    private static class IndexFile implements TokenIndex {
+        private final File file;
+        private final Map<String, Long> positions;
+
+        private IndexFile(File file, Map<String, Long> positions) {
+            this.file = file;
+            this.positions = positions;
+        }
+
+        public int[] get(String token) throws IOException {
+            Long pos;
+            byte[] buf;
+            int[] ret;
+
+            pos = this.positions.get(token);
+            if (pos == null) {
+                return null;
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(this.file,
+                        "r")) {
+                raf.seek(pos);
+                buf = new byte[raf.readInt() * 4];
+                raf.readFully(buf);
+            }
+
+            ret = new int[buf.length / 4];
+            ByteBuffer.wrap(buf).asIntBuffer().get(ret);
+            return ret;
+        }
+    }
+
+    /* matches in the bucket being written, found under the lock */
+    private static class LiveHits {
+        private final File msgs;
+        private final int[] offsets;
+
+        private LiveHits(File msgs, int[] offsets) {
+            this.msgs = msgs;
+            this.offsets = offsets;
+        }
+    }
+
+    /* growable list of message offsets */
+    private static class Postings {
+        private int[] offsets = new int[4];
+        private int count = 0;
+
+        private void add(int off) {
+            /* a word repeated in one message is indexed once */
+            if (this.count > 0 && this.offsets[this.count - 1] == off) {
+                return;
+            }
+
+            if (this.count == this.offsets.length) {
+                this.offsets = Arrays.copyOf(this.offsets, this.count * 2);
+            }
+
+            this.offsets[this.count++] = off;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(this.offsets, this.count);
+        }
+    }
+
+    /* the bucket currently being written for a channel */
+    private static class LiveBucket {
+        private final long start;
+        private final File msgs;
+        private final DataOutputStream out;
+        private final Map<String, Postings> index;
+        private final int base;
+
+        private LiveBucket(long start, File msgs) throws IOException {
+            this.start = start;
+            this.msgs = msgs;
+            this.index = new HashMap<>();
+            this.base = (int) msgs.length();
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(msgs, true)));
+        }
+
+        /* offset of the next message */
+        private int offset() {
+            return this.base + this.out.size();
+        }
+    }
+
+    private final UnaryOperator<String> normalizer;
+    private final File dir;
+    private final long span;
+    private final BlockingQueue<EventRecord> queue;
+    private final AtomicLong dropped;
+    private final Map<String, LiveBucket> live;
+    private final Map<File, TokenIndex> cache;
+    private final Workers.Drain writer;
+    private volatile boolean running;
+
+    /**
+     * Create a search index storing messages in dir, in buckets of span
+     * milliseconds, and queueing at most queuesize messages.
+     */
+    public SearchIndex(String name, UnaryOperator<String> normalizer,
+            File dir, long span, int queuesize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create directory " + dir);
+        }
+
+        this.normalizer = normalizer;
+        this.dir = dir;
+        this.span = span;
+        this.queue = new ArrayBlockingQueue<>(queuesize);
+        this.dropped = new AtomicLong();
+        this.live = new HashMap<>();
+        this.cache = new LinkedHashMap<File, TokenIndex>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                    Map.Entry<File, TokenIndex> e) {
+                return this.size() > CACHE_SIZE;
+            }
+        };
+        this.running = false;
+
+        this.writer = new Workers.Drain("oops-search-" + name, this::drain);
+    }
+
+    /**
+     * Write from the shared workers rather than a thread of its own. Must
+     * be called before start().
+     */
+    public void useSharedWorkers() {
+        this.writer.share();
+    }
+
+    public void start() {
+        this.running = true;
+        this.writer.start();
+    }
+
+    public boolean isActive() {
+        return true;
+    }
+
+    /* only channel messages are indexed */
+    public void accept(EventRecord rec) {
+        switch (rec.type) {
+        case "PrivMsg":
+        case "Action":
+        case "Notice":
+            break;
+        default:
+            return;
+        }
+
+        if (rec.chans.length != 1 || rec.args.length != 1) {
+            return;
+        }
+
+        if (!this.running || !this.queue.offer(rec)) {
+            this.dropped.incrementAndGet();
+            return;
+        }
+
+        this.writer.kick();
+    }
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Split text into lower-case words, which are the units of search.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> ret;
+        int start, cp;
+
+        ret = new ArrayList<>();
+        start = -1;
+
+        for (int i = 0; i <= text.length(); i += (i < text.length()) ?
+                Character.charCount(text.codePointAt(i)) : 1) {
+            cp = (i < text.length()) ? text.codePointAt(i) : ' ';
+
+            if (Character.isLetterOrDigit(cp)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                ret.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+
+        return ret;
+    }
+
+    /* files */
+
+    private File channelDir(String chan) {
+        StringBuilder sb;
+
+        /* channel names may contain anything, so hex-encode them */
+        sb = new StringBuilder();
+        for (byte b: this.normalizer.apply(chan)
+                .getBytes(StandardCharsets.UTF_8)) {
+            sb.append(String.format("%02x", b));
+        }
+
+        return new File(this.dir, sb.toString());
+    }
+
+    private static long bucketStart(File f, String suffix) {
+        String n;
+
+        n = f.getName();
+        try {
+            return Long.parseLong(n.substring(0, n.length() -
+                        suffix.length()));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private static File sibling(File f, String suffix) {
+        String n;
+
+        n = f.getName();
+        return new File(f.getParentFile(),
+                n.substring(0, n.lastIndexOf('.')) + suffix);
+    }
+
+    /**
+     * Read messages from a message file, passing each to the consumer with
+     * its offset. Stops quietly at a torn record at the end of the file.
+     */
+    @FunctionalInterface
+    private interface MessageConsumer {
+        public void accept(int offset, long ts, String text);
+    }
+
+    /**
+     * Number of bytes writeUTF uses for a string, not counting its length.
+     */
+    private static int utfLength(String s) {
+        int ret;
+        char c;
+
+        ret = 0;
+        for (int i = 0; i < s.length(); i++) {
+            c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                ret += 1;
+            } else if (c <= 0x07ff) {
+                ret += 2;
+            } else {
+                ret += 3;
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Read every whole record of a message file, returning the offset just
+     * past the last one.
+     */
+    private static int scan(File msgs, MessageConsumer c)
+        throws IOException {
+        long ts;
+        int off, len;
+        String text;
+
+        off = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(msgs)))) {
+            while (true) {
+                ts = in.readLong();
+                len = 8;
+
+                /* type, source and text, as written by writeUTF */
+                text = null;
+                for (int i = 0; i < 3; i++) {
+                    text = in.readUTF();
+                    len += 2 + utfLength(text);
+                }
+
+                c.accept(off, ts, text);
+                off += len;
+            }
+        } catch (EOFException eofe) {
+            /* end of file, or a record cut short by a crash */
+        }
+
+        return off;
+    }
+
+    private static IndexFile writeIndex(File idx, Map<String, int[]> index)
+        throws IOException {
+        Map<String, int[]> sorted;
+        Map<String, Long> positions;
+        File tmp;
+        long pos;
+
+        sorted = new TreeMap<>(index);
+        positions = new HashMap<>(sorted.size() * 2);
+
+        /* the offsets follow the directory, so its size is worked out
+         * first */
+        pos = HEADER_SIZE;
+        for (String t: sorted.keySet()) {
+            pos += 2 + utfLength(t) + 8;
+        }
+
+        for (Map.Entry<String, int[]> e: sorted.entrySet()) {
+            positions.put(e.getKey(), pos);
+            pos += 4 + 4L * e.getValue().length;
+        }
+
+        tmp = new File(idx.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            for (String t: sorted.keySet()) {
+                out.writeUTF(t);
+                out.writeLong(positions.get(t));
+            }
+
+            for (int[] offs: sorted.values()) {
+                out.writeInt(offs.length);
+                for (int o: offs) {
+                    out.writeInt(o);
+                }
+            }
+        }
+
+        if (!tmp.renameTo(idx)) {
+            throw new IOException("could not rename " + tmp);
+        }
+
+        return new IndexFile(idx, positions);
+    }
+
+    /**
+     * Read the directory of an index file, returning null if it has an
+     * older layout.
+     */
+    private static IndexFile readIndex(File idx) throws IOException {
+        Map<String, Long> positions;
+        int n;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(idx)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+
+            n = in.readInt();
+            positions = new HashMap<>(n * 2);
+            for (int i = 0; i < n; i++) {
+                positions.put(in.readUTF(), in.readLong());
+            }
+        } catch (EOFException eofe) {
+            return null;
+        }
+
+        return new IndexFile(idx, positions);
+    }
+
+    /**
+     * Build the index of a message file from scratch.
+     */
+    private static Map<String, Postings> rebuild(File msgs)
+        throws IOException {
+        Map<String, Postings> ret;
+
+        ret = new HashMap<>();
+        rebuild(msgs, ret);
+        return ret;
+    }
+
+    /**
+     * Index a message file into the given map, returning the offset just
+     * past its last whole record.
+     */
+    private static int rebuild(File msgs, Map<String, Postings> index)
+        throws IOException {
+        return scan(msgs, (off, ts, text) -> {
+            for (String t: tokenize(text)) {
+                index.computeIfAbsent(t, k -> new Postings()).add(off);
+            }
+        });
+    }
+
+    /**
+     * Pick up a message file left over from a previous run, cutting off
+     * any record torn by a crash so that new records follow whole ones.
+     */
+    private static Map<String, Postings> recover(File msgs)
+        throws IOException {
+        Map<String, Postings> ret;
+        int end;
+
+        ret = new HashMap<>();
+        if (msgs.length() == 0) {
+            return ret;
+        }
+
+        end = rebuild(msgs, ret);
+        if (end < msgs.length()) {
+            log.warn("Discarding " + (msgs.length() - end) + " bytes of " +
+                    "incomplete message at the end of " + msgs);
+            try (RandomAccessFile raf = new RandomAccessFile(msgs, "rw")) {
+                raf.setLength(end);
+            }
+        }
+
+        return ret;
+    }
+
+    private static Map<String, int[]> freeze(Map<String, Postings> index) {
+        Map<String, int[]> ret;
+
+        ret = new HashMap<>(index.size() * 2);
+        for (Map.Entry<String, Postings> e: index.entrySet()) {
+            ret.put(e.getKey(), e.getValue().toArray());
+        }
+
+        return ret;
+    }
+
+    /* writing */
+
+    /**
+     * Finish a bucket, writing out its index.
+     */
+    private void seal(LiveBucket b) throws IOException {
+        IndexFile index;
+
+        b.out.close();
+        index = writeIndex(sibling(b.msgs, INDEX), freeze(b.index));
+        synchronized (this.cache) {
+            this.cache.put(b.msgs, index);
+        }
+    }
+
+    /**
+     * Find the bucket a message belongs in, sealing the previous bucket of
+     * its channel if that is over. Called with the lock held.
+     */
+    private LiveBucket bucketFor(String chan, long ts) throws IOException {
+        LiveBucket b;
+        Map<String, Postings> index;
+        File cdir, msgs, idx;
+        long start;
+        String key;
+
+        key = this.normalizer.apply(chan);
+        start = ts - (ts % this.span);
+
+        b = this.live.get(key);
+        if (b != null && b.start == start) {
+            return b;
+        }
+
+        if (b != null) {
+            this.live.remove(key);
+            this.seal(b);
+        }
+
+        cdir = this.channelDir(chan);
+        if (!cdir.isDirectory() && !cdir.mkdirs()) {
+            throw new IOException("could not create directory " + cdir);
+        }
+
+        /* carry on with a bucket left over from a previous run */
+        msgs = new File(cdir, String.format("%020d%s", start, MESSAGES));
+        idx = sibling(msgs, INDEX);
+        if (idx.exists() && !idx.delete()) {
+            throw new IOException("could not delete " + idx);
+        }
+
+        synchronized (this.cache) {
+            this.cache.remove(msgs);
+        }
+
+        index = recover(msgs);
+        b = new LiveBucket(start, msgs);
+        b.index.putAll(index);
+
+        this.live.put(key, b);
+        return b;
+    }
+
+    private synchronized void write(EventRecord rec) throws IOException {
+        LiveBucket b;
+        long ts;
+        int off;
+
+        ts = rec.ts.longValue();
+        b = this.bucketFor(rec.chans[0], ts);
+        off = b.offset();
+
+        b.out.writeLong(ts);
+        b.out.writeUTF(rec.type);
+        b.out.writeUTF(rec.src);
+        b.out.writeUTF(rec.args[0]);
+
+        for (String t: tokenize(rec.args[0])) {
+            b.index.computeIfAbsent(t, k -> new Postings()).add(off);
+        }
+    }
+
+    /* store a batch of queued messages, returning true if there are more */
+    private boolean drain() {
+        EventRecord rec;
+
+        for (int i = 0; i < BATCH && (rec = this.queue.poll()) != null; i++) {
+            try {
+                this.write(rec);
+            } catch (IOException ioe) {
+                log.error("Could not store message for search: " +
+                        ioe.getMessage());
+                this.dropped.incrementAndGet();
+            }
+        }
+
+        return !this.queue.isEmpty();
+    }
+
+    private void sealAll() {
+        /* the live buckets are sealed so that their indexes need not be
+         * rebuilt next time, unless messages arrive in them again */
+        synchronized (this) {
+            for (LiveBucket b: this.live.values()) {
+                try {
+                    this.seal(b);
+                } catch (IOException ioe) {
+                    log.error("Could not write search index: " +
+                            ioe.getMessage());
+                }
+            }
+
+            this.live.clear();
+        }
+    }
+
+    /* searching */
+
+    /* intersection of two sorted offset lists */
+    private static int[] intersect(int[] a, int[] b) {
+        int[] ret;
+        int i, j, n;
+
+        ret = new int[Math.min(a.length, b.length)];
+        i = j = n = 0;
+
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                ret[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(ret, n);
+    }
+
+    /**
+     * Offsets of the messages in a bucket containing all the words, or
+     * null if there are none.
+     */
+    private static int[] match(TokenIndex index, List<String> words)
+        throws IOException {
+        int[] ret, offs;
+
+        ret = null;
+        for (String w: words) {
+            offs = index.get(w);
+            if (offs == null) {
+                return null;
+            }
+
+            ret = (ret == null) ? offs : intersect(ret, offs);
+            if (ret.length == 0) {
+                return null;
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Match the words against the bucket of a channel being written, if
+     * there is one, making sure its messages are on disk to be read.
+     */
+    private synchronized LiveHits matchLive(String chan, List<String> words)
+        throws IOException {
+        LiveBucket b;
+
+        b = this.live.get(this.normalizer.apply(chan));
+        if (b == null) {
+            return null;
+        }
+
+        b.out.flush();
+        return new LiveHits(b.msgs, match(t -> {
+                    Postings p = b.index.get(t);
+                    return (p == null) ? null : p.toArray();
+                }, words));
+    }
+
+    /**
+     * Write out an index rebuilt by a search, unless its bucket has since
+     * been taken up again by the writer or sealed by it.
+     */
+    private synchronized TokenIndex reindex(String chan, File msgs,
+            Map<String, int[]> index) throws IOException {
+        LiveBucket b;
+        IndexFile ret;
+        File idx;
+
+        b = this.live.get(this.normalizer.apply(chan));
+        if (b != null && b.msgs.equals(msgs)) {
+            return index::get;
+        }
+
+        idx = sibling(msgs, INDEX);
+        if (idx.exists() && (ret = readIndex(idx)) != null) {
+            return ret;
+        }
+
+        return writeIndex(idx, index);
+    }
+
+    /**
+     * Load the index of a bucket which is not being written, rebuilding it
+     * if it is missing after a crash or has an older layout.
+     */
+    private TokenIndex load(String chan, File msgs) throws IOException {
+        TokenIndex ret;
+
+        try {
+            ret = readIndex(sibling(msgs, INDEX));
+        } catch (FileNotFoundException fnfe) {
+            ret = null;
+        }
+
+        if (ret == null) {
+            ret = this.reindex(chan, msgs, freeze(rebuild(msgs)));
+        }
+
+        synchronized (this.cache) {
+            this.cache.put(msgs, ret);
+        }
+
+        return ret;
+    }
+
+    private int[] lookup(String chan, File msgs, List<String> words)
+        throws IOException {
+        TokenIndex index;
+
+        synchronized (this.cache) {
+            index = this.cache.get(msgs);
+        }
+
+        if (index == null) {
+            index = this.load(chan, msgs);
+        }
+
+        try {
+            return match(index, words);
+        } catch (FileNotFoundException fnfe) {
+            /* the writer has carried on with the bucket since */
+            return match(this.load(chan, msgs), words);
+        }
+    }
+
+    /**
+     * Find messages on a channel containing every word of the query, with
+     * timestamps from..to inclusive, returning at most limit of them,
+     * newest first. Only the bucket being written is searched with the
+     * writer's lock held.
+     */
+    public List<EventRecord> search(String chan, String query, long from,
+            long to, int limit) throws IOException {
+        List<EventRecord> ret;
+        List<String> words;
+        LiveHits live;
+        File[] files;
+        int[] offs;
+        long start, ts;
+        String type, src, text;
+
+        ret = new ArrayList<>();
+        words = tokenize(query);
+        if (words.isEmpty() || limit <= 0) {
+            return ret;
+        }
+
+        files = this.channelDir(chan).listFiles(
+                (d, n) -> n.endsWith(MESSAGES));
+        if (files == null) {
+            return ret;
+        }
+
+        /* names are zero-padded, so this puts the newest bucket first */
+        Arrays.sort(files, (x, y) -> y.getName().compareTo(x.getName()));
+
+        live = this.matchLive(chan, words);
+
+        for (File f: files) {
+            start = bucketStart(f, MESSAGES);
+            if (start < 0 || start > to || start + this.span <= from) {
+                continue;
+            }
+
+            if (live != null && live.msgs.equals(f)) {
+                offs = live.offsets;
+            } else {
+                offs = this.lookup(chan, f, words);
+            }
+
+            if (offs == null) {
+                continue;
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                for (int i = offs.length - 1; i >= 0; i--) {
+                    raf.seek(offs[i]);
+                    ts = raf.readLong();
+                    type = raf.readUTF();
+                    src = raf.readUTF();
+                    text = raf.readUTF();
+
+                    if (ts < from || ts > to) {
+                        continue;
+                    }
+
+                    ret.add(new EventRecord(type, new UInt64(ts), src,
+                                new String[] { chan }, new String[] { text }));
+                    if (ret.size() >= limit) {
+                        return ret;
+                    }
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Stop accepting messages, and wait for the writer to store the ones
+     * already queued and write out its indexes.
+     */
+    public void close() {
+        this.running = false;
+
+        if (!this.writer.flush(SHUTDOWN_TIMEOUT)) {
+            log.warn("Search index writer did not finish within timeout, " +
+                    this.queue.size() + " messages discarded");
+            this.queue.clear();
+        }
+
+        this.sealAll();
+        this.writer.stop();
+    }
+}
@@ -19,7 +19,6 @@
 
 package red.m_squa.oops.irc;
 
-import org.freedesktop.dbus.connections.impl.DBusConnection;
 import org.freedesktop.dbus.types.UInt64;
 
 import org.pircbotx.Channel;
@@ -41,119 +40,284 @@ import org.pircbotx.hooks.events.TopicEvent;
 import org.pircbotx.snapshot.UserSnapshot;
 
 import red.m_squa.oops.DBusPath;
+import red.m_squa.oops.iface.EventRecord;
 import red.m_squa.oops.iface.Output;
 import red.m_squa.oops.irc.IrcDBusListener;
+import red.m_squa.oops.irc.SignalEmitter;
 
 public class ServerOutputListener extends IrcDBusListener
     implements Output {
-    private final String initmodes;
+    private static final String[] NONE = new String[0];
 
-    public ServerOutputListener(DBusConnection conn, DBusPath path,
-            String initmodes) {
-        super(conn, path);
-        this.initmodes = initmodes;
+    public ServerOutputListener(SignalEmitter emitter, DBusPath path) {
+        super(emitter, path);
+    }
+
+    /* once we are off a channel its scrollback is of no further use; this
+     * runs after the event itself has been recorded */
+    private static void leave(DBusPircBotX bot, String nick, String chan) {
+        Scrollback sb;
+
+        sb = bot.getScrollback();
+        if (sb != null && bot.isSelf(nick)) {
+            sb.drop(chan);
+        }
     }
 
     /* IRC event handlers */
 
     @Override
     public void onConnect(ConnectEvent ev) {
-        this.signal((path, timestamp) -> new Output.Connected(path, timestamp));
-
-        /* set initial user modes upon connection */
-        if (this.initmodes != null) {
-            ev.getBot().sendIRC().mode(ev.getBot().getNick(), this.initmodes);
-        }
+        this.signal("Connected",
+            (path, timestamp) -> new Output.Connected(path, timestamp),
+            timestamp -> new EventRecord("Connected", timestamp, "", NONE,
+                    NONE));
     }
 
     @Override
     public void onDisconnect(DisconnectEvent ev) {
-	this.signal((path, timestamp) -> new Output.Disconnected(path, timestamp));
+        DBusPircBotX bot;
+
+        bot = ev.getBot();
+        if (bot.getScrollback() != null) {
+            bot.getScrollback().dropChannels();
+        }
+
+        if (!this.wants("Disconnected")) {
+            return;
+        }
+
+        this.signal("Disconnected",
+            (path, timestamp) -> new Output.Disconnected(path, timestamp),
+            timestamp -> new EventRecord("Disconnected", timestamp, "", NONE,
+                    NONE));
     }
 
     @Override
     public void onMessage(MessageEvent ev) {
-        this.signal((path, timestamp) -> new Output.PrivMsg(path, timestamp,
-                ev.getUser().getHostmask(), ev.getChannel().getName(),
-                ev.getMessage()));
+        String src, dest, msg;
+
+        if (!this.wants("PrivMsg")) {
+            return;
+        }
+
+        src = ev.getUser().getHostmask();
+        dest = ev.getChannel().getName();
+        msg = ev.getMessage();
+
+        this.signal("PrivMsg", (path, timestamp) ->
+                new Output.PrivMsg(path, timestamp, src, dest, msg),
+            timestamp -> new EventRecord("PrivMsg", timestamp, src,
+                    new String[] { dest }, new String[] { msg }));
     }
 
     @Override
     public void onPrivateMessage(PrivateMessageEvent ev) {
-        this.signal((path, timestamp) -> new Output.PrivMsg(path, timestamp,
-                ev.getUser().getHostmask(), "",
-                ev.getMessage()));
+        String src, msg;
+
+        if (!this.wants("PrivMsg")) {
+            return;
+        }
+
+        src = ev.getUser().getHostmask();
+        msg = ev.getMessage();
+
+        this.signal("PrivMsg", (path, timestamp) ->
+                new Output.PrivMsg(path, timestamp, src, "", msg),
+            timestamp -> new EventRecord("PrivMsg", timestamp, src, NONE,
+                    new String[] { msg }));
     }
 
     @Override
     public void onAction(ActionEvent ev) {
-        this.signal((path, timestamp) -> new Output.Action(path, timestamp,
-                ev.getUser().getHostmask(), ev.getChannel().getName(),
-                ev.getMessage()));
+        String src, dest, msg;
+
+        if (!this.wants("Action")) {
+            return;
+        }
+
+        src = ev.getUser().getHostmask();
+        dest = ev.getChannel().getName();
+        msg = ev.getMessage();
+
+        this.signal("Action", (path, timestamp) ->
+                new Output.Action(path, timestamp, src, dest, msg),
+            timestamp -> new EventRecord("Action", timestamp, src,
+                    new String[] { dest }, new String[] { msg }));
     }
 
     @Override
     public void onNotice(NoticeEvent ev) {
-        this.signal((path, timestamp) -> new Output.Notice(path, timestamp,
-                ev.getUser().getHostmask(), ev.getChannel().getName(),
-                ev.getMessage()));
+        String src, dest, msg;
+
+        if (!this.wants("Notice")) {
+            return;
+        }
+
+        src = ev.getUser().getHostmask();
+        dest = ev.getChannel().getName();
+        msg = ev.getMessage();
+
+        this.signal("Notice", (path, timestamp) ->
+                new Output.Notice(path, timestamp, src, dest, msg),
+            timestamp -> new EventRecord("Notice", timestamp, src,
+                    new String[] { dest }, new String[] { msg }));
     }
 
     @Override
     public void onJoin(JoinEvent ev) {
-        this.signal((path, timestamp) -> new Output.Join(path, timestamp,
-                ev.getUser().getHostmask(), ev.getChannel().getName()));
+        String user, chan;
+
+        if (!this.wants("Join")) {
+            return;
+        }
+
+        user = ev.getUser().getHostmask();
+        chan = ev.getChannel().getName();
+
+        this.signal("Join", (path, timestamp) ->
+                new Output.Join(path, timestamp, user, chan),
+            timestamp -> new EventRecord("Join", timestamp, user,
+                    new String[] { chan }, NONE));
     }
 
     @Override
     public void onPart(PartEvent ev) {
-        this.signal((path, timestamp) -> new Output.Part(path, timestamp,
-                ev.getUser().getHostmask(), ev.getChannel().getName(),
-                ev.getReason()));
+        String user, chan, reason;
+
+        if (!this.wants("Part")) {
+            return;
+        }
+
+        user = ev.getUser().getHostmask();
+        chan = ev.getChannel().getName();
+        reason = ev.getReason();
+
+        this.signal("Part", (path, timestamp) ->
+                new Output.Part(path, timestamp, user, chan, reason),
+            timestamp -> new EventRecord("Part", timestamp, user,
+                    new String[] { chan }, new String[] { reason }));
+        leave(ev.getBot(), ev.getUser().getNick(), chan);
     }
 
     @Override
     public void onQuit(QuitEvent ev) {
-        this.signal((path, timestamp) -> new Output.Quit(path, timestamp,
-                ev.getUser().getHostmask(), ev.getReason(),
-                ev.getUserChannelDaoSnapshot().getChannels(ev.getUser())
-                .stream().map(c -> c.getName())
-                .toArray(String[]::new)));
+        String user, reason;
+        String[] chans;
+
+        if (!this.wants("Quit")) {
+            return;
+        }
+
+        user = ev.getUser().getHostmask();
+        reason = ev.getReason();
+        chans = ev.getUserChannelDaoSnapshot().getChannels(ev.getUser())
+            .stream().map(c -> c.getName())
+            .toArray(String[]::new);
+
+        this.signal("Quit", (path, timestamp) ->
+                new Output.Quit(path, timestamp, user, reason, chans),
+            timestamp -> new EventRecord("Quit", timestamp, user, chans,
+                    new String[] { reason }));
     }
 
     @Override
     public void onKick(KickEvent ev) throws Exception {
-        this.signal((path, timestamp) -> new Output.Kick(path, timestamp,
-                ev.getUser().getHostmask(), ev.getChannel().getName(),
-                ev.getRecipient().getHostmask(), ev.getReason()));
+        String src, chan, tgt, reason;
+
+        if (!this.wants("Kick")) {
+            return;
+        }
+
+        src = ev.getUser().getHostmask();
+        chan = ev.getChannel().getName();
+        tgt = ev.getRecipient().getHostmask();
+        reason = ev.getReason();
+
+        this.signal("Kick", (path, timestamp) ->
+                new Output.Kick(path, timestamp, src, chan, tgt, reason),
+            timestamp -> new EventRecord("Kick", timestamp, src,
+                    new String[] { chan }, new String[] { tgt, reason }));
+        leave(ev.getBot(), ev.getRecipient().getNick(), chan);
     }
 
     @Override
     public void onInvite(InviteEvent ev) throws Exception {
-        this.signal((path, timestamp) -> new Output.Invite(path, timestamp,
-                ev.getUser().getHostmask(), ev.getChannel()));
+        String src, chan;
+
+        if (!this.wants("Invite")) {
+            return;
+        }
+
+        src = ev.getUser().getHostmask();
+        chan = ev.getChannel();
+
+        this.signal("Invite", (path, timestamp) ->
+                new Output.Invite(path, timestamp, src, chan),
+            timestamp -> new EventRecord("Invite", timestamp, src,
+                    new String[] { chan }, NONE));
     }
 
     @Override
     public void onNickChange(NickChangeEvent ev) {
-        this.signal((path, timestamp) -> new Output.Nick(path, timestamp,
-                ev.getOldNick(), ev.getNewNick(),
-                ev.getBot().getUserChannelDao().getChannels(ev.getUser())
-                .stream().map(c -> c.getName())
-                .toArray(String[]::new)));
+        String oldnick, newnick;
+        String[] chans;
+
+        if (!this.wants("Nick")) {
+            return;
+        }
+
+        oldnick = ev.getOldNick();
+        newnick = ev.getNewNick();
+        chans = ev.getBot().getUserChannelDao().getChannels(ev.getUser())
+            .stream().map(c -> c.getName())
+            .toArray(String[]::new);
+
+        this.signal("Nick", (path, timestamp) ->
+                new Output.Nick(path, timestamp, oldnick, newnick, chans),
+            timestamp -> new EventRecord("Nick", timestamp, oldnick, chans,
+                    new String[] { newnick }));
     }
 
     @Override
     public void onMode(ModeEvent ev) {
-        this.signal((path, timestamp) -> new Output.Mode(path, timestamp,
-                ev.getUser().getHostmask(), ev.getChannel().getName(),
-                ev.getMode()));
+        String src, chan, mode;
+
+        if (!this.wants("Mode")) {
+            return;
+        }
+
+        src = ev.getUser().getHostmask();
+        chan = ev.getChannel().getName();
+        mode = ev.getMode();
+
+        this.signal("Mode", (path, timestamp) ->
+                new Output.Mode(path, timestamp, src, chan, mode),
+            timestamp -> new EventRecord("Mode", timestamp, src,
+                    new String[] { chan }, new String[] { mode }));
     }
 
     @Override
     public void onTopic(TopicEvent ev) {
-        this.signal((path, timestamp) -> new Output.Topic(path, timestamp,
-                ev.getUser().getHostmask(), ev.getChannel().getName(),
-                ev.getTopic(), ev.getOldTopic(), new UInt64(ev.getDate())));
+        String src, chan, newtopic, oldtopic;
+        long olddate;
+
+        if (!this.wants("Topic")) {
+            return;
+        }
+
+        src = ev.getUser().getHostmask();
+        chan = ev.getChannel().getName();
+        newtopic = ev.getTopic();
+        oldtopic = ev.getOldTopic();
+        olddate = ev.getDate();
+
+        this.signal("Topic", (path, timestamp) ->
+                new Output.Topic(path, timestamp,
+                        src, chan, newtopic, oldtopic, new UInt64(olddate)),
+            timestamp -> new EventRecord("Topic", timestamp, src,
+                    new String[] { chan },
+                    new String[] { newtopic, oldtopic,
+                        Long.toString(olddate) }));
     }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Performance counters of a server, updated from the IRC, signal and DBus
+ * threads without contending with each other.
+ */
+public class ServerStats {
+    public enum Counter {
+        EVENTS_RECEIVED("events-received"),
+        SIGNALS_EMITTED("signals-emitted"),
+        SIGNAL_FAILURES("signal-failures"),
+        INPUT_CALLS("input-calls"),
+        INPUT_FAILURES("input-failures"),
+        CONNECTS("connects"),
+        DISCONNECTS("disconnects");
+
+        private final String key;
+
+        private Counter(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+    };
+
+    private final LongAdder[] counters;
+    private final LatencyHistogram signals;
+    private final LatencyHistogram inputs;
+
+    public ServerStats() {
+        this.counters = new LongAdder[Counter.values().length];
+        for (int i = 0; i < this.counters.length; i++) {
+            this.counters[i] = new LongAdder();
+        }
+
+        this.signals = new LatencyHistogram();
+        this.inputs = new LatencyHistogram();
+    }
+
+    public void count(Counter c) {
+        this.counters[c.ordinal()].increment();
+    }
+
+    /**
+     * Record a signal handed to the bus, given the System.nanoTime() at
+     * which its event started being handled.
+     */
+    public void signalSent(long start, boolean failed) {
+        this.count(failed ? Counter.SIGNAL_FAILURES : Counter.SIGNALS_EMITTED);
+        this.signals.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Record a finished call to an Input method, given the System.nanoTime()
+     * at which it started.
+     */
+    public void inputDone(long start, boolean failed) {
+        this.count(Counter.INPUT_CALLS);
+        if (failed) {
+            this.count(Counter.INPUT_FAILURES);
+        }
+
+        this.inputs.record(System.nanoTime() - start);
+    }
+
+    public void reset() {
+        for (LongAdder a: this.counters) {
+            a.reset();
+        }
+
+        this.signals.reset();
+        this.inputs.reset();
+    }
+
+    public Snapshot snapshot() {
+        Snapshot ret;
+
+        ret = new Snapshot();
+        for (Counter c: Counter.values()) {
+            ret.values.put(c.getKey(), this.counters[c.ordinal()].sum());
+        }
+
+        ret.signals.merge(this.signals.snapshot());
+        ret.inputs.merge(this.inputs.snapshot());
+        return ret;
+    }
+
+    /**
+     * Point-in-time copy of the counters, along with any gauges added by
+     * the caller, which can be summed across servers.
+     */
+    public static class Snapshot {
+        private final Map<String, Long> values;
+        private final LatencyHistogram.Snapshot signals;
+        private final LatencyHistogram.Snapshot inputs;
+
+        public Snapshot() {
+            this.values = new LinkedHashMap<>();
+            this.signals = new LatencyHistogram.Snapshot();
+            this.inputs = new LatencyHistogram.Snapshot();
+        }
+
+        public void put(String key, long value) {
+            this.values.put(key, value);
+        }
+
+        public void merge(Snapshot other) {
+            for (Map.Entry<String, Long> e: other.values.entrySet()) {
+                this.values.merge(e.getKey(), e.getValue(), Long::sum);
+            }
+
+            this.signals.merge(other.signals);
+            this.inputs.merge(other.inputs);
+        }
+
+        public Map<String, Long> toMap() {
+            Map<String, Long> ret;
+
+            ret = new LinkedHashMap<>(this.values);
+            this.signals.describe("signal-latency", ret);
+            this.inputs.describe("input-latency", ret);
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import org.pircbotx.hooks.ListenerAdapter;
+import org.pircbotx.hooks.events.ConnectEvent;
+import org.pircbotx.hooks.events.DisconnectEvent;
+import org.pircbotx.hooks.events.JoinEvent;
+import org.pircbotx.hooks.events.ServerResponseEvent;
+
+/**
+ * Applies settings from the server definition which have changed since the
+ * bot was created, whenever the connection is (re-)established.
+ */
+public class SettingsListener extends ListenerAdapter {
+    private static final int RPL_ENDOFMOTD = 376;
+    private static final int ERR_NOMOTD = 422;
+
+    @Override
+    public void onConnect(ConnectEvent ev) {
+        DBusPircBotX bot;
+
+        bot = ev.getBot();
+        bot.reconcileSettings();
+    }
+
+    @Override
+    public void onJoin(JoinEvent ev) {
+        DBusPircBotX bot;
+        String nick;
+
+        bot = ev.getBot();
+        nick = bot.normalize(ev.getUser().getNick());
+        if (nick.equals(bot.normalize(bot.getNick()))) {
+            bot.checkAutojoin(ev.getChannel());
+        }
+    }
+
+    /* PircBotX has sent its autojoins by the time this event is seen, so
+     * queued messages go out after them */
+    @Override
+    public void onServerResponse(ServerResponseEvent ev) {
+        DBusPircBotX bot;
+
+        if (ev.getCode() == RPL_ENDOFMOTD || ev.getCode() == ERR_NOMOTD) {
+            bot = ev.getBot();
+            bot.connectionReady();
+        }
+    }
+
+    @Override
+    public void onDisconnect(DisconnectEvent ev) {
+        DBusPircBotX bot;
+
+        bot = ev.getBot();
+        bot.connectionLost();
+    }
+}
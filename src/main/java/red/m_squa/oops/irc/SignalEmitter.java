@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.freedesktop.dbus.connections.impl.DBusConnection;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.messages.DBusSignal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import red.m_squa.oops.jfr.SignalSendEvent;
+
+/**
+ * Bounded queue of outgoing DBus signals with a sender thread of its own, so
+ * that a stall on the bus does not hold up reading from the IRC socket.
+ * Servers on the selector transport send from the shared workers instead.
+ * Signals are queued unbuilt where possible, so that marshalling them is
+ * also done by the sender.
+ */
+public class SignalEmitter {
+    private static final Logger log =
+        LoggerFactory.getLogger(SignalEmitter.class);
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+    private static final int BATCH = 64;
+
+    public enum OverflowPolicy {
+        BLOCK,
+        DROP_OLDEST,
+        DROP_NEWEST;
+
+        public static OverflowPolicy fromString(String str) {
+            switch (str) {
+            case "block":
+                return BLOCK;
+            case "drop-oldest":
+                return DROP_OLDEST;
+            case "drop-newest":
+                return DROP_NEWEST;
+            default:
+                throw new IllegalArgumentException(
+                    "Unknown overflow policy: " + str);
+            }
+        }
+    };
+
+    /**
+     * Builds a signal when it is sent. Anything it reads from the
+     * event must be copied out before queueing, as the event may have moved
+     * on by the time it runs.
+     */
+    @FunctionalInterface
+    public interface Builder {
+        public DBusSignal build() throws DBusException;
+    }
+
+    /* a queued signal, and when its event started being handled */
+    private static class Pending {
+        private final Builder builder;
+        private final long start;
+
+        private Pending(Builder builder, long start) {
+            this.builder = builder;
+            this.start = start;
+        }
+    }
+
+    private final DBusConnection conn;
+    private final String name;
+    private final BlockingQueue<Pending> queue;
+    private final OverflowPolicy policy;
+    private final AtomicLong dropped;
+    private final ServerStats stats;
+    private final Workers.Drain sender;
+    private volatile boolean running;
+
+    public SignalEmitter(DBusConnection conn, String name, int capacity,
+            OverflowPolicy policy, ServerStats stats) {
+        this.conn = conn;
+        this.name = name;
+        this.policy = policy;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.dropped = new AtomicLong();
+        this.stats = stats;
+        this.running = false;
+
+        this.sender = new Workers.Drain("oops-signals-" + name, this::drain);
+    }
+
+    /**
+     * Send from the shared workers rather than a thread of its own. Must be
+     * called before start().
+     */
+    public void useSharedWorkers() {
+        this.sender.share();
+    }
+
+    public void start() {
+        this.running = true;
+        this.sender.start();
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Size of a signal as marshalled for the bus.
+     */
+    public static long wireSize(DBusSignal sig) {
+        byte[][] data;
+        long ret;
+
+        data = sig.getWireData();
+        ret = 0;
+
+        if (data != null) {
+            for (byte[] b: data) {
+                ret += (b == null) ? 0 : b.length;
+            }
+        }
+
+        return ret;
+    }
+
+    public ServerStats getStats() {
+        return this.stats;
+    }
+
+    public void emit(DBusSignal sig) {
+        this.emit(() -> sig, System.nanoTime());
+    }
+
+    /**
+     * Queue a signal to be built and sent, applying the overflow policy if
+     * the queue is full. The System.nanoTime() at which handling of its
+     * event started is used to measure signal latency.
+     */
+    public void emit(Builder builder, long start) {
+        Pending p;
+
+        if (!this.running) {
+            this.dropped.incrementAndGet();
+            return;
+        }
+
+        p = new Pending(builder, start);
+
+        switch (this.policy) {
+        case BLOCK:
+            try {
+                this.queue.put(p);
+            } catch (InterruptedException ie) {
+                this.dropped.incrementAndGet();
+                Thread.currentThread().interrupt();
+                return;
+            }
+            break;
+        case DROP_NEWEST:
+            if (!this.queue.offer(p)) {
+                this.dropped.incrementAndGet();
+                return;
+            }
+            break;
+        case DROP_OLDEST:
+            while (!this.queue.offer(p)) {
+                if (this.queue.poll() != null) {
+                    this.dropped.incrementAndGet();
+                }
+            }
+            break;
+        }
+
+        this.sender.kick();
+    }
+
+    /**
+     * Queue a signal only if there is room, whatever the overflow policy,
+     * for callers which must never wait. Returns false if there was no
+     * room.
+     */
+    public boolean offer(DBusSignal sig) {
+        if (!this.running) {
+            this.dropped.incrementAndGet();
+            return true;
+        } else if (!this.queue.offer(new Pending(() -> sig,
+                        System.nanoTime()))) {
+            return false;
+        }
+
+        this.sender.kick();
+        return true;
+    }
+
+    public int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Stop accepting signals, and send any which are still queued.
+     */
+    public void shutdown() {
+        this.running = false;
+
+        if (!this.sender.flush(SHUTDOWN_TIMEOUT)) {
+            log.warn("Signal sender did not finish within timeout, " +
+                    this.queue.size() + " signals discarded");
+            this.queue.clear();
+        }
+
+        this.sender.stop();
+    }
+
+    /**
+     * Send a signal on the calling thread, bypassing the queue, for bulk
+     * senders which should be held up by the bus rather than crowd out live
+     * events. Returns false if the emitter has stopped or sending failed.
+     */
+    public boolean send(DBusSignal sig) {
+        if (!this.running) {
+            return false;
+        }
+
+        try {
+            this.conn.sendMessage(sig);
+        } catch (RuntimeException re) {
+            log.error("Could not send DBus signal", re);
+            return false;
+        }
+
+        return true;
+    }
+
+    /* send a batch of queued signals, returning true if there are more */
+    private boolean drain() {
+        SignalSendEvent ev;
+        DBusSignal sig;
+        Pending p;
+        long queued, begin, built;
+        boolean failed;
+
+        for (int i = 0; i < BATCH && (p = this.queue.poll()) != null; i++) {
+            queued = System.nanoTime() - p.start;
+            ev = new SignalSendEvent();
+            ev.begin();
+
+            sig = null;
+            begin = System.nanoTime();
+            built = begin;
+            try {
+                sig = p.builder.build();
+                built = System.nanoTime();
+                this.conn.sendMessage(sig);
+                failed = false;
+            } catch (DBusException dbe) {
+                log.error("Could not create DBus signal", dbe);
+                failed = true;
+            } catch (RuntimeException re) {
+                log.error("Could not send DBus signal", re);
+                failed = true;
+            }
+
+            ev.end();
+            this.stats.signalSent(p.start, failed);
+
+            if (ev.shouldCommit()) {
+                ev.server = this.name;
+                ev.member = (sig == null) ? null : sig.getName();
+                ev.payloadSize = (sig == null) ? 0 : wireSize(sig);
+                ev.queueTime = queued;
+                ev.constructionTime = built - begin;
+                ev.failed = failed;
+                ev.commit();
+            }
+        }
+
+        return !this.queue.isEmpty();
+    }
+}
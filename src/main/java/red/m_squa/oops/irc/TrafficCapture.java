@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recording of the raw lines received from a server, for replaying later.
+ * Lines are queued by the input thread and written by a thread of its own,
+ * or the shared workers for servers on the selector transport, so capturing never holds up event processing.
+ *
+ * Each capture is a gzip stream holding a magic number, format version and
+ * the wall clock time in milliseconds at which it was started, followed by
+ * one record per line: the microseconds since the previous line and the
+ * byte length of the line as variable-length integers, then the line in
+ * UTF-8. A capture cut short reads as ending at its last whole record.
+ */
+public class TrafficCapture {
+    private static final Logger log =
+        LoggerFactory.getLogger(TrafficCapture.class);
+    private static final int MAGIC = 0x4f4f5043;
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".capture";
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+    private static final int BATCH = 64;
+
+    /* far longer than any line a server may send */
+    private static final int MAX_LINE = 65536;
+
+    private static class Line {
+        private final long nanos;
+        private final String text;
+
+        private Line(long nanos, String text) {
+            this.nanos = nanos;
+            this.text = text;
+        }
+    }
+
+    private final File file;
+    private final BlockingQueue<Line> queue;
+    private final AtomicLong dropped;
+    private final Workers.Drain writer;
+    private final long base;
+    private DataOutputStream out;
+    /* System.nanoTime() of the last line written */
+    private long last;
+    private volatile boolean running;
+
+    /**
+     * Start a new capture file in dir, named after the current time, and
+     * queueing at most queuesize lines.
+     */
+    public TrafficCapture(String name, File dir, int queuesize)
+        throws IOException {
+        long now;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create directory " + dir);
+        }
+
+        now = System.currentTimeMillis();
+        this.base = System.nanoTime();
+        this.last = this.base;
+        this.file = new File(dir, now + SUFFIX);
+        this.queue = new ArrayBlockingQueue<>(queuesize);
+        this.dropped = new AtomicLong();
+        this.running = false;
+
+        this.out = new DataOutputStream(new GZIPOutputStream(
+                    new FileOutputStream(this.file), 8192, true));
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(VERSION);
+        this.out.writeLong(now);
+
+        this.writer = new Workers.Drain("oops-capture-" + name, this::drain);
+    }
+
+    /**
+     * Write from the shared workers rather than a thread of its own. Must
+     * be called before start().
+     */
+    public void useSharedWorkers() {
+        this.writer.share();
+    }
+
+    public void start() {
+        this.running = true;
+        this.writer.start();
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /* never blocks the input thread; lines which do not fit are lost */
+    public void record(String line) {
+        if (!this.running ||
+                !this.queue.offer(new Line(System.nanoTime(), line))) {
+            this.dropped.incrementAndGet();
+            return;
+        }
+
+        this.writer.kick();
+    }
+
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    private static void putVarLong(DataOutputStream out, long v)
+        throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.writeByte((int) (v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+
+        out.writeByte((int) v);
+    }
+
+    private static long getVarLong(DataInputStream in) throws IOException {
+        long v;
+        int b, shift;
+
+        v = 0;
+        shift = 0;
+        do {
+            if (shift > 63) {
+                throw new IOException("malformed capture record");
+            }
+
+            b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return v;
+    }
+
+    /* write a batch of queued lines, returning true if there are more */
+    private boolean drain() {
+        Line line;
+        byte[] b;
+
+        for (int i = 0; i < BATCH && (line = this.queue.poll()) != null;
+                i++) {
+            if (this.out == null) {
+                /* left over from before a write error */
+                this.dropped.incrementAndGet();
+                continue;
+            }
+
+            b = line.text.getBytes(StandardCharsets.UTF_8);
+
+            try {
+                putVarLong(this.out,
+                        Math.max(0, (line.nanos - this.last) / 1000));
+                putVarLong(this.out, b.length);
+                this.out.write(b);
+                this.last = line.nanos;
+
+                /* lines arrive in bursts, so flush once each burst is
+                 * written rather than for every line */
+                if (this.queue.isEmpty()) {
+                    this.out.flush();
+                }
+            } catch (IOException ioe) {
+                log.error("Could not write traffic capture, stopping: " +
+                        ioe.getMessage());
+                this.dropped.incrementAndGet();
+                this.running = false;
+                this.closeFile();
+            }
+        }
+
+        return !this.queue.isEmpty();
+    }
+
+    private void closeFile() {
+        if (this.out == null) {
+            return;
+        }
+
+        try {
+            this.out.close();
+        } catch (IOException ioe) {
+            log.error("Could not close traffic capture: " + ioe.getMessage());
+        }
+
+        this.out = null;
+    }
+
+    /**
+     * Stop capturing, and wait for the writer to write out the lines
+     * already queued.
+     */
+    public void close() {
+        this.running = false;
+
+        if (!this.writer.flush(SHUTDOWN_TIMEOUT)) {
+            log.warn("Traffic capture writer did not finish within " +
+                    "timeout, " + this.queue.size() + " lines discarded");
+            this.dropped.addAndGet(this.queue.size());
+            this.queue.clear();
+        }
+
+        this.closeFile();
+        this.writer.stop();
+
+        if (this.dropped.get() > 0) {
+            log.warn("Traffic capture " + this.file + " is missing " +
+                    this.dropped.get() + " lines");
+        }
+    }
+
+    /**
+     * Sequential reader of a capture file.
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long start;
+        private long offset;
+        private String text;
+
+        public Reader(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(
+                        new GZIPInputStream(new FileInputStream(file))));
+
+            try {
+                if (this.in.readInt() != MAGIC ||
+                        this.in.readInt() != VERSION) {
+                    throw new IOException("not a traffic capture: " + file);
+                }
+
+                this.start = this.in.readLong();
+            } catch (IOException ioe) {
+                this.in.close();
+                throw ioe;
+            }
+
+            this.offset = 0;
+        }
+
+        /* wall clock time at which the capture was started */
+        public long getStart() {
+            return this.start;
+        }
+
+        /**
+         * Move to the next line, returning false at the end of the
+         * capture.
+         */
+        public boolean next() throws IOException {
+            byte[] b;
+            long delta, len;
+
+            try {
+                delta = getVarLong(this.in);
+                len = getVarLong(this.in);
+                if (len > MAX_LINE) {
+                    throw new IOException("malformed capture record");
+                }
+
+                b = new byte[(int) len];
+                this.in.readFully(b);
+            } catch (EOFException eof) {
+                return false;
+            }
+
+            this.offset += delta;
+            this.text = new String(b, StandardCharsets.UTF_8);
+            return true;
+        }
+
+        /* microseconds between the start of the capture and this line */
+        public long getOffset() {
+            return this.offset;
+        }
+
+        public String getLine() {
+            return this.text;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.irc;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Threads shared by the background work of servers on the selector
+ * transport, so that the number of threads depends on the number of
+ * processors rather than the number of servers. Each component drains its own
+ * queue through a Drain, which runs one batch at a time either on a thread of
+ * its own or, for servers whose writes never block, on the shared pool.
+ */
+public final class Workers {
+    private static final Logger log = LoggerFactory.getLogger(Workers.class);
+    private static final int THREADS =
+        Integer.getInteger("red.m_squa.oops.workers",
+                Runtime.getRuntime().availableProcessors());
+    private static final int REPLAY_THREADS =
+        Integer.getInteger("red.m_squa.oops.replayThreads", 2);
+
+    /* short tasks, which may wait briefly on the bus or disk */
+    static final ScheduledExecutorService pool =
+        Executors.newScheduledThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "oops-worker");
+            t.setDaemon(true);
+            return t;
+        });
+
+    /* journal replays, which may run for as long as the bus takes them */
+    static final ExecutorService replays =
+        Executors.newFixedThreadPool(REPLAY_THREADS, r -> {
+            Thread t = new Thread(r, "oops-replay");
+            t.setDaemon(true);
+            return t;
+        });
+
+    private Workers() {
+    }
+
+    /**
+     * Runs a task each time it is kicked, never more than one run at a time,
+     * and again if it was kicked while running. The task should handle a
+     * bounded batch of work, and return true if there is more to do straight
+     * away.
+     */
+    public static final class Drain {
+        private final String thread;
+        private final BooleanSupplier task;
+        private final AtomicInteger requests;
+        private volatile ScheduledExecutorService executor;
+        private boolean shared;
+
+        /**
+         * Create a drain which runs on a thread of its own with the given
+         * name, unless share() is called before start().
+         */
+        public Drain(String thread, BooleanSupplier task) {
+            this.thread = thread;
+            this.task = task;
+            this.requests = new AtomicInteger();
+            this.shared = false;
+        }
+
+        /* run on the shared pool rather than a thread of its own */
+        public void share() {
+            this.shared = true;
+        }
+
+        public boolean isShared() {
+            return this.shared;
+        }
+
+        public void start() {
+            if (this.shared) {
+                this.executor = pool;
+            } else {
+                this.executor = Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            Thread t = new Thread(r, this.thread);
+                            t.setDaemon(true);
+                            return t;
+                        });
+            }
+
+            /* for anything queued before starting */
+            this.kick();
+        }
+
+        /**
+         * Stop the thread of a drain which has its own, once it has finished
+         * the current run. Later kicks are ignored.
+         */
+        public void stop() {
+            ScheduledExecutorService e;
+
+            e = this.executor;
+            if (e != null && e != pool) {
+                e.shutdown();
+            }
+        }
+
+        public void kick() {
+            if (this.executor == null) {
+                /* not started yet */
+                return;
+            }
+
+            if (this.requests.getAndIncrement() == 0) {
+                this.submit();
+            }
+        }
+
+        /* run something else on the same executor after the given number of
+         * milliseconds */
+        public void schedule(Runnable r, long delay) {
+            try {
+                this.executor.schedule(r, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                /* stopped */
+            }
+        }
+
+        /* kick every interval milliseconds until cancelled or stopped */
+        public ScheduledFuture<?> kickEvery(long interval) {
+            return this.executor.scheduleWithFixedDelay(this::kick,
+                    interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Run the task on the calling thread until it has nothing more to do,
+         * or the timeout in milliseconds passes. Returns false on timeout.
+         */
+        public boolean flush(long timeout) {
+            long deadline;
+
+            deadline = System.currentTimeMillis() + timeout;
+            while (this.runTask()) {
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private synchronized boolean runTask() {
+            try {
+                return this.task.getAsBoolean();
+            } catch (RuntimeException re) {
+                log.error("Exception in background task " + this.thread, re);
+                return false;
+            }
+        }
+
+        private void submit() {
+            try {
+                this.executor.execute(this::run);
+            } catch (RejectedExecutionException ree) {
+                /* stopped */
+            }
+        }
+
+        private void run() {
+            int seen;
+
+            seen = this.requests.get();
+
+            /* give other servers a turn before carrying on */
+            if (this.runTask() || this.requests.addAndGet(-seen) > 0) {
+                this.submit();
+            }
+        }
+    }
+}
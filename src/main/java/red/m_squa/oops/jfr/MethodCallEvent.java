@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A DBus method call on a server object.
+ */
+@Name("red.m_squa.oops.MethodCall")
+@Label("Server Method Call")
+@Category({"Oops", "DBus to IRC"})
+@Description("A call to a method of the Input or Server interface")
+@StackTrace(false)
+public class MethodCallEvent extends Event {
+    @Label("Server")
+    public String server;
+
+    @Label("Interface")
+    public String iface;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Target")
+    @Description("Channel or destination the call applies to")
+    public String target;
+
+    @Label("Payload Length")
+    @Description("Characters of message text passed in")
+    public long payloadLength;
+
+    @Label("Error")
+    public String error;
+}
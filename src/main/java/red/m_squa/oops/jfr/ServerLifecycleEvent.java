@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A server being loaded into or removed from the manager.
+ */
+@Name("red.m_squa.oops.ServerLifecycle")
+@Label("Server Load or Removal")
+@Category({"Oops", "Manager"})
+@StackTrace(false)
+public class ServerLifecycleEvent extends Event {
+    @Label("Server")
+    public String server;
+
+    @Label("Action")
+    @Description("Either load or remove")
+    public String action;
+
+    @Label("Crashed")
+    @Description("Whether a removed server stopped because of an error")
+    public boolean crashed;
+
+    @Label("Error")
+    public String error;
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * An IRC event turned into a DBus signal and queued for sending.
+ */
+@Name("red.m_squa.oops.Signal")
+@Label("Signal Generated")
+@Category({"Oops", "IRC to DBus"})
+@Description("Handling of an IRC event by a listener, until its signal " +
+        "is queued for building and sending")
+@StackTrace(false)
+public class SignalEvent extends Event {
+    @Label("Server")
+    public String server;
+
+    @Label("Signal")
+    public String member;
+
+    @Label("Channels")
+    public String channels;
+
+    @Label("Queue Depth")
+    public int queueDepth;
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2019 Molly Miller.
+ *
+ * This file is part of Oops.
+ * 
+ * Oops is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at
+ * your option) any later version.
+ *
+ * Oops is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Oops.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package red.m_squa.oops.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A queued DBus signal handed to the bus connection.
+ */
+@Name("red.m_squa.oops.SignalSend")
+@Label("Signal Sent")
+@Category({"Oops", "IRC to DBus"})
+@Description("Building a queued signal and passing it to " +
+        "DBusConnection.sendMessage")
+@StackTrace(false)
+public class SignalSendEvent extends Event {
+    @Label("Server")
+    public String server;
+
+    @Label("Signal")
+    public String member;
+
+    @Label("Payload Size")
+    @DataAmount
+    public long payloadSize;
+
+    @Label("Queue Time")
+    @Description("Time from the start of event handling until the signal " +
+            "was taken off the queue")
+    @Timespan
+    public long queueTime;
+
+    @Label("Construction Time")
+    @Timespan
+    public long constructionTime;
+
+    @Label("Failed")
+    public boolean failed;
+}